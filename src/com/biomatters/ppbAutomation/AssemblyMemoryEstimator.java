@@ -0,0 +1,75 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.DocumentField;
+import com.biomatters.geneious.publicapi.documents.PluginDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceListDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.util.List;
+
+/**
+ * Estimates how much heap one assembly needs, from the imported documents' sequence counts and total read lengths, so
+ * that the assembly stage can keep the assemblies running at once within a heap budget.
+ * <p>
+ * The total read length of each imported document is recorded on it at import, while its reads are in memory anyway,
+ * so the estimate never has to load a document. Documents imported before this was recorded are assumed to have reads
+ * of {@link #DEFAULT_MEAN_READ_LENGTH} bases. The per-base and per-read costs are generous guesses, which only have to
+ * be right to within a factor of two or so to stop deep samples from exhausting the heap together.
+ */
+final class AssemblyMemoryEstimator {
+    static final DocumentField TOTAL_SEQUENCE_LENGTH_FIELD = DocumentField.createLongField(
+        "Total sequence length",
+        "Sum of the lengths of every sequence in the list",
+        "ppbTotalSequenceLength"
+    );
+    private static final long DEFAULT_MEAN_READ_LENGTH = 1000;
+    // Each base as a char and its quality as an int, once the reads are loaded.
+    private static final long BYTES_PER_LOADED_BASE = 6;
+    // What the Geneious assembler adds on top: its own copy of every read, the alignment and the consensus.
+    private static final long BYTES_PER_ASSEMBLED_BASE = 32;
+    private static final long BYTES_PER_READ = 512;
+
+    private AssemblyMemoryEstimator() {
+        // Do nothing.
+    }
+
+    /**
+     * Sets {@link #TOTAL_SEQUENCE_LENGTH_FIELD} on an imported document, if it is a sequence list.
+     */
+    static void recordTotalSequenceLength(AnnotatedPluginDocument importedFastqFile) throws DocumentOperationException {
+        PluginDocument pluginDocument = importedFastqFile.getDocument();
+        if (!(pluginDocument instanceof SequenceListDocument)) {
+            return;
+        }
+        long totalSequenceLength = 0;
+        for (NucleotideSequenceDocument nucleotideSequenceDocument : ((SequenceListDocument)pluginDocument).getNucleotideSequences()) {
+            totalSequenceLength += nucleotideSequenceDocument.getSequenceLength();
+        }
+        importedFastqFile.setFieldValue(
+            TOTAL_SEQUENCE_LENGTH_FIELD,
+            totalSequenceLength
+        );
+    }
+
+    /**
+     * Returns the bytes of heap that assembling importedFastqFiles against one reference is expected to need at most.
+     */
+    static long estimate(
+        List<AnnotatedPluginDocument> importedFastqFiles,
+        boolean geneiousAssemblerFlag
+    ) {
+        long numberOfReads = 0;
+        long totalSequenceLength = 0;
+        for (AnnotatedPluginDocument importedFastqFile : importedFastqFiles) {
+            Object sequenceCount = importedFastqFile.getFieldValue(DocumentField.NUCLEOTIDE_SEQUENCE_COUNT);
+            long numberOfReadsInFile = sequenceCount instanceof Number ? ((Number)sequenceCount).longValue() : 0;
+            Object sequenceLength = importedFastqFile.getFieldValue(TOTAL_SEQUENCE_LENGTH_FIELD);
+            numberOfReads += numberOfReadsInFile;
+            totalSequenceLength += sequenceLength instanceof Number ? ((Number)sequenceLength).longValue() : numberOfReadsInFile * DEFAULT_MEAN_READ_LENGTH;
+        }
+        long bytesPerBase = BYTES_PER_LOADED_BASE + (geneiousAssemblerFlag ? BYTES_PER_ASSEMBLED_BASE : 0);
+        return totalSequenceLength * bytesPerBase + numberOfReads * BYTES_PER_READ;
+    }
+}
@@ -19,8 +19,6 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static com.biomatters.ppbAutomation.CommonGeneiousKeys.*;
 import static com.biomatters.ppbAutomation.HelperFunctions.*;
@@ -55,6 +53,47 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
             CALCULATE_CONTIGS_FLAG_LABEL,
             DEFAULT_CALCULATE_CONTIGS_FLAG
         );
+        options.addBooleanOption(
+            USE_BUILT_IN_MAPPER_FLAG_KEY,
+            USE_BUILT_IN_MAPPER_FLAG_LABEL,
+            DEFAULT_USE_BUILT_IN_MAPPER_FLAG
+        );
+        options.addBooleanOption(
+            INCREMENTAL_ASSEMBLY_FLAG_KEY,
+            INCREMENTAL_ASSEMBLY_FLAG_LABEL,
+            DEFAULT_INCREMENTAL_ASSEMBLY_FLAG
+        );
+        options.addBooleanOption(
+            BIN_READS_BY_REFERENCE_FLAG_KEY,
+            BIN_READS_BY_REFERENCE_FLAG_LABEL,
+            DEFAULT_BIN_READS_BY_REFERENCE_FLAG
+        );
+        options.addBooleanOption(
+            SCREEN_READS_FLAG_KEY,
+            SCREEN_READS_FLAG_LABEL,
+            DEFAULT_SCREEN_READS_FLAG
+        );
+        options.addIntegerOption(
+            DOWNSAMPLING_TARGET_DEPTH_KEY,
+            DOWNSAMPLING_TARGET_DEPTH_LABEL,
+            DEFAULT_DOWNSAMPLING_TARGET_DEPTH,
+            MINIMUM_DOWNSAMPLING_TARGET_DEPTH,
+            MAXIMUM_DOWNSAMPLING_TARGET_DEPTH
+        );
+        options.addIntegerOption(
+            DOWNSAMPLING_SEED_KEY,
+            DOWNSAMPLING_SEED_LABEL,
+            DEFAULT_DOWNSAMPLING_SEED,
+            MINIMUM_DOWNSAMPLING_SEED,
+            MAXIMUM_DOWNSAMPLING_SEED
+        );
+        options.addIntegerOption(
+            ASSEMBLY_HEAP_BUDGET_PERCENTAGE_KEY,
+            ASSEMBLY_HEAP_BUDGET_PERCENTAGE_LABEL,
+            DEFAULT_ASSEMBLY_HEAP_BUDGET_PERCENTAGE,
+            MINIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE,
+            MAXIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE
+        );
         options.addStringOption(
             DEFAULT_ACCESSION_NUMBER_KEY,
             DEFAULT_ACCESSION_NUMBER_LABEL,
@@ -87,11 +126,80 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
             MINIMUM_NUMBER_OF_THREADS,
             MAXIMUM_NUMBER_OF_THREADS
         );
+        options.addIntegerOption(
+            NUMBER_OF_COPY_THREADS_KEY,
+            NUMBER_OF_COPY_THREADS_LABEL,
+            DEFAULT_NUMBER_OF_COPY_THREADS,
+            MINIMUM_NUMBER_OF_COPY_THREADS,
+            MAXIMUM_NUMBER_OF_COPY_THREADS
+        );
         options.addFileSelectionOption(
             PYTHON_SCRIPTS_FOLDER_PATH_KEY,
             PYTHON_SCRIPTS_FOLDER_PATH_LABEL,
             ""
         );
+        options.addBooleanOption(
+            BATCH_GENOME_TYPING_FLAG_KEY,
+            BATCH_GENOME_TYPING_FLAG_LABEL,
+            DEFAULT_BATCH_GENOME_TYPING_FLAG
+        );
+        options.addBooleanOption(
+            JAVA_GENOME_TYPING_FLAG_KEY,
+            JAVA_GENOME_TYPING_FLAG_LABEL,
+            DEFAULT_JAVA_GENOME_TYPING_FLAG
+        );
+        options.addStringOption(
+            BLAST_JSON_ACCESSION_KEY_KEY,
+            BLAST_JSON_ACCESSION_KEY_LABEL,
+            DEFAULT_BLAST_JSON_ACCESSION_KEY
+        );
+        options.addFileSelectionOption(
+            STAGING_CACHE_FOLDER_PATH_KEY,
+            STAGING_CACHE_FOLDER_PATH_LABEL,
+            DEFAULT_STAGING_CACHE_FOLDER_PATH
+        );
+        options.addIntegerOption(
+            STAGING_CACHE_BUDGET_IN_GIGABYTES_KEY,
+            STAGING_CACHE_BUDGET_IN_GIGABYTES_LABEL,
+            DEFAULT_STAGING_CACHE_BUDGET_IN_GIGABYTES,
+            MINIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES,
+            MAXIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES
+        );
+        options.addBooleanOption(
+            DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_KEY,
+            DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_LABEL,
+            DEFAULT_DELETE_STAGED_FILES_AFTER_IMPORT_FLAG
+        );
+        options.addBooleanOption(
+            USE_NATIVE_FASTQ_READER_FLAG_KEY,
+            USE_NATIVE_FASTQ_READER_FLAG_LABEL,
+            DEFAULT_USE_NATIVE_FASTQ_READER_FLAG
+        );
+        options.addBooleanOption(
+            READ_FASTQ_FILES_IN_PLACE_FLAG_KEY,
+            READ_FASTQ_FILES_IN_PLACE_FLAG_LABEL,
+            DEFAULT_READ_FASTQ_FILES_IN_PLACE_FLAG
+        );
+        options.addFileSelectionOption(
+            RUN_JOURNAL_FOLDER_PATH_KEY,
+            RUN_JOURNAL_FOLDER_PATH_LABEL,
+            DEFAULT_RUN_JOURNAL_FOLDER_PATH
+        );
+        options.addBooleanOption(
+            RESUME_RUN_FLAG_KEY,
+            RESUME_RUN_FLAG_LABEL,
+            DEFAULT_RESUME_RUN_FLAG
+        );
+        options.addBooleanOption(
+            SHARE_REFERENCE_GENOMES_FLAG_KEY,
+            SHARE_REFERENCE_GENOMES_FLAG_LABEL,
+            DEFAULT_SHARE_REFERENCE_GENOMES_FLAG
+        );
+        options.addStringOption(
+            CHROME_TRACE_FILE_PATH_KEY,
+            CHROME_TRACE_FILE_PATH_LABEL,
+            DEFAULT_CHROME_TRACE_FILE_PATH
+        );
         return options;
     }
 
@@ -106,13 +214,6 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
         };
     }
 
-    interface FileProcessor {
-        void processFile(
-            Path path,
-            WritableDatabaseServiceDatum writableDatabaseServiceDatum
-        ) throws DocumentOperationException, IOException, InterruptedException, DatabaseServiceException;
-    }
-
     public List<AnnotatedPluginDocument> performOperation(
         AnnotatedPluginDocument[] documents,
         ProgressListener progressListener,
@@ -129,6 +230,14 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
         Pattern illuminaJsonRegexPattern = Pattern.compile(options.getValueAsString(ILLUMINA_JSON_REGEX_KEY));
         Path pythonScriptsFolderPath = Paths.get(options.getValueAsString(PYTHON_SCRIPTS_FOLDER_PATH_KEY));
         int numberOfThreads = (Integer)options.getValue(NUMBER_OF_THREADS_KEY);
+        int numberOfCopyThreads = (Integer)options.getValue(NUMBER_OF_COPY_THREADS_KEY);
+        Path stagingCacheFolderPath = Paths.get(options.getValueAsString(STAGING_CACHE_FOLDER_PATH_KEY));
+        long stagingCacheBudgetInBytes = (Integer)options.getValue(STAGING_CACHE_BUDGET_IN_GIGABYTES_KEY) * BYTES_PER_GIGABYTE;
+        boolean deleteStagedFilesAfterImportFlag = (boolean)options.getValue(DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_KEY);
+        Path runJournalFolderPath = Paths.get(options.getValueAsString(RUN_JOURNAL_FOLDER_PATH_KEY));
+        boolean resumeRunFlag = (boolean)options.getValue(RESUME_RUN_FLAG_KEY);
+        boolean shareReferenceGenomesFlag = (boolean)options.getValue(SHARE_REFERENCE_GENOMES_FLAG_KEY);
+        String chromeTraceFilePath = options.getValueAsString(CHROME_TRACE_FILE_PATH_KEY);
         if (!Files.exists(pythonScriptsFolderPath)) {
             throw new DocumentOperationException(String.format(
                 "Input python-scripts folder path \"%s\" does not exist.",
@@ -142,6 +251,19 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
             ));
         }
         boolean calculateContigsFlag = (boolean)options.getValue(CALCULATE_CONTIGS_FLAG_KEY);
+        boolean useBuiltInMapperFlag = (boolean)options.getValue(USE_BUILT_IN_MAPPER_FLAG_KEY);
+        boolean incrementalAssemblyFlag = (boolean)options.getValue(INCREMENTAL_ASSEMBLY_FLAG_KEY);
+        boolean binReadsByReferenceFlag = (boolean)options.getValue(BIN_READS_BY_REFERENCE_FLAG_KEY);
+        boolean screenReadsFlag = (boolean)options.getValue(SCREEN_READS_FLAG_KEY);
+        int downsamplingTargetDepth = (Integer)options.getValue(DOWNSAMPLING_TARGET_DEPTH_KEY);
+        int downsamplingSeed = (Integer)options.getValue(DOWNSAMPLING_SEED_KEY);
+        long assemblyMemoryBudgetInBytes = Runtime.getRuntime().maxMemory() / 100 * (Integer)options.getValue(ASSEMBLY_HEAP_BUDGET_PERCENTAGE_KEY);
+        boolean javaGenomeTypingFlag = (boolean)options.getValue(JAVA_GENOME_TYPING_FLAG_KEY);
+        boolean batchGenomeTypingFlag = !javaGenomeTypingFlag && (boolean)options.getValue(BATCH_GENOME_TYPING_FLAG_KEY);
+        String blastJsonAccessionKey = options.getValueAsString(BLAST_JSON_ACCESSION_KEY_KEY);
+        boolean useNativeFastqReaderFlag = (boolean)options.getValue(USE_NATIVE_FASTQ_READER_FLAG_KEY);
+        // ImportUtilities can't read straight from the network drive quickly enough, so only the built-in reader skips staging.
+        boolean readFastqFilesInPlaceFlag = useNativeFastqReaderFlag && (boolean)options.getValue(READ_FASTQ_FILES_IN_PLACE_FLAG_KEY);
 
         AnnotatedPluginDocument document0 = documents[0];
         DatabaseService originalDatabaseService = document0.getDatabase();
@@ -171,137 +293,262 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
             fullRunName,
             illuminaNetworkSuffix
         ));
-        Set<WritableDatabaseServiceDatum> writableDatabaseServiceDataForSamples = new LinkedHashSet<>();
-        try (Stream<Path> pathStream = Files.walk(illuminaNetworkPath)) {
-            WritableDatabaseService writableDatabaseServicePerRun = rootWritableDatabaseServiceDatum.writableDatabaseService.createChildFolder(fullRunName);
+        Map<String, Pattern> patternsPerFileType = Map.of(
+            JSON, illuminaJsonRegexPattern,
+            FASTQ, illuminaFastqRegexPattern
+        );
+        PluginExecutionService pluginExecutionService = PPBAutomationPlugin.getPluginExecutionService();
+        // The walk starts straight away, so that the network share is being listed while the folders below are set up.
+        try (
+            DirectoryWalker directoryWalker = DirectoryWalker.start(
+                pluginExecutionService.getIoExecutorService(),
+                illuminaNetworkPath,
+                fileName -> patternsPerFileType.values().stream().anyMatch(pattern -> pattern.matcher(fileName).matches())
+            )
+        ) {
+            WritableDatabaseService writableDatabaseServicePerRun = getOrCreateChildFolder(
+                rootWritableDatabaseServiceDatum.writableDatabaseService,
+                fullRunName,
+                resumeRunFlag
+            );
             WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun = new WritableDatabaseServiceDatum(writableDatabaseServicePerRun);
             rootWritableDatabaseServiceDatum.children.put(
                 fullRunName,
                 writableDatabaseServiceDatumPerRun
             );
-            Path temporaryLocalDirectory = Files.createTempDirectory("networkDumpFolderForGeneious");
-            List<Path> paths = pathStream.collect(Collectors.toList());
-//            AtomicInteger numberOfSubtasks = new AtomicInteger();
+            StagingCache stagingCache = StagingCache.getStagingCache(
+                stagingCacheFolderPath,
+                stagingCacheBudgetInBytes
+            );
+            StagingCache.Session stagingSession = stagingCache.openSession(deleteStagedFilesAfterImportFlag);
+            RangedFileCopier rangedFileCopier = new RangedFileCopier(
+                pluginExecutionService.getIoExecutorService(),
+                numberOfCopyThreads
+            );
             FileProcessor fastqFileProcessor = (
                 Path path,
                 WritableDatabaseServiceDatum writableDatabaseServiceDatum
             ) -> {
-                Path copyPath = temporaryLocalDirectory.resolve(path.getFileName());
+                if (readFastqFilesInPlaceFlag) {
+                    writableDatabaseServiceDatum.rawFastqFiles.add(path.toFile());
+                    return;
+                }
                 // This shouldn't be necessary, but importing documents directly from network drives is very slow. This method is faster.
-                Files.copy(
-                    path,
-                    copyPath
-                );
-//                numberOfSubtasks.addAndGet(2);
-                writableDatabaseServiceDatum.rawFastqFiles.add(copyPath.toFile());
-            };
-            FileProcessor jsonFileProcessor = (
-                Path path,
-                WritableDatabaseServiceDatum writableDatabaseServiceDatum
-            ) -> {
-                PythonProcess pythonProcess = new PythonProcess(
-                    GET_GENOME_TYPES_FROM_VPIPE_PYTHON_SCRIPT_NAME,
-                    pythonScriptsFolderPath.toAbsolutePath().toString(),
-                    writableDatabaseServiceDatum.referenceGenomeAccessionNumbers::add
-                );
-                Integer exitValue = pythonProcess.execute(
-                    true,
-                    String.format(
-                        "-i %s",
-                        path.toAbsolutePath()
-                    )
-                );
-                if (exitValue == null) {
-                    throw new DocumentOperationException("exitValue should never be null.");
+                Path copyPath;
+                try (
+                    StageTimer stageTimer = StageTimer.start(
+                        StageTimer.NETWORK_COPY,
+                        writableDatabaseServiceDatum.sampleName
+                    ).setBytes(Files.size(path))
+                ) {
+                    copyPath = stagingSession.stage(
+                        path,
+                        writableDatabaseServiceDatum.sampleName,
+                        rangedFileCopier
+                    );
                 }
-                pythonProcess.validateExitValue(exitValue);
+                writableDatabaseServiceDatum.rawFastqFiles.add(copyPath.toFile());
             };
+            GenomeTypingBatch genomeTypingBatch = new GenomeTypingBatch();
+            FileProcessor jsonFileProcessor;
+            if (javaGenomeTypingFlag) {
+                jsonFileProcessor = (
+                    Path path,
+                    WritableDatabaseServiceDatum writableDatabaseServiceDatum
+                ) -> writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.addAll(BlastJsonAccessionReader.readAccessionNumbers(
+                    path,
+                    blastJsonAccessionKey,
+                    referenceGenomesPerAccessionNumber.keySet()
+                ));
+            } else if (batchGenomeTypingFlag) {
+                // Every sample's accession numbers are added by the one Python process, so each .json file only has to wait for it.
+                jsonFileProcessor = (
+                    Path path,
+                    WritableDatabaseServiceDatum writableDatabaseServiceDatum
+                ) -> genomeTypingBatch.awaitCompletion();
+            } else {
+                jsonFileProcessor = (
+                    Path path,
+                    WritableDatabaseServiceDatum writableDatabaseServiceDatum
+                ) -> {
+                    PythonProcess pythonProcess = new PythonProcess(
+                        GET_GENOME_TYPES_FROM_VPIPE_PYTHON_SCRIPT_NAME,
+                        pythonScriptsFolderPath.toAbsolutePath().toString(),
+                        writableDatabaseServiceDatum.referenceGenomeAccessionNumbers::add
+                    );
+                    Integer exitValue = pythonProcess.execute(
+                        true,
+                        String.format(
+                            "-i %s",
+                            path.toAbsolutePath()
+                        )
+                    );
+                    if (exitValue == null) {
+                        throw new DocumentOperationException("exitValue should never be null.");
+                    }
+                    pythonProcess.validateExitValue(exitValue);
+                };
+            }
             Map<String, FileProcessor> fileProcessorsPerFileType = Map.of(
                 FASTQ, fastqFileProcessor,
-                JSON, jsonFileProcessor
-            );
-            Map<String, Pattern> patternsPerFileType = Map.of(
-                JSON, illuminaJsonRegexPattern,
-                FASTQ, illuminaFastqRegexPattern
+                JSON, FileProcessor.timed(
+                    StageTimer.JSON_TYPING,
+                    jsonFileProcessor
+                )
             );
             AtomicInteger i = new AtomicInteger(0);
             AtomicInteger totalNumberOfTasks = new AtomicInteger(0);
-            ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
-            List<Callable<Void>> tasks = new LinkedList<>();
-            for (Path path : paths) {
-                if (!Files.isRegularFile(path)) {
-                    continue;
-                }
-
-                String fileName = path.getFileName().toString();
-                for (String fileType : FILE_TYPES) {
-                    Matcher fileNameMatcher = patternsPerFileType.get(fileType).matcher(fileName);
-                    if (!fileNameMatcher.matches()) {
-                        continue;
-                    }
-                    String sampleName = fileNameMatcher.group(1);
-                    sampleName = sampleName.replaceAll("-", "_");
-                    WritableDatabaseServiceDatum writableDatabaseServiceDatumPerSample;
-                    if (writableDatabaseServiceDatumPerRun.children.containsKey(sampleName)) {
-                        writableDatabaseServiceDatumPerSample = writableDatabaseServiceDatumPerRun.children.get(sampleName);
-                    } else {
-                        WritableDatabaseService writableDatabaseServicePerSample = writableDatabaseServiceDatumPerRun.writableDatabaseService.createChildFolder(sampleName);
-                        writableDatabaseServiceDatumPerSample = new WritableDatabaseServiceDatum(
-                            writableDatabaseServicePerSample,
-                            sampleName
-                        );
-                        writableDatabaseServiceDatumPerRun.children.put(
-                            sampleName,
-                            writableDatabaseServiceDatumPerSample
-                        );
-                    }
-                    if (Files.size(path) == 0) {
+            RunJournal runJournal = new RunJournal(
+                runJournalFolderPath,
+                fullRunName,
+                resumeRunFlag
+            );
+            WritableDatabaseServiceDatum sharedReferenceGenomesDatum = shareReferenceGenomesFlag ? prepareSharedReferenceGenomes(
+                writableDatabaseServiceDatumPerRun,
+                runJournal
+            ) : null;
+            DatabaseCommitQueue databaseCommitQueue = new DatabaseCommitQueue(pluginExecutionService.getDatabaseExecutorService());
+            SamplePipeline.Options samplePipelineOptions = new SamplePipeline.Options();
+            samplePipelineOptions.numberOfThreads = numberOfThreads;
+            samplePipelineOptions.calculateContigsFlag = calculateContigsFlag;
+            samplePipelineOptions.useBuiltInMapperFlag = useBuiltInMapperFlag;
+            samplePipelineOptions.useNativeFastqReaderFlag = useNativeFastqReaderFlag;
+            samplePipelineOptions.incrementalAssemblyFlag = incrementalAssemblyFlag;
+            samplePipelineOptions.binReadsFlag = binReadsByReferenceFlag;
+            samplePipelineOptions.screenReadsFlag = screenReadsFlag;
+            samplePipelineOptions.downsamplingTargetDepth = downsamplingTargetDepth;
+            samplePipelineOptions.downsamplingSeed = downsamplingSeed;
+            samplePipelineOptions.assemblyMemoryBudgetInBytes = assemblyMemoryBudgetInBytes;
+            SamplePipeline samplePipeline = new SamplePipeline(
+                pluginExecutionService.getIoExecutorService(),
+                pluginExecutionService.getCpuExecutorService(numberOfThreads),
+                samplePipelineOptions,
+                defaultAccessionNumber,
+                referenceGenomesPerAccessionNumber,
+                sharedReferenceGenomesDatum,
+                stagingSession,
+                databaseCommitQueue,
+                runJournal,
+                progressListener
+            );
+            ChromeTraceRecorder chromeTraceRecorder = ChromeTraceRecorder.start(chromeTraceFilePath);
+            try {
+                // With batch genome typing, .json files can't be processed until every one of them has been found.
+                List<Map.Entry<Path, WritableDatabaseServiceDatum>> deferredJsonFiles = new ArrayList<>();
+                // Keyed by path without any .gz extension, so that only one of a gzipped and a plain copy is imported.
+                Set<Path> uncompressedFastqFilePaths = new HashSet<>();
+                DirectoryWalker.FoundFile foundFile;
+                while ((foundFile = directoryWalker.take()) != null) {
+                    if (foundFile.basicFileAttributes.size() == 0) {
                         // Ignore empty files.
                         continue;
                     }
-                    tasks.add(() -> {
-                        fileProcessorsPerFileType.get(fileType).processFile(
+                    Path path = foundFile.path;
+                    String fileName = path.getFileName().toString();
+                    for (String fileType : FILE_TYPES) {
+                        Matcher fileNameMatcher = patternsPerFileType.get(fileType).matcher(fileName);
+                        if (!fileNameMatcher.matches()) {
+                            continue;
+                        }
+                        String sampleName = fileNameMatcher.group(1);
+                        sampleName = sampleName.replaceAll("-", "_");
+                        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerSample;
+                        if (writableDatabaseServiceDatumPerRun.children.containsKey(sampleName)) {
+                            writableDatabaseServiceDatumPerSample = writableDatabaseServiceDatumPerRun.children.get(sampleName);
+                        } else {
+                            WritableDatabaseService writableDatabaseServicePerSample = getOrCreateChildFolder(
+                                writableDatabaseServiceDatumPerRun.writableDatabaseService,
+                                sampleName,
+                                resumeRunFlag
+                            );
+                            writableDatabaseServiceDatumPerSample = new WritableDatabaseServiceDatum(
+                                writableDatabaseServicePerSample,
+                                sampleName
+                            );
+                            writableDatabaseServiceDatumPerRun.children.put(
+                                sampleName,
+                                writableDatabaseServiceDatumPerSample
+                            );
+                            samplePipeline.addSample(writableDatabaseServiceDatumPerSample);
+                        }
+                        if (fileType.equals(FASTQ)) {
+                            boolean gzipFlag = FastqReader.GZIP_FILE_NAME_PATTERN.matcher(fileName).matches();
+                            Path uncompressedFastqFilePath = gzipFlag ? path.resolveSibling(fileName.substring(0, fileName.length() - 3)) : path;
+                            Path otherFastqFilePath = gzipFlag ? uncompressedFastqFilePath : path.resolveSibling(fileName + ".gz");
+                            // Otherwise both copies' reads would be assembled. Whichever copy is found first is kept.
+                            if (
+                                !uncompressedFastqFilePaths.add(uncompressedFastqFilePath) ||
+                                samplePipeline.isFastqFileImported(writableDatabaseServiceDatumPerSample, otherFastqFilePath)
+                            ) {
+                                System.out.printf(
+                                    "Skipped \"%s\", as \"%s\" holds the same reads%n",
+                                    path,
+                                    otherFastqFilePath.getFileName()
+                                );
+                                continue;
+                            }
+                        }
+                        if (batchGenomeTypingFlag && fileType.equals(JSON)) {
+                            if (samplePipeline.isSampleTyped(writableDatabaseServiceDatumPerSample, path)) {
+                                continue;
+                            }
+                            genomeTypingBatch.add(
+                                path,
+                                writableDatabaseServiceDatumPerSample
+                            );
+                            deferredJsonFiles.add(Map.entry(
+                                path,
+                                writableDatabaseServiceDatumPerSample
+                            ));
+                            continue;
+                        }
+                        stageFile(
+                            samplePipeline,
+                            writableDatabaseServiceDatumPerSample,
                             path,
-                            writableDatabaseServiceDatumPerSample
-                        );
-                        String message = String.format(
-                            "Pre-processed VPipe .%s file \"%s\" (%d / %d)",
                             fileType,
-                            path.getFileName(),
-                            i.incrementAndGet(),
-                            totalNumberOfTasks.get()
+                            fileProcessorsPerFileType.get(fileType),
+                            i,
+                            totalNumberOfTasks,
+                            progressListener
                         );
-                        progressListener.setMessage(message);
-                        System.out.println(message);
-                        return null;
-                    });
-                    writableDatabaseServiceDataForSamples.add(writableDatabaseServiceDatumPerSample);
+                    }
+                }
+                genomeTypingBatch.start(
+                    pluginExecutionService.getIoExecutorService(),
+                    GET_GENOME_TYPES_FROM_VPIPE_PYTHON_SCRIPT_NAME,
+                    pythonScriptsFolderPath
+                );
+                for (Map.Entry<Path, WritableDatabaseServiceDatum> deferredJsonFile : deferredJsonFiles) {
+                    stageFile(
+                        samplePipeline,
+                        deferredJsonFile.getValue(),
+                        deferredJsonFile.getKey(),
+                        JSON,
+                        fileProcessorsPerFileType.get(JSON),
+                        i,
+                        totalNumberOfTasks,
+                        progressListener
+                    );
+                }
+                samplePipeline.awaitCompletion();
+                databaseCommitQueue.flush();
+                copyReferenceGenomesIntoFinalAssemblies(
+                    writableDatabaseServiceDatumPerRun,
+                    samplePipeline.getAllReferenceGenomes(),
+                    shareReferenceGenomesFlag,
+                    databaseCommitQueue,
+                    runJournal
+                );
+            } finally {
+                samplePipeline.close();
+                databaseCommitQueue.close();
+                stagingSession.close();
+                runJournal.close();
+                if (chromeTraceRecorder != null) {
+                    chromeTraceRecorder.close();
                 }
             }
-            totalNumberOfTasks.set(tasks.size());
-            List<Future<Void>> taskReturnValues = executorService.invokeAll(tasks);
-            for (Future<Void> taskReturnValue : taskReturnValues) {
-                taskReturnValue.get();
-            }
-            // This is fast enough that we don't need multiple threads.
-            validateAndCopyReferenceGenomes(
-                writableDatabaseServiceDataForSamples,
-                defaultAccessionNumber,
-                referenceGenomesPerAccessionNumber,
-                progressListener
-            );
-            importFastqFiles(
-                writableDatabaseServiceDataForSamples,
-                executorService,
-                progressListener
-            );
-            performAssemblies(
-                writableDatabaseServiceDataForSamples,
-                executorService,
-                writableDatabaseServiceDatumPerRun,
-                calculateContigsFlag,
-                progressListener
-            );
             long endTimeMs = System.currentTimeMillis();
             long elapsedTimeMs = endTimeMs - startTimeMs;
             long elapsedTimeS = elapsedTimeMs / 1000;
@@ -310,10 +557,54 @@ public class BeginIlluminaRunOperation extends DocumentOperation {
                 elapsedTimeS / 60,
                 elapsedTimeS % 60
             );
-        } catch (IOException | DocumentImportException | DatabaseServiceException | ExecutionException | InterruptedException exception) {
+        } catch (IOException | DatabaseServiceException | ExecutionException | InterruptedException exception) {
             exception.printStackTrace();
             throw new DocumentOperationException(exception);
         }
         return returnValue;
     }
+
+    /**
+     * Hands path to the sample pipeline, unless the interrupted run that is being resumed already got past it.
+     */
+    private static void stageFile(
+        SamplePipeline samplePipeline,
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerSample,
+        Path path,
+        String fileType,
+        FileProcessor fileProcessor,
+        AtomicInteger i,
+        AtomicInteger totalNumberOfTasks,
+        ProgressListener progressListener
+    ) throws InterruptedException, DatabaseServiceException {
+        if (fileType.equals(FASTQ) ? samplePipeline.isFastqFileImported(writableDatabaseServiceDatumPerSample, path) : samplePipeline.isSampleTyped(writableDatabaseServiceDatumPerSample, path)) {
+            return;
+        }
+        totalNumberOfTasks.incrementAndGet();
+        samplePipeline.stageFile(
+            writableDatabaseServiceDatumPerSample,
+            path,
+            (Path pathToProcess, WritableDatabaseServiceDatum writableDatabaseServiceDatum) -> {
+                fileProcessor.processFile(
+                    pathToProcess,
+                    writableDatabaseServiceDatum
+                );
+                if (fileType.equals(JSON)) {
+                    samplePipeline.recordSampleTyped(
+                        writableDatabaseServiceDatum,
+                        pathToProcess
+                    );
+                }
+                String message = String.format(
+                    "Pre-processed VPipe .%s file \"%s\" (%d / %d)",
+                    fileType,
+                    pathToProcess.getFileName(),
+                    i.incrementAndGet(),
+                    totalNumberOfTasks.get()
+                );
+                progressListener.setMessage(message);
+                System.out.println(message);
+            }
+        );
+    }
 }
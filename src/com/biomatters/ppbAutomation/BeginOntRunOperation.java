@@ -11,16 +11,17 @@ import jebl.util.ProgressListener;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.biomatters.ppbAutomation.CommonGeneiousKeys.*;
 import static com.biomatters.ppbAutomation.HelperFunctions.*;
@@ -28,6 +29,11 @@ import static com.biomatters.ppbAutomation.HelperFunctions.*;
 public class BeginOntRunOperation extends DocumentOperation {
     private static final String HELP = "Initializes an ONT run for Bioinformaticians working in PPB.";
     private static final String REPORT_ONT_FASTQ_FILE_PATHS_PYTHON_SCRIPT_NAME = "report_ont_fastq_file_paths";
+    // Queued once the script has exited. Compared by identity, so it can't be mistaken for a reported file.
+    private static final Map.Entry<String, String> END_OF_REPORTED_FASTQ_FILES = new AbstractMap.SimpleImmutableEntry<>(
+        "",
+        ""
+    );
 
     @Override
     public GeneiousActionOptions getActionOptions() {
@@ -70,6 +76,47 @@ public class BeginOntRunOperation extends DocumentOperation {
             CALCULATE_CONTIGS_FLAG_LABEL,
             DEFAULT_CALCULATE_CONTIGS_FLAG
         );
+        options.addBooleanOption(
+            USE_BUILT_IN_MAPPER_FLAG_KEY,
+            USE_BUILT_IN_MAPPER_FLAG_LABEL,
+            DEFAULT_USE_BUILT_IN_MAPPER_FLAG
+        );
+        options.addBooleanOption(
+            INCREMENTAL_ASSEMBLY_FLAG_KEY,
+            INCREMENTAL_ASSEMBLY_FLAG_LABEL,
+            DEFAULT_INCREMENTAL_ASSEMBLY_FLAG
+        );
+        options.addBooleanOption(
+            BIN_READS_BY_REFERENCE_FLAG_KEY,
+            BIN_READS_BY_REFERENCE_FLAG_LABEL,
+            DEFAULT_BIN_READS_BY_REFERENCE_FLAG
+        );
+        options.addBooleanOption(
+            SCREEN_READS_FLAG_KEY,
+            SCREEN_READS_FLAG_LABEL,
+            DEFAULT_SCREEN_READS_FLAG
+        );
+        options.addIntegerOption(
+            DOWNSAMPLING_TARGET_DEPTH_KEY,
+            DOWNSAMPLING_TARGET_DEPTH_LABEL,
+            DEFAULT_DOWNSAMPLING_TARGET_DEPTH,
+            MINIMUM_DOWNSAMPLING_TARGET_DEPTH,
+            MAXIMUM_DOWNSAMPLING_TARGET_DEPTH
+        );
+        options.addIntegerOption(
+            DOWNSAMPLING_SEED_KEY,
+            DOWNSAMPLING_SEED_LABEL,
+            DEFAULT_DOWNSAMPLING_SEED,
+            MINIMUM_DOWNSAMPLING_SEED,
+            MAXIMUM_DOWNSAMPLING_SEED
+        );
+        options.addIntegerOption(
+            ASSEMBLY_HEAP_BUDGET_PERCENTAGE_KEY,
+            ASSEMBLY_HEAP_BUDGET_PERCENTAGE_LABEL,
+            DEFAULT_ASSEMBLY_HEAP_BUDGET_PERCENTAGE,
+            MINIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE,
+            MAXIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE
+        );
         options.addStringOption(
             DEFAULT_ACCESSION_NUMBER_KEY,
             DEFAULT_ACCESSION_NUMBER_LABEL,
@@ -82,11 +129,122 @@ public class BeginOntRunOperation extends DocumentOperation {
             MINIMUM_NUMBER_OF_THREADS,
             MAXIMUM_NUMBER_OF_THREADS
         );
+        options.addIntegerOption(
+            NUMBER_OF_COPY_THREADS_KEY,
+            NUMBER_OF_COPY_THREADS_LABEL,
+            DEFAULT_NUMBER_OF_COPY_THREADS,
+            MINIMUM_NUMBER_OF_COPY_THREADS,
+            MAXIMUM_NUMBER_OF_COPY_THREADS
+        );
         options.addFileSelectionOption(
             PYTHON_SCRIPTS_FOLDER_PATH_KEY,
             PYTHON_SCRIPTS_FOLDER_PATH_LABEL,
             ""
         );
+        options.addFileSelectionOption(
+            STAGING_CACHE_FOLDER_PATH_KEY,
+            STAGING_CACHE_FOLDER_PATH_LABEL,
+            DEFAULT_STAGING_CACHE_FOLDER_PATH
+        );
+        options.addIntegerOption(
+            STAGING_CACHE_BUDGET_IN_GIGABYTES_KEY,
+            STAGING_CACHE_BUDGET_IN_GIGABYTES_LABEL,
+            DEFAULT_STAGING_CACHE_BUDGET_IN_GIGABYTES,
+            MINIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES,
+            MAXIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES
+        );
+        options.addBooleanOption(
+            DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_KEY,
+            DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_LABEL,
+            DEFAULT_DELETE_STAGED_FILES_AFTER_IMPORT_FLAG
+        );
+        options.addBooleanOption(
+            USE_NATIVE_FASTQ_READER_FLAG_KEY,
+            USE_NATIVE_FASTQ_READER_FLAG_LABEL,
+            DEFAULT_USE_NATIVE_FASTQ_READER_FLAG
+        );
+        options.addBooleanOption(
+            READ_FASTQ_FILES_IN_PLACE_FLAG_KEY,
+            READ_FASTQ_FILES_IN_PLACE_FLAG_LABEL,
+            DEFAULT_READ_FASTQ_FILES_IN_PLACE_FLAG
+        );
+        options.addBooleanOption(
+            MERGE_ONT_CHUNKS_FLAG_KEY,
+            MERGE_ONT_CHUNKS_FLAG_LABEL,
+            DEFAULT_MERGE_ONT_CHUNKS_FLAG
+        );
+        options.addBooleanOption(
+            DECOMPRESS_MERGED_ONT_CHUNKS_FLAG_KEY,
+            DECOMPRESS_MERGED_ONT_CHUNKS_FLAG_LABEL,
+            DEFAULT_DECOMPRESS_MERGED_ONT_CHUNKS_FLAG
+        );
+        options.addFileSelectionOption(
+            RUN_JOURNAL_FOLDER_PATH_KEY,
+            RUN_JOURNAL_FOLDER_PATH_LABEL,
+            DEFAULT_RUN_JOURNAL_FOLDER_PATH
+        );
+        options.addBooleanOption(
+            RESUME_RUN_FLAG_KEY,
+            RESUME_RUN_FLAG_LABEL,
+            DEFAULT_RESUME_RUN_FLAG
+        );
+        options.addBooleanOption(
+            SHARE_REFERENCE_GENOMES_FLAG_KEY,
+            SHARE_REFERENCE_GENOMES_FLAG_LABEL,
+            DEFAULT_SHARE_REFERENCE_GENOMES_FLAG
+        );
+        options.addBooleanOption(
+            JAVA_SAMPLE_SHEET_FLAG_KEY,
+            JAVA_SAMPLE_SHEET_FLAG_LABEL,
+            DEFAULT_JAVA_SAMPLE_SHEET_FLAG
+        );
+        options.addStringOption(
+            WET_LAB_SAMPLE_COLUMN_REGEX_KEY,
+            WET_LAB_SAMPLE_COLUMN_REGEX_LABEL,
+            DEFAULT_WET_LAB_SAMPLE_COLUMN_REGEX
+        );
+        options.addStringOption(
+            WET_LAB_BARCODE_COLUMN_REGEX_KEY,
+            WET_LAB_BARCODE_COLUMN_REGEX_LABEL,
+            DEFAULT_WET_LAB_BARCODE_COLUMN_REGEX
+        );
+        options.addStringOption(
+            WET_LAB_RUN_COLUMN_REGEX_KEY,
+            WET_LAB_RUN_COLUMN_REGEX_LABEL,
+            DEFAULT_WET_LAB_RUN_COLUMN_REGEX
+        );
+        options.addStringOption(
+            ONT_NETWORK_PREFIX_KEY,
+            ONT_NETWORK_PREFIX_LABEL,
+            DEFAULT_ONT_NETWORK_PREFIX
+        );
+        options.addStringOption(
+            ONT_FASTQ_REGEX_KEY,
+            ONT_FASTQ_REGEX_LABEL,
+            DEFAULT_ONT_FASTQ_REGEX
+        );
+        options.addBooleanOption(
+            WATCH_RUN_FLAG_KEY,
+            WATCH_RUN_FLAG_LABEL,
+            DEFAULT_WATCH_RUN_FLAG
+        );
+        options.addIntegerOption(
+            WATCH_POLL_INTERVAL_IN_SECONDS_KEY,
+            WATCH_POLL_INTERVAL_IN_SECONDS_LABEL,
+            DEFAULT_WATCH_POLL_INTERVAL_IN_SECONDS,
+            MINIMUM_WATCH_POLL_INTERVAL_IN_SECONDS,
+            MAXIMUM_WATCH_POLL_INTERVAL_IN_SECONDS
+        );
+        options.addStringOption(
+            ONT_RUN_COMPLETION_MARKER_REGEX_KEY,
+            ONT_RUN_COMPLETION_MARKER_REGEX_LABEL,
+            DEFAULT_ONT_RUN_COMPLETION_MARKER_REGEX
+        );
+        options.addStringOption(
+            CHROME_TRACE_FILE_PATH_KEY,
+            CHROME_TRACE_FILE_PATH_LABEL,
+            DEFAULT_CHROME_TRACE_FILE_PATH
+        );
         return options;
     }
 
@@ -101,6 +259,20 @@ public class BeginOntRunOperation extends DocumentOperation {
         String fullRunName = options.getValueAsString(FULL_RUN_NAME_KEY);
         Path wetLabExcelFilePath = Paths.get(options.getValueAsString(WET_LAB_EXCEL_FILE_PATH_KEY));
         int numberOfThreads = (Integer)options.getValue(NUMBER_OF_THREADS_KEY);
+        int numberOfCopyThreads = (Integer)options.getValue(NUMBER_OF_COPY_THREADS_KEY);
+        Path stagingCacheFolderPath = Paths.get(options.getValueAsString(STAGING_CACHE_FOLDER_PATH_KEY));
+        long stagingCacheBudgetInBytes = (Integer)options.getValue(STAGING_CACHE_BUDGET_IN_GIGABYTES_KEY) * BYTES_PER_GIGABYTE;
+        boolean deleteStagedFilesAfterImportFlag = (boolean)options.getValue(DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_KEY);
+        Path runJournalFolderPath = Paths.get(options.getValueAsString(RUN_JOURNAL_FOLDER_PATH_KEY));
+        boolean resumeRunFlag = (boolean)options.getValue(RESUME_RUN_FLAG_KEY);
+        boolean shareReferenceGenomesFlag = (boolean)options.getValue(SHARE_REFERENCE_GENOMES_FLAG_KEY);
+        String chromeTraceFilePath = options.getValueAsString(CHROME_TRACE_FILE_PATH_KEY);
+        boolean javaSampleSheetFlag = (boolean)options.getValue(JAVA_SAMPLE_SHEET_FLAG_KEY);
+        String ontNetworkPrefix = options.getValueAsString(ONT_NETWORK_PREFIX_KEY);
+        Pattern ontFastqRegexPattern = Pattern.compile(options.getValueAsString(ONT_FASTQ_REGEX_KEY));
+        boolean watchRunFlag = (boolean)options.getValue(WATCH_RUN_FLAG_KEY);
+        int watchPollIntervalInSeconds = (Integer)options.getValue(WATCH_POLL_INTERVAL_IN_SECONDS_KEY);
+        Pattern ontRunCompletionMarkerRegexPattern = Pattern.compile(options.getValueAsString(ONT_RUN_COMPLETION_MARKER_REGEX_KEY));
         if (!Files.exists(wetLabExcelFilePath)) {
             throw new DocumentOperationException(String.format(
                 "Input wet-lab excel-file path \"%s\" does not exist.",
@@ -114,20 +286,55 @@ public class BeginOntRunOperation extends DocumentOperation {
             ));
         }
         Path pythonScriptsFolderPath = Paths.get(options.getValueAsString(PYTHON_SCRIPTS_FOLDER_PATH_KEY));
-        if (!Files.exists(pythonScriptsFolderPath)) {
+        Map<String, String> sampleNamesPerBarcode = null;
+        if (watchRunFlag && !javaSampleSheetFlag) {
             throw new DocumentOperationException(String.format(
-                "Input python-scripts folder path \"%s\" does not exist.",
-                pythonScriptsFolderPath
+                "\"%s\" needs \"%s\", since only the Java sample sheet knows where the run folder is.",
+                WATCH_RUN_FLAG_LABEL,
+                JAVA_SAMPLE_SHEET_FLAG_LABEL
             ));
         }
-        if (!Files.isDirectory(pythonScriptsFolderPath)) {
-            throw new DocumentOperationException(String.format(
-                "Input python-scripts folder path \"%s\" is not a directory.",
-                pythonScriptsFolderPath
-            ));
+        if (javaSampleSheetFlag) {
+            if (ontNetworkPrefix.isBlank()) {
+                throw new DocumentOperationException(String.format(
+                    "\"%s\" has to be set to read the wet-lab Excel file in Java.",
+                    ONT_NETWORK_PREFIX_LABEL
+                ));
+            }
+            sampleNamesPerBarcode = WetLabSampleSheet.read(
+                wetLabExcelFilePath,
+                Pattern.compile(options.getValueAsString(WET_LAB_SAMPLE_COLUMN_REGEX_KEY)),
+                Pattern.compile(options.getValueAsString(WET_LAB_BARCODE_COLUMN_REGEX_KEY)),
+                Pattern.compile(options.getValueAsString(WET_LAB_RUN_COLUMN_REGEX_KEY))
+            ).getSampleNamesPerBarcode(fullRunName);
+        } else {
+            if (!Files.exists(pythonScriptsFolderPath)) {
+                throw new DocumentOperationException(String.format(
+                    "Input python-scripts folder path \"%s\" does not exist.",
+                    pythonScriptsFolderPath
+                ));
+            }
+            if (!Files.isDirectory(pythonScriptsFolderPath)) {
+                throw new DocumentOperationException(String.format(
+                    "Input python-scripts folder path \"%s\" is not a directory.",
+                    pythonScriptsFolderPath
+                ));
+            }
         }
         String defaultAccessionNumber = options.getValueAsString(DEFAULT_ACCESSION_NUMBER_KEY);
         boolean calculateContigsFlag = (boolean)options.getValue(CALCULATE_CONTIGS_FLAG_KEY);
+        boolean useBuiltInMapperFlag = (boolean)options.getValue(USE_BUILT_IN_MAPPER_FLAG_KEY);
+        boolean incrementalAssemblyFlag = (boolean)options.getValue(INCREMENTAL_ASSEMBLY_FLAG_KEY);
+        boolean binReadsByReferenceFlag = (boolean)options.getValue(BIN_READS_BY_REFERENCE_FLAG_KEY);
+        boolean screenReadsFlag = (boolean)options.getValue(SCREEN_READS_FLAG_KEY);
+        int downsamplingTargetDepth = (Integer)options.getValue(DOWNSAMPLING_TARGET_DEPTH_KEY);
+        int downsamplingSeed = (Integer)options.getValue(DOWNSAMPLING_SEED_KEY);
+        long assemblyMemoryBudgetInBytes = Runtime.getRuntime().maxMemory() / 100 * (Integer)options.getValue(ASSEMBLY_HEAP_BUDGET_PERCENTAGE_KEY);
+        boolean mergeOntChunksFlag = (boolean)options.getValue(MERGE_ONT_CHUNKS_FLAG_KEY);
+        boolean decompressMergedOntChunksFlag = (boolean)options.getValue(DECOMPRESS_MERGED_ONT_CHUNKS_FLAG_KEY);
+        boolean useNativeFastqReaderFlag = (boolean)options.getValue(USE_NATIVE_FASTQ_READER_FLAG_KEY);
+        // ImportUtilities can't read straight from the network drive quickly enough, so only the built-in reader skips staging.
+        boolean readFastqFilesInPlaceFlag = useNativeFastqReaderFlag && (boolean)options.getValue(READ_FASTQ_FILES_IN_PLACE_FLAG_KEY);
 
         HashMap<String, AnnotatedPluginDocument> referenceGenomesPerAccessionNumber = new HashMap<>();
         for (AnnotatedPluginDocument document : documents) {
@@ -150,81 +357,228 @@ public class BeginOntRunOperation extends DocumentOperation {
             ));
         }
         WritableDatabaseServiceDatum rootWritableDatabaseServiceDatum = new WritableDatabaseServiceDatum((WritableDatabaseService)originalDatabaseService);
-        LinkedHashSet<WritableDatabaseServiceDatum> writableDatabaseServiceDataForSamples = new LinkedHashSet<>();
         try {
-            WritableDatabaseService writableDatabaseServicePerRun = rootWritableDatabaseServiceDatum.writableDatabaseService.createChildFolder(fullRunName);
+            WritableDatabaseService writableDatabaseServicePerRun = getOrCreateChildFolder(
+                rootWritableDatabaseServiceDatum.writableDatabaseService,
+                fullRunName,
+                resumeRunFlag
+            );
             WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun = new WritableDatabaseServiceDatum(writableDatabaseServicePerRun);
             rootWritableDatabaseServiceDatum.children.put(
                 fullRunName,
                 writableDatabaseServiceDatumPerRun
             );
-            Path temporaryDirectoryPath = Files.createTempDirectory("networkDumpFolderForGeneious");
-            AtomicInteger numberOfSubtasks = new AtomicInteger();
-            PythonProcess pythonProcess = new PythonProcess(
-                REPORT_ONT_FASTQ_FILE_PATHS_PYTHON_SCRIPT_NAME,
-                pythonScriptsFolderPath.toAbsolutePath().toString(),
-                (String pythonOutputLine) -> {
-                    String[] splitResults = pythonOutputLine.split("=>");
-                    String sampleName = splitResults[0];
-                    String fastqFilePathString = splitResults[1];
+            StagingCache stagingCache = StagingCache.getStagingCache(
+                stagingCacheFolderPath,
+                stagingCacheBudgetInBytes
+            );
+            StagingCache.Session stagingSession = stagingCache.openSession(deleteStagedFilesAfterImportFlag);
+            PluginExecutionService pluginExecutionService = PPBAutomationPlugin.getPluginExecutionService();
+            RangedFileCopier rangedFileCopier = new RangedFileCopier(
+                pluginExecutionService.getIoExecutorService(),
+                numberOfCopyThreads
+            );
+            FileProcessor fastqFileProcessor = (
+                Path fastqFilePath,
+                WritableDatabaseServiceDatum writableDatabaseServiceDatum
+            ) -> {
+                long size = Files.size(fastqFilePath);
+                if (size == 0) {
+                    // Ignore empty files.
+                    return;
+                }
+                if (readFastqFilesInPlaceFlag) {
+                    writableDatabaseServiceDatum.rawFastqFiles.add(fastqFilePath.toFile());
+                    return;
+                }
+                Path copiedFilePath;
+                try (
+                    StageTimer stageTimer = StageTimer.start(
+                        StageTimer.NETWORK_COPY,
+                        writableDatabaseServiceDatum.sampleName
+                    ).setBytes(size)
+                ) {
+                    copiedFilePath = stagingSession.stage(
+                        fastqFilePath,
+                        writableDatabaseServiceDatum.sampleName,
+                        rangedFileCopier
+                    );
+                }
+                writableDatabaseServiceDatum.rawFastqFiles.add(copiedFilePath.toFile());
+            };
+            RunJournal runJournal = new RunJournal(
+                runJournalFolderPath,
+                fullRunName,
+                resumeRunFlag
+            );
+            WritableDatabaseServiceDatum sharedReferenceGenomesDatum = shareReferenceGenomesFlag ? prepareSharedReferenceGenomes(
+                writableDatabaseServiceDatumPerRun,
+                runJournal
+            ) : null;
+            DatabaseCommitQueue databaseCommitQueue = new DatabaseCommitQueue(pluginExecutionService.getDatabaseExecutorService());
+            SamplePipeline.Options samplePipelineOptions = new SamplePipeline.Options();
+            samplePipelineOptions.numberOfThreads = numberOfThreads;
+            samplePipelineOptions.calculateContigsFlag = calculateContigsFlag;
+            samplePipelineOptions.useBuiltInMapperFlag = useBuiltInMapperFlag;
+            samplePipelineOptions.useNativeFastqReaderFlag = useNativeFastqReaderFlag;
+            samplePipelineOptions.importWhileStagingFlag = watchRunFlag;
+            samplePipelineOptions.incrementalAssemblyFlag = incrementalAssemblyFlag;
+            samplePipelineOptions.mergeChunksFlag = mergeOntChunksFlag;
+            samplePipelineOptions.decompressMergedChunksFlag = decompressMergedOntChunksFlag;
+            samplePipelineOptions.binReadsFlag = binReadsByReferenceFlag;
+            samplePipelineOptions.screenReadsFlag = screenReadsFlag;
+            samplePipelineOptions.downsamplingTargetDepth = downsamplingTargetDepth;
+            samplePipelineOptions.downsamplingSeed = downsamplingSeed;
+            samplePipelineOptions.assemblyMemoryBudgetInBytes = assemblyMemoryBudgetInBytes;
+            SamplePipeline samplePipeline = new SamplePipeline(
+                pluginExecutionService.getIoExecutorService(),
+                pluginExecutionService.getCpuExecutorService(numberOfThreads),
+                samplePipelineOptions,
+                defaultAccessionNumber,
+                referenceGenomesPerAccessionNumber,
+                sharedReferenceGenomesDatum,
+                stagingSession,
+                databaseCommitQueue,
+                runJournal,
+                progressListener
+            );
+            ChromeTraceRecorder chromeTraceRecorder = ChromeTraceRecorder.start(chromeTraceFilePath);
+            // FASTQ files are only queued as they are reported, so that the script never waits on a full pipe while files
+            // are copied and folders are created.
+            BlockingQueue<Map.Entry<String, String>> reportedFastqFiles = new LinkedBlockingQueue<>();
+            Future<Void> reportCompletion;
+            if (javaSampleSheetFlag) {
+                Map<String, String> sampleNamesPerFoundBarcode = sampleNamesPerBarcode;
+                Path ontNetworkPath = Paths.get(
+                    ontNetworkPrefix,
+                    fullRunName
+                );
+                reportCompletion = pluginExecutionService.getIoExecutorService().submit(() -> {
+                    try {
+                        walkOntRunFolder(
+                            pluginExecutionService.getIoExecutorService(),
+                            ontNetworkPath,
+                            ontFastqRegexPattern,
+                            sampleNamesPerFoundBarcode,
+                            watchRunFlag ? ontRunCompletionMarkerRegexPattern : null,
+                            watchPollIntervalInSeconds * 1000L,
+                            reportedFastqFiles,
+                            progressListener
+                        );
+                        return null;
+                    } finally {
+                        reportedFastqFiles.add(END_OF_REPORTED_FASTQ_FILES);
+                    }
+                });
+            } else {
+                PythonProcess pythonProcess = new PythonProcess(
+                    REPORT_ONT_FASTQ_FILE_PATHS_PYTHON_SCRIPT_NAME,
+                    pythonScriptsFolderPath.toAbsolutePath().toString(),
+                    (String pythonOutputLine) -> {
+                        String[] splitResults = pythonOutputLine.split("=>");
+                        reportedFastqFiles.add(Map.entry(
+                            splitResults[0],
+                            splitResults[1]
+                        ));
+                    }
+                );
+                reportCompletion = pluginExecutionService.getIoExecutorService().submit(() -> {
+                    try {
+                        Integer exitValue = pythonProcess.execute(
+                            true,
+                            String.format(
+                                "-r %s -e %s",
+                                fullRunName,
+                                wetLabExcelFilePath
+                            )
+                        );
+                        if (exitValue == null) {
+                            throw new DocumentOperationException("exitValue should never be null.");
+                        }
+                        pythonProcess.validateExitValue(exitValue);
+                        return null;
+                    } finally {
+                        reportedFastqFiles.add(END_OF_REPORTED_FASTQ_FILES);
+                    }
+                });
+            }
+            try {
+                Set<String> sealedSampleNames = new HashSet<>();
+                WritableDatabaseServiceDatum previousWritableDatabaseServiceDatumPerSample = null;
+                Map.Entry<String, String> reportedFastqFile;
+                while ((reportedFastqFile = reportedFastqFiles.take()) != END_OF_REPORTED_FASTQ_FILES) {
+                    String sampleName = reportedFastqFile.getKey();
+                    Path fastqFilePath = Paths.get(reportedFastqFile.getValue());
+                    if (sealedSampleNames.contains(sampleName)) {
+                        throw new DocumentOperationException(String.format(
+                            "Python script \"%s.py\" reported FASTQ file \"%s\" for sample \"%s\" after moving on to another sample.",
+                            REPORT_ONT_FASTQ_FILE_PATHS_PYTHON_SCRIPT_NAME,
+                            fastqFilePath,
+                            sampleName
+                        ));
+                    }
                     WritableDatabaseServiceDatum writableDatabaseServiceDatumPerSample;
                     if (writableDatabaseServiceDatumPerRun.children.containsKey(sampleName)) {
                         writableDatabaseServiceDatumPerSample = writableDatabaseServiceDatumPerRun.children.get(sampleName);
                     } else {
                         writableDatabaseServiceDatumPerSample = new WritableDatabaseServiceDatum(
-                            writableDatabaseServicePerRun.createChildFolder(sampleName),
+                            getOrCreateChildFolder(
+                                writableDatabaseServicePerRun,
+                                sampleName,
+                                resumeRunFlag
+                            ),
                             sampleName
                         );
                         writableDatabaseServiceDatumPerRun.children.put(
                             sampleName,
                             writableDatabaseServiceDatumPerSample
                         );
-                        writableDatabaseServiceDataForSamples.add(writableDatabaseServiceDatumPerSample);
+                        samplePipeline.addSample(writableDatabaseServiceDatumPerSample);
+                    }
+                    // The script reports each sample's files together, so a sample is complete once the next one starts
+                    // and can be imported while the script carries on. Files found by walking arrive in no such order.
+                    if (!javaSampleSheetFlag && previousWritableDatabaseServiceDatumPerSample != null && previousWritableDatabaseServiceDatumPerSample != writableDatabaseServiceDatumPerSample) {
+                        samplePipeline.sealSample(previousWritableDatabaseServiceDatumPerSample);
+                        sealedSampleNames.add(previousWritableDatabaseServiceDatumPerSample.sampleName);
                     }
-                    Path fastqFilePath = Paths.get(fastqFilePathString);
-                    Path copiedFilePath = temporaryDirectoryPath.resolve(fastqFilePath.getFileName());
-                    if (Files.size(fastqFilePath) != 0) {
-                        Files.copy(
+                    previousWritableDatabaseServiceDatumPerSample = writableDatabaseServiceDatumPerSample;
+                    // Files that the interrupted run being resumed already imported are skipped.
+                    if (!samplePipeline.isFastqFileImported(writableDatabaseServiceDatumPerSample, fastqFilePath)) {
+                        samplePipeline.stageFile(
+                            writableDatabaseServiceDatumPerSample,
                             fastqFilePath,
-                            copiedFilePath
+                            fastqFileProcessor
                         );
-                        writableDatabaseServiceDatumPerSample.rawFastqFiles.add(copiedFilePath.toFile());
-                        numberOfSubtasks.addAndGet(2);
                     }
                 }
-            );
-            Integer exitValue = pythonProcess.execute(
-                true,
-                String.format(
-                    "-r %s -e %s",
-                    fullRunName,
-                    wetLabExcelFilePath
-                )
-            );
-            if (exitValue == null) {
-                throw new DocumentOperationException("exitValue should never be null.");
+                try {
+                    reportCompletion.get();
+                } catch (ExecutionException executionException) {
+                    Throwable cause = executionException.getCause();
+                    if (cause instanceof DocumentOperationException) {
+                        throw (DocumentOperationException)cause;
+                    }
+                    throw new DocumentOperationException(cause);
+                }
+                samplePipeline.awaitCompletion();
+                databaseCommitQueue.flush();
+                copyReferenceGenomesIntoFinalAssemblies(
+                    writableDatabaseServiceDatumPerRun,
+                    samplePipeline.getAllReferenceGenomes(),
+                    shareReferenceGenomesFlag,
+                    databaseCommitQueue,
+                    runJournal
+                );
+            } finally {
+                reportCompletion.cancel(true);
+                samplePipeline.close();
+                databaseCommitQueue.close();
+                stagingSession.close();
+                runJournal.close();
+                if (chromeTraceRecorder != null) {
+                    chromeTraceRecorder.close();
+                }
             }
-            pythonProcess.validateExitValue(exitValue);
-
-            ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
-            validateAndCopyReferenceGenomes(
-                writableDatabaseServiceDataForSamples,
-                defaultAccessionNumber,
-                referenceGenomesPerAccessionNumber,
-                progressListener
-            );
-            importFastqFiles(
-                writableDatabaseServiceDataForSamples,
-                executorService,
-                progressListener
-            );
-            performAssemblies(
-                writableDatabaseServiceDataForSamples,
-                executorService,
-                writableDatabaseServiceDatumPerRun,
-                calculateContigsFlag,
-                progressListener
-            );
             long endTimeMs = System.currentTimeMillis();
             long elapsedTimeMs = endTimeMs - startTimeMs;
             long elapsedTimeS = elapsedTimeMs / 1000;
@@ -233,10 +587,116 @@ public class BeginOntRunOperation extends DocumentOperation {
                 elapsedTimeS / 60,
                 elapsedTimeS % 60
             );
-        } catch (InterruptedException | IOException | DatabaseServiceException | ExecutionException | DocumentImportException exception) {
+        } catch (InterruptedException | IOException | DatabaseServiceException | ExecutionException exception) {
             throw new DocumentOperationException(exception);
         }
 
         return returnValue;
     }
+
+    /**
+     * Queues the FASTQ files under ontNetworkPath whose barcodes belong to a sample on the sheet. When watching (that is,
+     * when completionMarkerRegexPattern isn't null), the folder is walked again every poll interval until a file
+     * matching the marker appears, and each FASTQ file is only queued once its size and modification time have stayed
+     * the same between two walks, so that chunks that are still being written are left for a later walk.
+     */
+    private static void walkOntRunFolder(
+        ExecutorService ioExecutorService,
+        Path ontNetworkPath,
+        Pattern ontFastqRegexPattern,
+        Map<String, String> sampleNamesPerBarcode,
+        Pattern completionMarkerRegexPattern,
+        long pollIntervalMs,
+        BlockingQueue<Map.Entry<String, String>> reportedFastqFiles,
+        ProgressListener progressListener
+    ) throws IOException, InterruptedException, DocumentOperationException {
+        boolean watchFlag = completionMarkerRegexPattern != null;
+        Set<Path> reportedPaths = new HashSet<>();
+        Map<Path, String> previousFileStatesPerPath = new HashMap<>();
+        while (true) {
+            boolean completedFlag = false;
+            Map<Path, String> fileStatesPerPath = new HashMap<>();
+            Map<Path, String> sampleNamesPerPath = new HashMap<>();
+            DirectoryWalker directoryWalker;
+            try {
+                directoryWalker = DirectoryWalker.start(
+                    ioExecutorService,
+                    ontNetworkPath,
+                    fileName -> ontFastqRegexPattern.matcher(fileName).matches() || (watchFlag && completionMarkerRegexPattern.matcher(fileName).matches())
+                );
+            } catch (NoSuchFileException noSuchFileException) {
+                if (!watchFlag) {
+                    throw noSuchFileException;
+                }
+                // Sequencing hasn't written anything yet.
+                directoryWalker = null;
+            }
+            if (directoryWalker != null) {
+                try (DirectoryWalker openDirectoryWalker = directoryWalker) {
+                    DirectoryWalker.FoundFile foundFile;
+                    while ((foundFile = openDirectoryWalker.take()) != null) {
+                        String fileName = foundFile.path.getFileName().toString();
+                        if (watchFlag && completionMarkerRegexPattern.matcher(fileName).matches()) {
+                            completedFlag = true;
+                            continue;
+                        }
+                        Matcher ontFastqFileNameMatcher = ontFastqRegexPattern.matcher(fileName);
+                        if (reportedPaths.contains(foundFile.path) || !ontFastqFileNameMatcher.matches()) {
+                            continue;
+                        }
+                        // Barcodes that aren't on the sheet, such as unclassified reads, belong to no sample.
+                        String sampleName = sampleNamesPerBarcode.get(WetLabSampleSheet.normalizeBarcode(ontFastqFileNameMatcher.group(1)));
+                        if (sampleName == null) {
+                            continue;
+                        }
+                        sampleNamesPerPath.put(
+                            foundFile.path,
+                            sampleName
+                        );
+                        fileStatesPerPath.put(
+                            foundFile.path,
+                            foundFile.basicFileAttributes.size() == 0 ? "" : String.format(
+                                "%d %d",
+                                foundFile.basicFileAttributes.size(),
+                                foundFile.basicFileAttributes.lastModifiedTime().toMillis()
+                            )
+                        );
+                    }
+                }
+            }
+            for (Map.Entry<Path, String> fileStatePerPath : fileStatesPerPath.entrySet()) {
+                Path path = fileStatePerPath.getKey();
+                // Once the marker is there, MinKNOW has finished writing every file.
+                boolean stableFlag = !watchFlag || completedFlag || (!fileStatePerPath.getValue().isEmpty() && fileStatePerPath.getValue().equals(previousFileStatesPerPath.get(path)));
+                if (stableFlag) {
+                    reportedPaths.add(path);
+                    reportedFastqFiles.add(Map.entry(
+                        sampleNamesPerPath.get(path),
+                        path.toString()
+                    ));
+                }
+            }
+            if (!watchFlag || completedFlag) {
+                return;
+            }
+            previousFileStatesPerPath = fileStatesPerPath;
+            progressListener.setMessage(String.format(
+                "Watching \"%s\": %d FASTQ file(s) queued so far, waiting for the run to finish",
+                ontNetworkPath,
+                reportedPaths.size()
+            ));
+            for (long waitedMs = 0; waitedMs < pollIntervalMs; waitedMs += 1000) {
+                if (progressListener.isCanceled()) {
+                    throw new DocumentOperationException(String.format(
+                        "Stopped watching \"%s\" before the run finished.",
+                        ontNetworkPath
+                    ));
+                }
+                Thread.sleep(Math.min(
+                    1000,
+                    pollIntervalMs - waitedMs
+                ));
+            }
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Picks reference genomes out of a VPipe _Blast-NT.json file without starting Python.
+ * <p>
+ * The file is tokenized as it is read, without building a tree, and every string value of the accession key is matched
+ * against the names of the reference genomes that were given to the operation. Accession numbers match with or without
+ * their version suffix.
+ */
+class BlastJsonAccessionReader {
+    private static final Pattern VERSION_SUFFIX_PATTERN = Pattern.compile("\\.\\d+$");
+
+    private enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        LITERAL,
+        END
+    }
+
+    private static final class JsonTokenizer {
+        private final Reader reader;
+        private final char[] buffer = new char[1 << 16];
+        private int position = 0;
+        private int limit = 0;
+        private final StringBuilder text = new StringBuilder();
+
+        JsonTokenizer(Reader reader) {
+            this.reader = reader;
+        }
+
+        Token next() throws IOException {
+            int c = nextNonSeparator();
+            switch (c) {
+                case -1:
+                    return Token.END;
+                case '{':
+                    return Token.BEGIN_OBJECT;
+                case '}':
+                    return Token.END_OBJECT;
+                case '[':
+                    return Token.BEGIN_ARRAY;
+                case ']':
+                    return Token.END_ARRAY;
+                case '"':
+                    readString();
+                    // A string followed by a colon is a name rather than a value.
+                    if (peekNonWhitespace() == ':') {
+                        this.position++;
+                        return Token.NAME;
+                    }
+                    return Token.STRING;
+                default:
+                    readLiteral((char)c);
+                    return Token.LITERAL;
+            }
+        }
+
+        String getText() {
+            return this.text.toString();
+        }
+
+        private int read() throws IOException {
+            if (this.position == this.limit) {
+                this.limit = this.reader.read(this.buffer);
+                this.position = 0;
+                if (this.limit <= 0) {
+                    this.limit = 0;
+                    return -1;
+                }
+            }
+            return this.buffer[this.position++];
+        }
+
+        private int peekNonWhitespace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c != -1 && Character.isWhitespace(c));
+            if (c != -1) {
+                this.position--;
+            }
+            return c;
+        }
+
+        private int nextNonSeparator() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ',' || c == ':' || (c != -1 && Character.isWhitespace(c)));
+            return c;
+        }
+
+        private void readString() throws IOException {
+            this.text.setLength(0);
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    throw new IOException("JSON ended in the middle of a string.");
+                }
+                if (c == '"') {
+                    return;
+                }
+                if (c != '\\') {
+                    this.text.append((char)c);
+                    continue;
+                }
+                int escaped = read();
+                switch (escaped) {
+                    case 'b':
+                        this.text.append('\b');
+                        break;
+                    case 'f':
+                        this.text.append('\f');
+                        break;
+                    case 'n':
+                        this.text.append('\n');
+                        break;
+                    case 'r':
+                        this.text.append('\r');
+                        break;
+                    case 't':
+                        this.text.append('\t');
+                        break;
+                    case 'u':
+                        int codeUnit = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit == -1) {
+                                throw new IOException("JSON has an invalid \\u escape.");
+                            }
+                            codeUnit = (codeUnit << 4) | digit;
+                        }
+                        this.text.append((char)codeUnit);
+                        break;
+                    case -1:
+                        throw new IOException("JSON ended in the middle of a string.");
+                    default:
+                        this.text.append((char)escaped);
+                        break;
+                }
+            }
+        }
+
+        private void readLiteral(char first) throws IOException {
+            this.text.setLength(0);
+            this.text.append(first);
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    return;
+                }
+                if (c == ',' || c == ':' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    this.position--;
+                    return;
+                }
+                this.text.append((char)c);
+            }
+        }
+    }
+
+    private BlastJsonAccessionReader() {
+        // Do nothing.
+    }
+
+    /**
+     * Returns the names of the reference genomes whose accession numbers appear as values of accessionKey, in the order
+     * they first appear.
+     */
+    static Set<String> readAccessionNumbers(
+        Path jsonFilePath,
+        String accessionKey,
+        Collection<String> referenceGenomeNames
+    ) throws IOException {
+        Map<String, String> referenceGenomeNamesPerUnversionedAccessionNumber = new HashMap<>();
+        for (String referenceGenomeName : referenceGenomeNames) {
+            referenceGenomeNamesPerUnversionedAccessionNumber.putIfAbsent(
+                VERSION_SUFFIX_PATTERN.matcher(referenceGenomeName).replaceFirst(""),
+                referenceGenomeName
+            );
+        }
+        Set<String> accessionNumbers = new LinkedHashSet<>();
+        try (Reader reader = Files.newBufferedReader(jsonFilePath, StandardCharsets.UTF_8)) {
+            JsonTokenizer jsonTokenizer = new JsonTokenizer(reader);
+            boolean accessionValueFlag = false;
+            Token token;
+            while ((token = jsonTokenizer.next()) != Token.END) {
+                if (token == Token.NAME) {
+                    accessionValueFlag = accessionKey.equals(jsonTokenizer.getText());
+                    continue;
+                }
+                if (token == Token.STRING && accessionValueFlag) {
+                    String accessionNumber = jsonTokenizer.getText().trim();
+                    String referenceGenomeName = referenceGenomeNames.contains(accessionNumber) ? accessionNumber : referenceGenomeNamesPerUnversionedAccessionNumber.get(VERSION_SUFFIX_PATTERN.matcher(accessionNumber).replaceFirst(""));
+                    if (referenceGenomeName != null) {
+                        accessionNumbers.add(referenceGenomeName);
+                    }
+                }
+                accessionValueFlag = false;
+            }
+        }
+        return accessionNumbers;
+    }
+}
@@ -0,0 +1,141 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects every {@link StageTimer} closed while it is recording, on any thread, and writes them as a Chrome
+ * trace-event JSON file (viewable in chrome://tracing or Perfetto) with one row per thread.
+ * <p>
+ * Work from other runs going on at the same time is recorded too, since the threads are shared.
+ */
+final class ChromeTraceRecorder implements AutoCloseable {
+    private static final List<ChromeTraceRecorder> activeChromeTraceRecorders = new CopyOnWriteArrayList<>();
+
+    private final Path chromeTraceFilePath;
+    private final long originTimeNs;
+    private final Queue<String> traceEvents = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threadNamesPerThreadId = new ConcurrentHashMap<>();
+
+    private ChromeTraceRecorder(Path chromeTraceFilePath) {
+        this.chromeTraceFilePath = chromeTraceFilePath;
+        this.originTimeNs = System.nanoTime();
+    }
+
+    /**
+     * Starts recording into chromeTraceFilePath, or returns null if chromeTraceFilePathString is blank.
+     */
+    static ChromeTraceRecorder start(String chromeTraceFilePathString) {
+        if (chromeTraceFilePathString == null || chromeTraceFilePathString.isBlank()) {
+            return null;
+        }
+        ChromeTraceRecorder chromeTraceRecorder = new ChromeTraceRecorder(Path.of(chromeTraceFilePathString));
+        activeChromeTraceRecorders.add(chromeTraceRecorder);
+        return chromeTraceRecorder;
+    }
+
+    static void record(
+        String stage,
+        String sampleName,
+        String type,
+        long bytes,
+        long readCount,
+        long startTimeNs,
+        long endTimeNs
+    ) {
+        if (activeChromeTraceRecorders.isEmpty()) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        for (ChromeTraceRecorder chromeTraceRecorder : activeChromeTraceRecorders) {
+            chromeTraceRecorder.threadNamesPerThreadId.putIfAbsent(
+                thread.getId(),
+                thread.getName()
+            );
+            chromeTraceRecorder.traceEvents.add(String.format(
+                Locale.ROOT,
+                "{\"name\":%s,\"cat\":%s,\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d,\"args\":{\"sample\":%s,\"type\":%s,\"bytes\":%d,\"readCount\":%d}}",
+                quote(sampleName == null ? stage : String.format(
+                    "%s %s",
+                    stage,
+                    sampleName
+                )),
+                quote(stage),
+                (startTimeNs - chromeTraceRecorder.originTimeNs) / 1000.0,
+                (endTimeNs - startTimeNs) / 1000.0,
+                thread.getId(),
+                quote(sampleName),
+                quote(type),
+                bytes,
+                readCount
+            ));
+        }
+    }
+
+    /**
+     * Stops recording and writes the trace.
+     */
+    @Override
+    public void close() throws IOException {
+        activeChromeTraceRecorders.remove(this);
+        Path parentPath = this.chromeTraceFilePath.toAbsolutePath().getParent();
+        if (parentPath != null) {
+            Files.createDirectories(parentPath);
+        }
+        try (BufferedWriter bufferedWriter = Files.newBufferedWriter(
+            this.chromeTraceFilePath,
+            StandardCharsets.UTF_8
+        )) {
+            bufferedWriter.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            String separator = "\n";
+            for (Map.Entry<Long, String> threadNamePerThreadId : this.threadNamesPerThreadId.entrySet()) {
+                bufferedWriter.write(separator);
+                bufferedWriter.write(String.format(
+                    "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}}",
+                    threadNamePerThreadId.getKey(),
+                    quote(threadNamePerThreadId.getValue())
+                ));
+                separator = ",\n";
+            }
+            for (String traceEvent : this.traceEvents) {
+                bufferedWriter.write(separator);
+                bufferedWriter.write(traceEvent);
+                separator = ",\n";
+            }
+            bufferedWriter.write("\n]}\n");
+        }
+        System.out.printf(
+            "Wrote %d trace events to \"%s\"%n",
+            this.traceEvents.size(),
+            this.chromeTraceFilePath
+        );
+    }
+
+    private static String quote(String string) {
+        if (string == null) {
+            return "null";
+        }
+        StringBuilder stringBuilder = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char character = string.charAt(i);
+            if (character == '"' || character == '\\') {
+                stringBuilder.append('\\').append(character);
+            } else if (character < 0x20) {
+                stringBuilder.append(String.format(
+                    "\\u%04x",
+                    (int)character
+                ));
+            } else {
+                stringBuilder.append(character);
+            }
+        }
+        return stringBuilder.append('"').toString();
+    }
+}
@@ -44,9 +44,29 @@ public class CommonGeneiousKeys {
     public static final int DEFAULT_NUMBER_OF_THREADS = MAXIMUM_NUMBER_OF_THREADS;
     public static final String NUMBER_OF_THREADS_KEY = "numberOfThreads";
     public static final String NUMBER_OF_THREADS_LABEL = "Number of threads";
+    public static final int MINIMUM_NUMBER_OF_COPY_THREADS = 1;
+    public static final int MAXIMUM_NUMBER_OF_COPY_THREADS = 64;
+    public static final int DEFAULT_NUMBER_OF_COPY_THREADS = 8;
+    public static final String NUMBER_OF_COPY_THREADS_KEY = "numberOfCopyThreads";
+    public static final String NUMBER_OF_COPY_THREADS_LABEL = "Number of network-copy threads";
+    public static final String USE_NATIVE_FASTQ_READER_FLAG_KEY = "useNativeFastqReaderFlag";
+    public static final String USE_NATIVE_FASTQ_READER_FLAG_LABEL = "Use built-in FASTQ reader?";
+    public static final boolean DEFAULT_USE_NATIVE_FASTQ_READER_FLAG = false;
+    public static final String READ_FASTQ_FILES_IN_PLACE_FLAG_KEY = "readFastqFilesInPlaceFlag";
+    public static final String READ_FASTQ_FILES_IN_PLACE_FLAG_LABEL = "Read FASTQ files in place (built-in reader only)?";
+    public static final boolean DEFAULT_READ_FASTQ_FILES_IN_PLACE_FLAG = false;
+    public static final String BATCH_GENOME_TYPING_FLAG_KEY = "batchGenomeTypingFlag";
+    public static final String BATCH_GENOME_TYPING_FLAG_LABEL = "Type all .json files in one Python process (script must accept -l)?";
+    public static final boolean DEFAULT_BATCH_GENOME_TYPING_FLAG = false;
+    public static final String JAVA_GENOME_TYPING_FLAG_KEY = "javaGenomeTypingFlag";
+    public static final String JAVA_GENOME_TYPING_FLAG_LABEL = "Read .json files in Java instead of Python?";
+    public static final boolean DEFAULT_JAVA_GENOME_TYPING_FLAG = false;
+    public static final String BLAST_JSON_ACCESSION_KEY_KEY = "blastJsonAccessionKey";
+    public static final String BLAST_JSON_ACCESSION_KEY_LABEL = "Blast-NT .json accession key";
+    public static final String DEFAULT_BLAST_JSON_ACCESSION_KEY = "accession";
     public static final String FILE_SEPARATOR_FOR_REGEX = File.separator.equals("\\") ? "\\\\" : File.separator;
     public static final String DEFAULT_ILLUMINA_FASTQ_REGEX = String.format(
-        "(?:^|%s)([^%s]+?)(?:_S\\d+)?(?:_L\\d+)?-trim\\.dedup\\.R[12]\\.fq$",
+        "(?:^|%s)([^%s]+?)(?:_S\\d+)?(?:_L\\d+)?-trim\\.dedup\\.R[12]\\.(?:fq|fastq)(?:\\.gz)?$",
         FILE_SEPARATOR_FOR_REGEX,
         FILE_SEPARATOR_FOR_REGEX
     );
@@ -65,4 +85,100 @@ public class CommonGeneiousKeys {
     public static final String INTERACT_WITH_FINAL_ANALYSIS_DOCUMENT_PYTHON_SCRIPT_NAME = "interact_with_final_analysis_document";
     public static final String CODE_FOR_GRADE_FIELD = "grade";
     public static final String CODE_FOR_QUERY_COVERAGE_FIELD = "queryCoverage";
+    public static final long BYTES_PER_GIGABYTE = 1L << 30;
+    public static final String STAGING_CACHE_FOLDER_PATH_KEY = "stagingCacheFolderPath";
+    public static final String STAGING_CACHE_FOLDER_PATH_LABEL = "Staging-cache folder path";
+    public static final String DEFAULT_STAGING_CACHE_FOLDER_PATH = String.join(
+        File.separator,
+        System.getProperty("user.home"),
+        "PPBAutomation",
+        "stagingCache"
+    );
+    public static final String STAGING_CACHE_BUDGET_IN_GIGABYTES_KEY = "stagingCacheBudgetInGigabytes";
+    public static final String STAGING_CACHE_BUDGET_IN_GIGABYTES_LABEL = "Staging-cache budget (GB)";
+    public static final int MINIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES = 1;
+    public static final int MAXIMUM_STAGING_CACHE_BUDGET_IN_GIGABYTES = 10000;
+    public static final int DEFAULT_STAGING_CACHE_BUDGET_IN_GIGABYTES = 100;
+    public static final String DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_KEY = "deleteStagedFilesAfterImportFlag";
+    public static final String DELETE_STAGED_FILES_AFTER_IMPORT_FLAG_LABEL = "Delete staged files once imported?";
+    public static final boolean DEFAULT_DELETE_STAGED_FILES_AFTER_IMPORT_FLAG = false;
+    public static final String RUN_JOURNAL_FOLDER_PATH_KEY = "runJournalFolderPath";
+    public static final String RUN_JOURNAL_FOLDER_PATH_LABEL = "Run-journal folder path";
+    public static final String DEFAULT_RUN_JOURNAL_FOLDER_PATH = String.join(
+        File.separator,
+        System.getProperty("user.home"),
+        "PPBAutomation",
+        "runJournals"
+    );
+    public static final String RESUME_RUN_FLAG_KEY = "resumeRunFlag";
+    public static final String RESUME_RUN_FLAG_LABEL = "Resume an interrupted run?";
+    public static final boolean DEFAULT_RESUME_RUN_FLAG = false;
+    public static final String SHARE_REFERENCE_GENOMES_FLAG_KEY = "shareReferenceGenomesFlag";
+    public static final String SHARE_REFERENCE_GENOMES_FLAG_LABEL = "Store each reference genome once per run?";
+    public static final boolean DEFAULT_SHARE_REFERENCE_GENOMES_FLAG = false;
+    public static final String CHROME_TRACE_FILE_PATH_KEY = "chromeTraceFilePath";
+    public static final String CHROME_TRACE_FILE_PATH_LABEL = "Chrome-trace file path (blank for none)";
+    public static final String DEFAULT_CHROME_TRACE_FILE_PATH = "";
+    public static final String JAVA_SAMPLE_SHEET_FLAG_KEY = "javaSampleSheetFlag";
+    public static final String JAVA_SAMPLE_SHEET_FLAG_LABEL = "Read the wet-lab Excel file in Java instead of Python?";
+    public static final boolean DEFAULT_JAVA_SAMPLE_SHEET_FLAG = false;
+    public static final String WET_LAB_SAMPLE_COLUMN_REGEX_KEY = "wetLabSampleColumnRegex";
+    public static final String WET_LAB_SAMPLE_COLUMN_REGEX_LABEL = "Wet-lab sample-column header regex";
+    public static final String DEFAULT_WET_LAB_SAMPLE_COLUMN_REGEX = "(?i)sample.*";
+    public static final String WET_LAB_BARCODE_COLUMN_REGEX_KEY = "wetLabBarcodeColumnRegex";
+    public static final String WET_LAB_BARCODE_COLUMN_REGEX_LABEL = "Wet-lab barcode-column header regex";
+    public static final String DEFAULT_WET_LAB_BARCODE_COLUMN_REGEX = "(?i)barcode.*";
+    public static final String WET_LAB_RUN_COLUMN_REGEX_KEY = "wetLabRunColumnRegex";
+    public static final String WET_LAB_RUN_COLUMN_REGEX_LABEL = "Wet-lab run-column header regex";
+    public static final String DEFAULT_WET_LAB_RUN_COLUMN_REGEX = "(?i)run.*";
+    public static final String ONT_NETWORK_PREFIX_KEY = "ontNetworkPrefix";
+    public static final String ONT_NETWORK_PREFIX_LABEL = "ONT network prefix (Java sample sheet only)";
+    public static final String DEFAULT_ONT_NETWORK_PREFIX = "";
+    public static final String ONT_FASTQ_REGEX_KEY = "ontFastqRegex";
+    public static final String ONT_FASTQ_REGEX_LABEL = "ONT FASTQ file-name regex (group 1 is the barcode)";
+    public static final String DEFAULT_ONT_FASTQ_REGEX = "^.*_pass_(barcode\\d+)_.*\\.(?:fq|fastq)(?:\\.gz)?$";
+    public static final String WATCH_RUN_FLAG_KEY = "watchRunFlag";
+    public static final String WATCH_RUN_FLAG_LABEL = "Watch the run folder until sequencing finishes?";
+    public static final boolean DEFAULT_WATCH_RUN_FLAG = false;
+    public static final String WATCH_POLL_INTERVAL_IN_SECONDS_KEY = "watchPollIntervalInSeconds";
+    public static final String WATCH_POLL_INTERVAL_IN_SECONDS_LABEL = "Run-folder poll interval (s)";
+    public static final int MINIMUM_WATCH_POLL_INTERVAL_IN_SECONDS = 5;
+    public static final int MAXIMUM_WATCH_POLL_INTERVAL_IN_SECONDS = 3600;
+    public static final int DEFAULT_WATCH_POLL_INTERVAL_IN_SECONDS = 60;
+    public static final String ONT_RUN_COMPLETION_MARKER_REGEX_KEY = "ontRunCompletionMarkerRegex";
+    public static final String ONT_RUN_COMPLETION_MARKER_REGEX_LABEL = "ONT run-completion marker file-name regex";
+    public static final String DEFAULT_ONT_RUN_COMPLETION_MARKER_REGEX = "^final_summary_.*\\.txt$";
+    public static final String INCREMENTAL_ASSEMBLY_FLAG_KEY = "incrementalAssemblyFlag";
+    public static final String INCREMENTAL_ASSEMBLY_FLAG_LABEL = "Only assemble reads not already in the sample's pileup?";
+    public static final boolean DEFAULT_INCREMENTAL_ASSEMBLY_FLAG = false;
+    public static final String MERGE_ONT_CHUNKS_FLAG_KEY = "mergeOntChunksFlag";
+    public static final String MERGE_ONT_CHUNKS_FLAG_LABEL = "Merge each barcode's FASTQ chunks before import?";
+    public static final boolean DEFAULT_MERGE_ONT_CHUNKS_FLAG = false;
+    public static final String DECOMPRESS_MERGED_ONT_CHUNKS_FLAG_KEY = "decompressMergedOntChunksFlag";
+    public static final String DECOMPRESS_MERGED_ONT_CHUNKS_FLAG_LABEL = "Inflate gzipped chunks while merging?";
+    public static final boolean DEFAULT_DECOMPRESS_MERGED_ONT_CHUNKS_FLAG = false;
+    public static final String BIN_READS_BY_REFERENCE_FLAG_KEY = "binReadsByReferenceFlag";
+    public static final String BIN_READS_BY_REFERENCE_FLAG_LABEL = "Assemble each read only against its best-matching reference?";
+    public static final boolean DEFAULT_BIN_READS_BY_REFERENCE_FLAG = false;
+    public static final String USE_BUILT_IN_MAPPER_FLAG_KEY = "useBuiltInMapperFlag";
+    public static final String USE_BUILT_IN_MAPPER_FLAG_LABEL = "Map reads with the built-in mapper instead of the Geneious assembler?";
+    public static final boolean DEFAULT_USE_BUILT_IN_MAPPER_FLAG = false;
+    public static final String SCREEN_READS_FLAG_KEY = "screenReadsFlag";
+    public static final String SCREEN_READS_FLAG_LABEL = "Import only reads that share k-mers with the run's reference genomes?";
+    public static final boolean DEFAULT_SCREEN_READS_FLAG = false;
+    public static final String DOWNSAMPLING_TARGET_DEPTH_KEY = "downsamplingTargetDepth";
+    public static final String DOWNSAMPLING_TARGET_DEPTH_LABEL = "Downsample reads to this depth before assembly (0 for none)";
+    public static final int MINIMUM_DOWNSAMPLING_TARGET_DEPTH = 0;
+    public static final int MAXIMUM_DOWNSAMPLING_TARGET_DEPTH = 1000000;
+    public static final int DEFAULT_DOWNSAMPLING_TARGET_DEPTH = 0;
+    public static final String DOWNSAMPLING_SEED_KEY = "downsamplingSeed";
+    public static final String DOWNSAMPLING_SEED_LABEL = "Downsampling seed";
+    public static final int MINIMUM_DOWNSAMPLING_SEED = 0;
+    public static final int MAXIMUM_DOWNSAMPLING_SEED = Integer.MAX_VALUE;
+    public static final int DEFAULT_DOWNSAMPLING_SEED = 1;
+    public static final String ASSEMBLY_HEAP_BUDGET_PERCENTAGE_KEY = "assemblyHeapBudgetPercentage";
+    public static final String ASSEMBLY_HEAP_BUDGET_PERCENTAGE_LABEL = "Heap for concurrent assemblies (% of maximum heap)";
+    public static final int MINIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE = 10;
+    public static final int MAXIMUM_ASSEMBLY_HEAP_BUDGET_PERCENTAGE = 100;
+    public static final int DEFAULT_ASSEMBLY_HEAP_BUDGET_PERCENTAGE = 60;
 }
@@ -0,0 +1,351 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.databaseservice.DatabaseServiceException;
+import com.biomatters.geneious.publicapi.databaseservice.WritableDatabaseService;
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+import jebl.util.ProgressListener;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Funnels every document write of a Begin run through the plugin's single database thread, so that worker threads
+ * hand their documents over and carry on instead of queueing up on the local database.
+ * <p>
+ * Whatever has been submitted by the time the writer is free is taken as one batch, and the batch is written one
+ * target folder at a time. Documents are named before they are copied, because renaming a copy afterwards doesn't
+ * reliably stick. Resolving a folder is retried with exponential backoff before the run is failed. Copying a document
+ * isn't, since a copy that reported a failure may still have been written; instead, the copies that a failed commit
+ * had already written are removed, so that a resumed run writes the whole commit again.
+ */
+class DatabaseCommitQueue {
+    private static final int MAXIMUM_BATCH_SIZE = 256;
+    private static final int MAXIMUM_NUMBER_OF_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 200;
+
+    interface FolderResolver {
+        WritableDatabaseService resolve() throws DatabaseServiceException;
+    }
+
+    interface CommitCallback {
+        void committed(List<AnnotatedPluginDocument> documentCopies) throws Exception;
+    }
+
+    private interface DatabaseRead<T> {
+        T read() throws DatabaseServiceException;
+    }
+
+    private static final class Commit {
+        final FolderResolver folderResolver;
+        final List<AnnotatedPluginDocument> documents;
+        final String documentName;
+        final StageTimer stageTimer;
+        final CommitCallback commitCallback;
+        final CompletableFuture<List<AnnotatedPluginDocument>> completion = new CompletableFuture<>();
+
+        Commit(
+            FolderResolver folderResolver,
+            List<AnnotatedPluginDocument> documents,
+            String documentName,
+            StageTimer stageTimer,
+            CommitCallback commitCallback
+        ) {
+            this.folderResolver = folderResolver;
+            this.documents = documents;
+            this.documentName = documentName;
+            this.stageTimer = stageTimer;
+            this.commitCallback = commitCallback;
+        }
+    }
+
+    private final BlockingQueue<Commit> pendingCommits = new LinkedBlockingQueue<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final ExecutorService databaseExecutorService;
+    // Set while a write of this queue is scheduled on, or running on, the database thread.
+    private final AtomicBoolean writeScheduledFlag = new AtomicBoolean(false);
+    private volatile boolean closedFlag = false;
+    private Thread writer;
+    private volatile Consumer<Throwable> failureListener = throwable -> {};
+
+    /**
+     * The database executor is shared with every other run, so each queue only holds its thread while it has commits
+     * to write.
+     */
+    DatabaseCommitQueue(ExecutorService databaseExecutorService) {
+        this.databaseExecutorService = databaseExecutorService;
+    }
+
+    /**
+     * Sets what is told about the first failed commit, so that the rest of the run can stop early.
+     */
+    void setFailureListener(Consumer<Throwable> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    CompletableFuture<List<AnnotatedPluginDocument>> commit(
+        WritableDatabaseService writableDatabaseService,
+        List<AnnotatedPluginDocument> documents,
+        String documentName,
+        StageTimer stageTimer,
+        CommitCallback commitCallback
+    ) {
+        return commit(
+            () -> writableDatabaseService,
+            documents,
+            documentName,
+            stageTimer,
+            commitCallback
+        );
+    }
+
+    /**
+     * Queues copies of documents for the folder returned by folderResolver, which is called on the writer thread so
+     * that folders can be created there too. If documentName isn't null, every document is given that name first. The
+     * stage timer, if any, is started when the writer gets to the commit and closed once it is done. The callback, if
+     * any, runs on the writer thread once the copies exist.
+     */
+    CompletableFuture<List<AnnotatedPluginDocument>> commit(
+        FolderResolver folderResolver,
+        List<AnnotatedPluginDocument> documents,
+        String documentName,
+        StageTimer stageTimer,
+        CommitCallback commitCallback
+    ) {
+        Commit commit = new Commit(
+            folderResolver,
+            documents,
+            documentName,
+            stageTimer,
+            commitCallback
+        );
+        if (this.closedFlag) {
+            commit.completion.completeExceptionally(new IllegalStateException("The database commit queue has been closed."));
+            return commit.completion;
+        }
+        this.pendingCommits.add(commit);
+        scheduleWrite();
+        return commit.completion;
+    }
+
+    /**
+     * Waits for everything queued so far to be written, and throws the first failure if any write failed.
+     */
+    void flush() throws DocumentOperationException, InterruptedException {
+        try {
+            commit(
+                () -> null,
+                List.of(),
+                null,
+                null,
+                null
+            ).get();
+        } catch (ExecutionException executionException) {
+            // The first failure is reported below.
+        }
+        Throwable throwable = this.failure.get();
+        if (throwable != null) {
+            if (throwable instanceof DocumentOperationException) {
+                throw (DocumentOperationException)throwable;
+            }
+            throw new DocumentOperationException(throwable);
+        }
+    }
+
+    void close() {
+        this.closedFlag = true;
+        synchronized (this) {
+            if (this.writer != null) {
+                this.writer.interrupt();
+            }
+        }
+        failPendingCommits(new InterruptedException("The database commit queue has been closed."));
+    }
+
+    private void scheduleWrite() {
+        if (!this.closedFlag && this.writeScheduledFlag.compareAndSet(false, true)) {
+            this.databaseExecutorService.execute(this::write);
+        }
+    }
+
+    private void write() {
+        synchronized (this) {
+            this.writer = Thread.currentThread();
+        }
+        List<Commit> batch = new ArrayList<>();
+        try {
+            while (!this.closedFlag && this.pendingCommits.drainTo(batch, MAXIMUM_BATCH_SIZE) > 0) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException interruptedException) {
+            // The queue has been closed.
+            for (Commit commit : batch) {
+                commit.completion.completeExceptionally(interruptedException);
+            }
+            failPendingCommits(interruptedException);
+        } finally {
+            synchronized (this) {
+                this.writer = null;
+                // Clear the interrupt so that it isn't carried into whatever the database thread runs next.
+                Thread.interrupted();
+            }
+            this.writeScheduledFlag.set(false);
+        }
+        // A commit added after the last drain but before the flag was cleared would otherwise wait forever.
+        if (!this.pendingCommits.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    private void writeBatch(List<Commit> batch) throws InterruptedException {
+        Map<WritableDatabaseService, List<Commit>> commitsPerFolder = new LinkedHashMap<>();
+        List<Commit> commitsWithoutFolder = new ArrayList<>();
+        for (Commit commit : batch) {
+            if (this.failure.get() != null) {
+                commit.completion.completeExceptionally(this.failure.get());
+                continue;
+            }
+            try {
+                WritableDatabaseService writableDatabaseService = withRetries(commit.folderResolver::resolve);
+                if (writableDatabaseService == null) {
+                    commitsWithoutFolder.add(commit);
+                    continue;
+                }
+                commitsPerFolder.computeIfAbsent(
+                    writableDatabaseService,
+                    key -> new ArrayList<>()
+                ).add(commit);
+            } catch (DatabaseServiceException | RuntimeException exception) {
+                fail(commit, exception);
+            }
+        }
+        for (Map.Entry<WritableDatabaseService, List<Commit>> commitsForFolder : commitsPerFolder.entrySet()) {
+            for (Commit commit : commitsForFolder.getValue()) {
+                writeCommit(
+                    commitsForFolder.getKey(),
+                    commit
+                );
+            }
+        }
+        // These only mark a point in the queue, so they are completed after everything batched with them.
+        for (Commit commit : commitsWithoutFolder) {
+            writeCommit(
+                null,
+                commit
+            );
+        }
+    }
+
+    private void failPendingCommits(Throwable throwable) {
+        Commit commit;
+        while ((commit = this.pendingCommits.poll()) != null) {
+            commit.completion.completeExceptionally(throwable);
+        }
+    }
+
+    private void writeCommit(
+        WritableDatabaseService writableDatabaseService,
+        Commit commit
+    ) throws InterruptedException {
+        if (this.failure.get() != null) {
+            commit.completion.completeExceptionally(this.failure.get());
+            return;
+        }
+        if (commit.stageTimer != null) {
+            commit.stageTimer.start();
+        }
+        try {
+            List<AnnotatedPluginDocument> documentCopies = new ArrayList<>();
+            try {
+                for (AnnotatedPluginDocument document : commit.documents) {
+                    if (commit.documentName != null) {
+                        document.setName(commit.documentName);
+                    }
+                    documentCopies.add(writableDatabaseService.addDocumentCopy(
+                        document,
+                        ProgressListener.EMPTY
+                    ));
+                }
+            } catch (DatabaseServiceException | RuntimeException exception) {
+                removeDocumentCopies(
+                    writableDatabaseService,
+                    documentCopies
+                );
+                throw exception;
+            }
+            if (commit.commitCallback != null) {
+                commit.commitCallback.committed(documentCopies);
+            }
+            commit.completion.complete(documentCopies);
+        } catch (InterruptedException interruptedException) {
+            commit.completion.completeExceptionally(interruptedException);
+            throw interruptedException;
+        } catch (Exception exception) {
+            fail(commit, exception);
+        } finally {
+            if (commit.stageTimer != null) {
+                commit.stageTimer.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the copies that a commit wrote before it failed. Any that can't be removed are left for a resumed run to
+     * remove, since the journal never records them.
+     */
+    private static void removeDocumentCopies(
+        WritableDatabaseService writableDatabaseService,
+        List<AnnotatedPluginDocument> documentCopies
+    ) {
+        for (AnnotatedPluginDocument documentCopy : documentCopies) {
+            try {
+                writableDatabaseService.removeDocument(documentCopy);
+            } catch (DatabaseServiceException | RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Only for calls that can safely be repeated, such as resolving a folder that is looked up before it is created.
+     */
+    private <T> T withRetries(DatabaseRead<T> databaseRead) throws DatabaseServiceException, InterruptedException {
+        long backoffMs = INITIAL_BACKOFF_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return databaseRead.read();
+            } catch (DatabaseServiceException databaseServiceException) {
+                if (attempt == MAXIMUM_NUMBER_OF_ATTEMPTS) {
+                    throw databaseServiceException;
+                }
+                System.out.printf(
+                    "Database folder lookup failed (attempt %d / %d), retrying in %d ms: %s%n",
+                    attempt,
+                    MAXIMUM_NUMBER_OF_ATTEMPTS,
+                    backoffMs,
+                    databaseServiceException.getMessage()
+                );
+                Thread.sleep(backoffMs);
+                backoffMs *= 2;
+            }
+        }
+    }
+
+    private void fail(
+        Commit commit,
+        Throwable throwable
+    ) {
+        commit.completion.completeExceptionally(throwable);
+        if (this.failure.compareAndSet(null, throwable)) {
+            this.failureListener.accept(throwable);
+        }
+    }
+}
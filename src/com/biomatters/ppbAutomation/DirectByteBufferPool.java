@@ -0,0 +1,35 @@
+package com.biomatters.ppbAutomation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reuses direct buffers between FASTQ reads, because allocating them is slow and they are only freed by the garbage
+ * collector.
+ */
+class DirectByteBufferPool {
+    static final int BUFFER_SIZE = 4 << 20;
+    private static final int MAXIMUM_NUMBER_OF_POOLED_BUFFERS = 64;
+    private static final BlockingQueue<ByteBuffer> pooledByteBuffers = new ArrayBlockingQueue<>(MAXIMUM_NUMBER_OF_POOLED_BUFFERS);
+
+    private DirectByteBufferPool() {
+        // Do nothing.
+    }
+
+    static ByteBuffer acquire() {
+        ByteBuffer byteBuffer = pooledByteBuffers.poll();
+        if (byteBuffer == null) {
+            byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        byteBuffer.clear();
+        return byteBuffer;
+    }
+
+    static void release(ByteBuffer byteBuffer) {
+        if (byteBuffer != null && byteBuffer.isDirect() && byteBuffer.capacity() == BUFFER_SIZE) {
+            // If the pool is already full, the buffer is left for the garbage collector.
+            pooledByteBuffers.offer(byteBuffer);
+        }
+    }
+}
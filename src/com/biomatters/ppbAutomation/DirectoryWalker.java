@@ -0,0 +1,180 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree with several directories listed at once, handing over each matching file as soon as it is
+ * found instead of after the whole tree has been listed.
+ * <p>
+ * Every entry's attributes are read once, with readAttributes, rather than with separate isRegularFile and size calls,
+ * each of which is a round trip on a network share. On Windows the attributes come with the directory listing, so
+ * reading them costs nothing. Symbolic links aren't followed, as with Files.walk.
+ */
+final class DirectoryWalker implements AutoCloseable {
+    private static final int NUMBER_OF_LISTING_THREADS = 16;
+    // Tells a listing thread to stop. Compared by identity, so it can't be mistaken for a directory in the tree.
+    private static final Path END_OF_DIRECTORIES = Paths.get("");
+    private static final FoundFile END_OF_FILES = new FoundFile(
+        null,
+        null
+    );
+
+    static final class FoundFile {
+        final Path path;
+        final BasicFileAttributes basicFileAttributes;
+
+        private FoundFile(
+            Path path,
+            BasicFileAttributes basicFileAttributes
+        ) {
+            this.path = path;
+            this.basicFileAttributes = basicFileAttributes;
+        }
+    }
+
+    private final Predicate<String> fileNameFilter;
+    // Last in, first out, so that the tree is walked depth first and the number of waiting directories stays small.
+    private final LinkedBlockingDeque<Path> pendingDirectoryPaths = new LinkedBlockingDeque<>();
+    private final AtomicInteger numberOfUnlistedDirectories = new AtomicInteger(0);
+    private final BlockingQueue<FoundFile> foundFiles = new LinkedBlockingQueue<>();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private volatile boolean closedFlag = false;
+    private boolean finishedFlag = false;
+
+    private DirectoryWalker(Predicate<String> fileNameFilter) {
+        this.fileNameFilter = fileNameFilter;
+    }
+
+    /**
+     * Starts walking rootPath on the I/O threads, keeping the regular files whose names pass fileNameFilter. Throws
+     * straight away if rootPath isn't a readable directory.
+     */
+    static DirectoryWalker start(
+        ExecutorService ioExecutorService,
+        Path rootPath,
+        Predicate<String> fileNameFilter
+    ) throws IOException {
+        BasicFileAttributes basicFileAttributes = Files.readAttributes(
+            rootPath,
+            BasicFileAttributes.class
+        );
+        if (!basicFileAttributes.isDirectory()) {
+            throw new NotDirectoryException(rootPath.toString());
+        }
+        DirectoryWalker directoryWalker = new DirectoryWalker(fileNameFilter);
+        directoryWalker.numberOfUnlistedDirectories.incrementAndGet();
+        directoryWalker.pendingDirectoryPaths.addFirst(rootPath);
+        for (int i = 0; i < NUMBER_OF_LISTING_THREADS; i++) {
+            ioExecutorService.execute(directoryWalker::listDirectories);
+        }
+        return directoryWalker;
+    }
+
+    /**
+     * Waits for the next matching file, and returns null once the whole tree has been walked.
+     */
+    FoundFile take() throws IOException, InterruptedException {
+        FoundFile foundFile = this.foundFiles.take();
+        if (foundFile == END_OF_FILES) {
+            // Leave the marker for any later call.
+            this.foundFiles.add(END_OF_FILES);
+            IOException ioException = this.failure.get();
+            if (ioException != null) {
+                throw ioException;
+            }
+            return null;
+        }
+        return foundFile;
+    }
+
+    /**
+     * Stops walking. Files already found but not yet taken are dropped.
+     */
+    @Override
+    public void close() {
+        this.closedFlag = true;
+        finish();
+    }
+
+    private void listDirectories() {
+        try {
+            while (true) {
+                Path directoryPath = this.pendingDirectoryPaths.takeFirst();
+                if (directoryPath == END_OF_DIRECTORIES) {
+                    return;
+                }
+                if (!this.closedFlag) {
+                    try {
+                        listDirectory(directoryPath);
+                    } catch (IOException ioException) {
+                        if (this.failure.compareAndSet(null, ioException)) {
+                            this.closedFlag = true;
+                            finish();
+                        }
+                    }
+                }
+                if (this.numberOfUnlistedDirectories.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        } catch (InterruptedException interruptedException) {
+            // The I/O threads are being shut down.
+            this.failure.compareAndSet(null, new InterruptedIOException());
+            finish();
+        }
+    }
+
+    private void listDirectory(Path directoryPath) throws IOException {
+        try (DirectoryStream<Path> entryPaths = Files.newDirectoryStream(directoryPath)) {
+            for (Path entryPath : entryPaths) {
+                if (this.closedFlag) {
+                    return;
+                }
+                BasicFileAttributes basicFileAttributes;
+                try {
+                    basicFileAttributes = Files.readAttributes(
+                        entryPath,
+                        BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS
+                    );
+                } catch (NoSuchFileException noSuchFileException) {
+                    // Deleted since it was listed.
+                    continue;
+                }
+                if (basicFileAttributes.isDirectory()) {
+                    this.numberOfUnlistedDirectories.incrementAndGet();
+                    this.pendingDirectoryPaths.addFirst(entryPath);
+                } else if (basicFileAttributes.isRegularFile() && this.fileNameFilter.test(entryPath.getFileName().toString())) {
+                    this.foundFiles.add(new FoundFile(
+                        entryPath,
+                        basicFileAttributes
+                    ));
+                }
+            }
+        }
+    }
+
+    private synchronized void finish() {
+        if (this.finishedFlag) {
+            return;
+        }
+        this.finishedFlag = true;
+        if (this.closedFlag) {
+            this.foundFiles.clear();
+        }
+        this.foundFiles.add(END_OF_FILES);
+        for (int i = 0; i < NUMBER_OF_LISTING_THREADS; i++) {
+            this.pendingDirectoryPaths.addLast(END_OF_DIRECTORIES);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Joins the many small FASTQ files that MinKNOW writes for each barcode into one file, so that each sample is imported,
+ * stored and assembled as one document instead of hundreds.
+ * <p>
+ * Plain files are appended with channel transfers, so their bytes never pass through the Java heap. Gzipped files are
+ * either inflated on the way through, or appended as they are, since a series of gzip members is itself a gzip file
+ * that both readers accept.
+ */
+final class FastqChunkMerger {
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+    private static final String MERGED_FILE_INFIX = ".merged";
+
+    private FastqChunkMerger() {
+        // Do nothing.
+    }
+
+    /**
+     * Splits chunkFiles into the groups that can be merged into one file each: every file if gzipped files are to be
+     * inflated, and otherwise the gzipped and the plain files apart. Each group is in file name order.
+     */
+    static Collection<List<File>> groupChunkFiles(
+        Collection<File> chunkFiles,
+        boolean decompressFlag
+    ) {
+        Map<Boolean, List<File>> chunkFilesPerGzipFlag = new TreeMap<>();
+        for (File chunkFile : chunkFiles) {
+            boolean gzipFlag = !decompressFlag && isGzipped(chunkFile);
+            chunkFilesPerGzipFlag.computeIfAbsent(
+                gzipFlag,
+                key -> new ArrayList<>()
+            ).add(chunkFile);
+        }
+        for (List<File> group : chunkFilesPerGzipFlag.values()) {
+            group.sort(Comparator.comparing(File::getName));
+        }
+        return chunkFilesPerGzipFlag.values();
+    }
+
+    /**
+     * Returns the name of the file that a group from {@link #groupChunkFiles} is merged into, which is named after its
+     * first file and is therefore the same whenever the same files are merged.
+     */
+    static String formatMergedFileName(
+        List<File> chunkFiles,
+        boolean decompressFlag
+    ) {
+        String firstFileName = chunkFiles.get(0).getName();
+        boolean gzipFlag = !decompressFlag && isGzipped(chunkFiles.get(0));
+        String baseName = firstFileName.replaceFirst(
+            "(?i)(?:\\.f(?:ast)?q)?(?:\\.gz)?$",
+            ""
+        );
+        return String.format(
+            "%s%s%d.fastq%s",
+            baseName,
+            MERGED_FILE_INFIX,
+            chunkFiles.size(),
+            gzipFlag ? ".gz" : ""
+        );
+    }
+
+    /**
+     * Writes chunkFiles one after another into mergedFilePath, inflating gzipped ones if decompressFlag is set, and
+     * returns the size of the merged file. A plain chunk that doesn't end in a newline is given one, so that its last
+     * record isn't run together with the next chunk's first.
+     */
+    static long merge(
+        List<File> chunkFiles,
+        Path mergedFilePath,
+        boolean decompressFlag
+    ) throws IOException {
+        try (
+            FileChannel mergedFileChannel = FileChannel.open(
+                mergedFilePath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            ByteBuffer lastByteBuffer = ByteBuffer.allocate(1);
+            for (File chunkFile : chunkFiles) {
+                boolean gzipFlag = isGzipped(chunkFile);
+                if (gzipFlag && decompressFlag) {
+                    try (
+                        InputStream inputStream = new GZIPInputStream(
+                            Files.newInputStream(chunkFile.toPath()),
+                            GZIP_BUFFER_SIZE
+                        );
+                        ReadableByteChannel readableByteChannel = Channels.newChannel(inputStream)
+                    ) {
+                        long position = mergedFileChannel.position();
+                        long transferredSize;
+                        while ((transferredSize = mergedFileChannel.transferFrom(
+                            readableByteChannel,
+                            position,
+                            Long.MAX_VALUE - position
+                        )) > 0) {
+                            position += transferredSize;
+                        }
+                        mergedFileChannel.position(position);
+                    }
+                } else {
+                    try (
+                        FileChannel chunkFileChannel = FileChannel.open(
+                            chunkFile.toPath(),
+                            StandardOpenOption.READ
+                        )
+                    ) {
+                        long size = chunkFileChannel.size();
+                        long transferredSize = 0;
+                        while (transferredSize < size) {
+                            transferredSize += chunkFileChannel.transferTo(
+                                transferredSize,
+                                size - transferredSize,
+                                mergedFileChannel
+                            );
+                        }
+                    }
+                }
+                long position = mergedFileChannel.position();
+                if ((gzipFlag && !decompressFlag) || position == 0) {
+                    continue;
+                }
+                lastByteBuffer.clear();
+                mergedFileChannel.read(
+                    lastByteBuffer,
+                    position - 1
+                );
+                if (lastByteBuffer.get(0) != '\n') {
+                    mergedFileChannel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+                }
+            }
+            return mergedFileChannel.size();
+        }
+    }
+
+    private static boolean isGzipped(File file) {
+        return FastqReader.GZIP_FILE_NAME_PATTERN.matcher(file.getName()).matches();
+    }
+}
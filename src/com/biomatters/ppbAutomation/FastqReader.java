@@ -0,0 +1,512 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.DocumentUtilities;
+import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
+import com.biomatters.geneious.publicapi.implementations.DefaultSequenceListDocument;
+import com.biomatters.geneious.publicapi.implementations.sequence.DefaultNucleotideGraph;
+import com.biomatters.geneious.publicapi.implementations.sequence.DefaultNucleotideGraphSequence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Parses FASTQ files straight out of memory-mapped regions, as a faster alternative to
+ * ImportUtilities.importDocuments.
+ * <p>
+ * Gzipped files are inflated from the mapped regions into pooled direct buffers, in parallel when they are BGZF.
+ * Records are handed to a {@link FastqRecordHandler} one at a time in a single reused {@link FastqRecord}, so reading a
+ * file allocates almost nothing beyond whatever the handler keeps.
+ */
+class FastqReader {
+    static final Pattern GZIP_FILE_NAME_PATTERN = Pattern.compile("^.*\\.gz$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FASTQ_EXTENSION_PATTERN = Pattern.compile("(?:\\.f(?:ast)?q)?(?:\\.gz)?$", Pattern.CASE_INSENSITIVE);
+    private static final long MAP_REGION_SIZE = 256L << 20;
+    private static final int PHRED_OFFSET = 33;
+    private static final boolean[] VALID_NUCLEOTIDES = new boolean[256];
+
+    static {
+        for (char nucleotide : "ACGTURYKMSWBDHVN-".toCharArray()) {
+            VALID_NUCLEOTIDES[nucleotide] = true;
+            VALID_NUCLEOTIDES[Character.toLowerCase(nucleotide)] = true;
+        }
+    }
+
+    static final class FastqRecord {
+        byte[] name = new byte[256];
+        int nameLength;
+        byte[] sequence = new byte[1024];
+        int sequenceLength;
+        byte[] quality = new byte[1024];
+        int qualityLength;
+
+        String getName() {
+            int nameEnd = 0;
+            while (nameEnd < this.nameLength && this.name[nameEnd] != ' ' && this.name[nameEnd] != '\t') {
+                nameEnd++;
+            }
+            return new String(
+                this.name,
+                0,
+                nameEnd,
+                StandardCharsets.ISO_8859_1
+            );
+        }
+
+        String getDescription() {
+            int descriptionStart = 0;
+            while (descriptionStart < this.nameLength && this.name[descriptionStart] != ' ' && this.name[descriptionStart] != '\t') {
+                descriptionStart++;
+            }
+            return descriptionStart + 1 >= this.nameLength ? "" : new String(
+                this.name,
+                descriptionStart + 1,
+                this.nameLength - descriptionStart - 1,
+                StandardCharsets.ISO_8859_1
+            );
+        }
+
+        NucleotideSequenceDocument toNucleotideSequenceDocument() {
+            for (int i = 0; i < this.sequenceLength; i++) {
+                if (!VALID_NUCLEOTIDES[this.sequence[i] & 0xFF]) {
+                    // The same thing ImportUtilities.ActionWhenInvalid.ReplaceInvalidBases does.
+                    this.sequence[i] = 'N';
+                }
+            }
+            int[] qualities = new int[this.qualityLength];
+            for (int i = 0; i < this.qualityLength; i++) {
+                qualities[i] = this.quality[i] - PHRED_OFFSET;
+            }
+            return new DefaultNucleotideGraphSequence(
+                getName(),
+                getDescription(),
+                new String(
+                    this.sequence,
+                    0,
+                    this.sequenceLength,
+                    StandardCharsets.ISO_8859_1
+                ),
+                new Date(),
+                new DefaultNucleotideGraph(
+                    null,
+                    null,
+                    qualities,
+                    0,
+                    this.sequenceLength
+                )
+            );
+        }
+    }
+
+    interface FastqRecordHandler {
+        void handle(FastqRecord fastqRecord) throws IOException;
+    }
+
+    /**
+     * Hands out a file's bytes one buffer at a time. A buffer is only valid until the next call to nextChunk.
+     */
+    interface ByteChunkSource extends Closeable {
+        ByteBuffer nextChunk() throws IOException;
+    }
+
+    static final class MappedByteChunkSource implements ByteChunkSource {
+        private final FileChannel fileChannel;
+        private final long size;
+        private long position = 0;
+
+        MappedByteChunkSource(Path path) throws IOException {
+            this.fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.READ
+            );
+            this.size = this.fileChannel.size();
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            if (this.position >= this.size) {
+                return null;
+            }
+            long regionSize = Math.min(
+                MAP_REGION_SIZE,
+                this.size - this.position
+            );
+            ByteBuffer mappedByteBuffer = this.fileChannel.map(
+                FileChannel.MapMode.READ_ONLY,
+                this.position,
+                regionSize
+            );
+            this.position += regionSize;
+            return mappedByteBuffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.fileChannel.close();
+        }
+    }
+
+    /**
+     * Inflates every gzip member of a compressed source in turn, so concatenated gzip files are read in full.
+     */
+    static final class GzipByteChunkSource implements ByteChunkSource {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final ByteChunkSource compressedByteChunkSource;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc32 = new CRC32();
+        private final ByteBuffer outputByteBuffer = DirectByteBufferPool.acquire();
+        private ByteBuffer inputByteBuffer = ByteBuffer.allocate(0);
+        private long memberSize = 0;
+        private boolean finishedFlag;
+
+        GzipByteChunkSource(ByteChunkSource compressedByteChunkSource) throws IOException {
+            this.compressedByteChunkSource = compressedByteChunkSource;
+            this.finishedFlag = !readMemberHeader();
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            this.outputByteBuffer.clear();
+            try {
+                while (!this.finishedFlag && this.outputByteBuffer.hasRemaining()) {
+                    if (this.inflater.finished()) {
+                        readMemberTrailer();
+                        this.finishedFlag = !readMemberHeader();
+                        continue;
+                    }
+                    if (this.inflater.needsInput()) {
+                        if (!this.inputByteBuffer.hasRemaining() && !nextInputChunk()) {
+                            throw new IOException("Gzip input ended in the middle of a member.");
+                        }
+                        this.inflater.setInput(this.inputByteBuffer);
+                    }
+                    if (this.inflater.needsDictionary()) {
+                        throw new IOException("Gzip members that need a preset dictionary aren't supported.");
+                    }
+                    int outputStart = this.outputByteBuffer.position();
+                    int numberOfBytesInflated = this.inflater.inflate(this.outputByteBuffer);
+                    ByteBuffer inflatedBytes = this.outputByteBuffer.duplicate();
+                    inflatedBytes.flip().position(outputStart);
+                    this.crc32.update(inflatedBytes);
+                    this.memberSize += numberOfBytesInflated;
+                }
+            } catch (DataFormatException dataFormatException) {
+                throw new IOException(dataFormatException);
+            }
+            this.outputByteBuffer.flip();
+            return this.outputByteBuffer.hasRemaining() ? this.outputByteBuffer : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inflater.end();
+            DirectByteBufferPool.release(this.outputByteBuffer);
+            this.compressedByteChunkSource.close();
+        }
+
+        private boolean nextInputChunk() throws IOException {
+            ByteBuffer nextInputByteBuffer = this.compressedByteChunkSource.nextChunk();
+            if (nextInputByteBuffer == null) {
+                return false;
+            }
+            this.inputByteBuffer = nextInputByteBuffer;
+            return true;
+        }
+
+        private int readInputByte() throws IOException {
+            if (!this.inputByteBuffer.hasRemaining() && !nextInputChunk()) {
+                return -1;
+            }
+            return this.inputByteBuffer.get() & 0xFF;
+        }
+
+        private int readRequiredInputByte() throws IOException {
+            int inputByte = readInputByte();
+            if (inputByte == -1) {
+                throw new IOException("Gzip input ended in the middle of a member header or trailer.");
+            }
+            return inputByte;
+        }
+
+        private boolean readMemberHeader() throws IOException {
+            // The inflater may have stopped in the middle of the current input buffer, so it's read from there on.
+            int id1 = readInputByte();
+            if (id1 == -1) {
+                return false;
+            }
+            if (id1 != 0x1F) {
+                // Trailing padding after the last member is ignored, as gzip does.
+                return false;
+            }
+            if (readRequiredInputByte() != 0x8B || readRequiredInputByte() != 8) {
+                throw new IOException("Input isn't in gzip format.");
+            }
+            int flags = readRequiredInputByte();
+            for (int i = 0; i < 6; i++) {
+                // MTIME, XFL and OS.
+                readRequiredInputByte();
+            }
+            if ((flags & FEXTRA) != 0) {
+                int extraLength = readRequiredInputByte() | (readRequiredInputByte() << 8);
+                for (int i = 0; i < extraLength; i++) {
+                    readRequiredInputByte();
+                }
+            }
+            for (int flag : new int[] { FNAME, FCOMMENT }) {
+                if ((flags & flag) != 0) {
+                    while (readRequiredInputByte() != 0) {
+                        // Skip the zero-terminated string.
+                    }
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                readRequiredInputByte();
+                readRequiredInputByte();
+            }
+            this.inflater.reset();
+            this.crc32.reset();
+            this.memberSize = 0;
+            this.inflater.setInput(this.inputByteBuffer);
+            return true;
+        }
+
+        private void readMemberTrailer() throws IOException {
+            long expectedCrc32 = 0;
+            long expectedSize = 0;
+            for (int i = 0; i < 4; i++) {
+                expectedCrc32 |= (long)readRequiredInputByte() << (8 * i);
+            }
+            for (int i = 0; i < 4; i++) {
+                expectedSize |= (long)readRequiredInputByte() << (8 * i);
+            }
+            if (expectedCrc32 != this.crc32.getValue() || expectedSize != (this.memberSize & 0xFFFFFFFFL)) {
+                throw new IOException("Gzip member failed its CRC32 or size check.");
+            }
+        }
+    }
+
+    private FastqReader() {
+        // Do nothing.
+    }
+
+    static ByteChunkSource openByteChunkSource(Path path) throws IOException {
+        if (GZIP_FILE_NAME_PATTERN.matcher(path.getFileName().toString()).matches()) {
+            return ParallelGzipByteChunkSource.open(path);
+        }
+        return new MappedByteChunkSource(path);
+    }
+
+    static void read(
+        Path path,
+        FastqRecordHandler fastqRecordHandler
+    ) throws IOException {
+        try (ByteChunkSource byteChunkSource = openByteChunkSource(path)) {
+            read(
+                byteChunkSource,
+                fastqRecordHandler,
+                path.toString()
+            );
+        }
+    }
+
+    static void read(
+        ByteChunkSource byteChunkSource,
+        FastqRecordHandler fastqRecordHandler,
+        String sourceName
+    ) throws IOException {
+        FastqRecord fastqRecord = new FastqRecord();
+        int[] lineIndex = { 0 };
+        int[] lineLength = { 0 };
+        long[] lineNumber = { 1 };
+        ByteBuffer chunk;
+        while ((chunk = byteChunkSource.nextChunk()) != null) {
+            int position = chunk.position();
+            int limit = chunk.limit();
+            while (position < limit) {
+                int newlinePosition = position;
+                while (newlinePosition < limit && chunk.get(newlinePosition) != '\n') {
+                    newlinePosition++;
+                }
+                appendToLine(
+                    fastqRecord,
+                    lineIndex[0],
+                    lineLength,
+                    chunk,
+                    position,
+                    newlinePosition
+                );
+                if (newlinePosition == limit) {
+                    position = limit;
+                    break;
+                }
+                endLine(
+                    fastqRecord,
+                    lineIndex,
+                    lineLength,
+                    lineNumber,
+                    fastqRecordHandler,
+                    sourceName
+                );
+                position = newlinePosition + 1;
+            }
+        }
+        if (lineLength[0] > 0 || lineIndex[0] == 3) {
+            // The last line had no trailing newline.
+            endLine(
+                fastqRecord,
+                lineIndex,
+                lineLength,
+                lineNumber,
+                fastqRecordHandler,
+                sourceName
+            );
+        }
+        if (lineIndex[0] != 0) {
+            throw new IOException(String.format(
+                "FASTQ file \"%s\" ended in the middle of a record.",
+                sourceName
+            ));
+        }
+    }
+
+    static AnnotatedPluginDocument importFastqFile(Path path) throws IOException {
+        List<NucleotideSequenceDocument> nucleotideSequenceDocuments = new ArrayList<>();
+        read(
+            path,
+            fastqRecord -> nucleotideSequenceDocuments.add(fastqRecord.toNucleotideSequenceDocument())
+        );
+        AnnotatedPluginDocument annotatedPluginDocument = DocumentUtilities.createAnnotatedPluginDocument(
+            DefaultSequenceListDocument.forNucleotideSequences(nucleotideSequenceDocuments)
+        );
+        annotatedPluginDocument.setName(formatDocumentName(path));
+        return annotatedPluginDocument;
+    }
+
+    static String formatDocumentName(Path path) {
+        return FASTQ_EXTENSION_PATTERN.matcher(path.getFileName().toString()).replaceFirst("");
+    }
+
+    private static void appendToLine(
+        FastqRecord fastqRecord,
+        int lineIndex,
+        int[] lineLength,
+        ByteBuffer chunk,
+        int start,
+        int end
+    ) {
+        int length = end - start;
+        if (length == 0 || lineIndex == 2) {
+            // The "+" line is never needed.
+            lineLength[0] += length;
+            return;
+        }
+        byte[] line;
+        switch (lineIndex) {
+            case 0:
+                line = fastqRecord.name = ensureCapacity(fastqRecord.name, lineLength[0] + length);
+                break;
+            case 1:
+                line = fastqRecord.sequence = ensureCapacity(fastqRecord.sequence, lineLength[0] + length);
+                break;
+            default:
+                line = fastqRecord.quality = ensureCapacity(fastqRecord.quality, lineLength[0] + length);
+                break;
+        }
+        ByteBuffer lineBytes = chunk.duplicate();
+        lineBytes.limit(end).position(start);
+        lineBytes.get(line, lineLength[0], length);
+        lineLength[0] += length;
+    }
+
+    private static void endLine(
+        FastqRecord fastqRecord,
+        int[] lineIndex,
+        int[] lineLength,
+        long[] lineNumber,
+        FastqRecordHandler fastqRecordHandler,
+        String sourceName
+    ) throws IOException {
+        int length = lineLength[0];
+        lineLength[0] = 0;
+        switch (lineIndex[0]) {
+            case 0:
+                if (length > 0 && fastqRecord.name[length - 1] == '\r') {
+                    length--;
+                }
+                if (length == 0) {
+                    // Blank lines between records are ignored.
+                    lineNumber[0]++;
+                    return;
+                }
+                if (fastqRecord.name[0] != '@') {
+                    throw new IOException(String.format(
+                        "Line %d of FASTQ file \"%s\" should start a record with \"@\".",
+                        lineNumber[0],
+                        sourceName
+                    ));
+                }
+                System.arraycopy(fastqRecord.name, 1, fastqRecord.name, 0, length - 1);
+                fastqRecord.nameLength = length - 1;
+                break;
+            case 1:
+                if (length > 0 && fastqRecord.sequence[length - 1] == '\r') {
+                    length--;
+                }
+                fastqRecord.sequenceLength = length;
+                break;
+            case 2:
+                break;
+            default:
+                if (length > 0 && fastqRecord.quality[length - 1] == '\r') {
+                    length--;
+                }
+                fastqRecord.qualityLength = length;
+                if (fastqRecord.qualityLength != fastqRecord.sequenceLength) {
+                    throw new IOException(String.format(
+                        "Record ending on line %d of FASTQ file \"%s\" has %d bases but %d quality scores.",
+                        lineNumber[0],
+                        sourceName,
+                        fastqRecord.sequenceLength,
+                        fastqRecord.qualityLength
+                    ));
+                }
+                fastqRecordHandler.handle(fastqRecord);
+                break;
+        }
+        lineIndex[0] = (lineIndex[0] + 1) % 4;
+        lineNumber[0]++;
+    }
+
+    private static byte[] ensureCapacity(
+        byte[] bytes,
+        int capacity
+    ) {
+        if (bytes.length >= capacity) {
+            return bytes;
+        }
+        return Arrays.copyOf(
+            bytes,
+            Math.max(
+                capacity,
+                bytes.length * 2
+            )
+        );
+    }
+}
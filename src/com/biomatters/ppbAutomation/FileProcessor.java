@@ -0,0 +1,39 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.databaseservice.DatabaseServiceException;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+interface FileProcessor {
+    void processFile(
+        Path path,
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum
+    ) throws DocumentOperationException, IOException, InterruptedException, DatabaseServiceException;
+
+    /**
+     * Returns a FileProcessor that times each file fileProcessor processes as stage.
+     */
+    static FileProcessor timed(
+        String stage,
+        FileProcessor fileProcessor
+    ) {
+        return (
+            Path path,
+            WritableDatabaseServiceDatum writableDatabaseServiceDatum
+        ) -> {
+            try (
+                StageTimer stageTimer = StageTimer.start(
+                    stage,
+                    writableDatabaseServiceDatum.sampleName
+                )
+            ) {
+                fileProcessor.processFile(
+                    path,
+                    writableDatabaseServiceDatum
+                );
+            }
+        };
+    }
+}
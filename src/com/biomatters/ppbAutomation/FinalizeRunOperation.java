@@ -693,23 +693,38 @@ public class FinalizeRunOperation extends DocumentOperation {
             this.averageCoverage = (double)this.defaultAlignmentDocumentAnnotatedPluginDocument.getFieldValue(DocumentField.CONTIG_MEAN_COVERAGE);
             this.percentFullCoverageCoveredByReads = ((Percentage)this.defaultAlignmentDocumentAnnotatedPluginDocument.getFieldValue(DocumentField.CONTIG_PERCENTAGE_OF_REFERENCE_SEQUENCE_COVERED)).doubleValue();
 
-            SequenceDocument consensusSequenceDocument = SequenceUtilities.generateConsensus(
-                defaultAlignmentDocument,
-                new CompositeProgressListener(
-                    null,
-                    1
-                )
-            );
-            SequenceListSummary sequenceListSummary = new SequenceListSummary(
-                WrappedSequenceDocument.sortSequenceDocuments(
-                    defaultAlignmentDocument
-                ),
-                true,
-                null
-            );
-            int alignmentNumberOfColumns = sequenceListSummary.getAlignmentNumberOfColumns();
+            int referenceSequenceIndex = defaultAlignmentDocument.getContigReferenceSequenceIndex();
+            String encodedPileupCoverage = (String)this.defaultAlignmentDocumentAnnotatedPluginDocument.getFieldValue(ReadPileup.COVERAGE_FIELD);
+            String consensusSequence;
+            int[] coverage;
+            if (encodedPileupCoverage != null) {
+                // Contigs built from a pileup hold the consensus itself rather than the reads.
+                consensusSequence = defaultAlignmentDocument.getSequence(1 - referenceSequenceIndex).getSequenceString();
+                coverage = ReadPileup.decodeCoverage(encodedPileupCoverage);
+            } else {
+                consensusSequence = SequenceUtilities.generateConsensus(
+                    defaultAlignmentDocument,
+                    new CompositeProgressListener(
+                        null,
+                        1
+                    )
+                ).getSequenceString();
+                SequenceListSummary sequenceListSummary = new SequenceListSummary(
+                    WrappedSequenceDocument.sortSequenceDocuments(
+                        defaultAlignmentDocument
+                    ),
+                    true,
+                    null
+                );
+                coverage = new int[sequenceListSummary.getAlignmentNumberOfColumns()];
+                for (int i = 0; i < coverage.length; i++) {
+                    // Less one for the reference.
+                    coverage[i] = sequenceListSummary.getCoverage(i) - 1;
+                }
+            }
+            int alignmentNumberOfColumns = coverage.length;
 
-            SequenceDocument referenceSequenceDocument = defaultAlignmentDocument.getSequence(defaultAlignmentDocument.getContigReferenceSequenceIndex());
+            SequenceDocument referenceSequenceDocument = defaultAlignmentDocument.getSequence(referenceSequenceIndex);
             List<SequenceAnnotation> sequenceAnnotations = referenceSequenceDocument.getSequenceAnnotations();
             List<SequenceAnnotation> vp1MatchingSequenceAnnotations = sequenceAnnotations.stream().filter(
                 sequenceAnnotation -> sequenceAnnotation.getName().matches("^[Vv][Pp]1$")
@@ -726,8 +741,6 @@ public class FinalizeRunOperation extends DocumentOperation {
                 sampleName,
                 type
             );
-            String consensusSequence = consensusSequenceDocument.getSequenceString();
-
             int cdsMinimumCoverage = Integer.MAX_VALUE;
             int cdsLowerBoundInclusive = 0;
             int cdsUpperBoundExclusive = alignmentNumberOfColumns;
@@ -756,7 +769,7 @@ public class FinalizeRunOperation extends DocumentOperation {
                         int vp1MinimumCoverage = Integer.MAX_VALUE;
                         for (int i = vp1LowerBoundInclusive; i < vp1UpperBoundExclusive; i++) {
                             if (consensusSequence.charAt(i) != '-') {
-                                int vp1Coverage = sequenceListSummary.getCoverage(i) - 1;
+                                int vp1Coverage = coverage[i];
                                 if (vp1Coverage < vp1MinimumCoverage) {
                                     vp1MinimumCoverage = vp1Coverage;
                                 }
@@ -789,7 +802,7 @@ public class FinalizeRunOperation extends DocumentOperation {
             }
             for (int i = cdsLowerBoundInclusive; i < cdsUpperBoundExclusive; i++) {
                 if (consensusSequence.charAt(i) != '-') {
-                    int cdsCoverage = sequenceListSummary.getCoverage(i) - 1;
+                    int cdsCoverage = coverage[i];
                     if (cdsCoverage < cdsMinimumCoverage) {
                         cdsMinimumCoverage = cdsCoverage;
                     }
@@ -908,6 +921,26 @@ public class FinalizeRunOperation extends DocumentOperation {
             PYTHON_SCRIPTS_FOLDER_PATH_LABEL,
             ""
         );
+        options.addBooleanOption(
+            JAVA_SAMPLE_SHEET_FLAG_KEY,
+            JAVA_SAMPLE_SHEET_FLAG_LABEL,
+            DEFAULT_JAVA_SAMPLE_SHEET_FLAG
+        );
+        options.addStringOption(
+            WET_LAB_SAMPLE_COLUMN_REGEX_KEY,
+            WET_LAB_SAMPLE_COLUMN_REGEX_LABEL,
+            DEFAULT_WET_LAB_SAMPLE_COLUMN_REGEX
+        );
+        options.addStringOption(
+            WET_LAB_RUN_COLUMN_REGEX_KEY,
+            WET_LAB_RUN_COLUMN_REGEX_LABEL,
+            DEFAULT_WET_LAB_RUN_COLUMN_REGEX
+        );
+        options.addStringOption(
+            CHROME_TRACE_FILE_PATH_KEY,
+            CHROME_TRACE_FILE_PATH_LABEL,
+            DEFAULT_CHROME_TRACE_FILE_PATH
+        );
         return options;
     }
 
@@ -1003,6 +1036,29 @@ public class FinalizeRunOperation extends DocumentOperation {
         AnnotatedPluginDocument[] documents,
         ProgressListener progressListener,
         Options options
+    ) throws DocumentOperationException {
+        ChromeTraceRecorder chromeTraceRecorder = ChromeTraceRecorder.start(options.getValueAsString(CHROME_TRACE_FILE_PATH_KEY));
+        try {
+            return finalizeRun(
+                documents,
+                progressListener,
+                options
+            );
+        } finally {
+            if (chromeTraceRecorder != null) {
+                try {
+                    chromeTraceRecorder.close();
+                } catch (IOException ioException) {
+                    throw new DocumentOperationException(ioException);
+                }
+            }
+        }
+    }
+
+    private List<AnnotatedPluginDocument> finalizeRun(
+        AnnotatedPluginDocument[] documents,
+        ProgressListener progressListener,
+        Options options
     ) throws DocumentOperationException {
         long systemStartTime = System.currentTimeMillis();
         List<AnnotatedPluginDocument> returnValue = new LinkedList<>();
@@ -1017,6 +1073,13 @@ public class FinalizeRunOperation extends DocumentOperation {
                 wetLabExcelFilePathAsString
             ));
         }
+        // Read before anything else is done, so that a sheet that can't be read fails the run straight away.
+        WetLabSampleSheet wetLabSampleSheet = (boolean)options.getValue(JAVA_SAMPLE_SHEET_FLAG_KEY) ? WetLabSampleSheet.read(
+            wetLabExcelFilePath,
+            Pattern.compile(options.getValueAsString(WET_LAB_SAMPLE_COLUMN_REGEX_KEY)),
+            null,
+            Pattern.compile(options.getValueAsString(WET_LAB_RUN_COLUMN_REGEX_KEY))
+        ) : null;
         boolean exportFinalAnalysisFolderAndFilesFlag = (boolean)options.getValue(EXPORT_FINAL_ANALYSIS_FOLDER_AND_FILES_FLAG_KEY);
         boolean uploadExcelDocumentToSharepointFlag = (boolean)options.getValue(UPLOAD_EXCEL_TO_SHAREPOINT_FLAG_KEY);
         boolean generateEmailFlag = (boolean)options.getValue(GENERATE_EMAIL_FLAG_KEY);
@@ -1799,26 +1862,40 @@ public class FinalizeRunOperation extends DocumentOperation {
 
                 if (excelDataPerSamplePerType.defaultAlignmentDocumentAnnotatedPluginDocument != null) {
                     parseExcelDataFromDocumentsTasks.add(() -> {
-                        excelDataPerSamplePerType.parseAlignmentDocument(
-                            sampleName,
-                            type
-                        );
+                        try (
+                            StageTimer stageTimer = StageTimer.start(
+                                StageTimer.FINALIZE_PARSE,
+                                sampleName
+                            ).setType(type)
+                        ) {
+                            excelDataPerSamplePerType.parseAlignmentDocument(
+                                sampleName,
+                                type
+                            );
+                        }
                         return null;
                     });
                 }
                 if (excelDataPerSamplePerType.nucleotideSequenceDocumentAnnotatedPluginDocument != null) {
                     parseExcelDataFromDocumentsTasks.add(() -> {
-                        excelDataPerSamplePerType.parseNucleotideSequenceDocument(
-                            sampleName,
-                            type
-                        );
+                        try (
+                            StageTimer stageTimer = StageTimer.start(
+                                StageTimer.FINALIZE_PARSE,
+                                sampleName
+                            ).setType(type)
+                        ) {
+                            excelDataPerSamplePerType.parseNucleotideSequenceDocument(
+                                sampleName,
+                                type
+                            );
+                        }
                         return null;
                     });
                 }
             }
         }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        ExecutorService executorService = PPBAutomationPlugin.getPluginExecutionService().getCpuExecutorService(numberOfThreads);
         try {
             List<Future<Void>> taskReturnValues = executorService.invokeAll(parseExcelDataFromDocumentsTasks);
             for (Future<Void> taskReturnValue : taskReturnValues) {
@@ -1837,11 +1914,19 @@ public class FinalizeRunOperation extends DocumentOperation {
             SequenceDocument.Alphabet.NUCLEOTIDE
         );
         Options alignmentOptions = alignmentOperation.getOptions(vp1SequenceDocuments);
-        List<AnnotatedPluginDocument> alignedVp1Segments = alignmentOperation.performOperation(
-            vp1SequenceDocuments,
-            compositeProgressListener,
-            alignmentOptions
-        );
+        List<AnnotatedPluginDocument> alignedVp1Segments;
+        try (
+            StageTimer stageTimer = StageTimer.start(
+                StageTimer.FINALIZE_MAFFT,
+                null
+            ).addReadCount(vp1SequenceDocuments.size())
+        ) {
+            alignedVp1Segments = alignmentOperation.performOperation(
+                vp1SequenceDocuments,
+                compositeProgressListener,
+                alignmentOptions
+            );
+        }
         vp1SequenceDocuments.clear();
         DefaultAlignmentDocument vp1AlignmentDocument = (DefaultAlignmentDocument)alignedVp1Segments.get(0).getDocument();
         List<SequenceDocument> sequenceDocuments = vp1AlignmentDocument.getSequences();
@@ -1936,6 +2021,34 @@ public class FinalizeRunOperation extends DocumentOperation {
             databaseDataPerSamplePerType.nucleotideDifferencesOfGenotypeCount = minimumDifferencesCount;
         }
 
+        if (wetLabSampleSheet != null) {
+            List<String> missingSampleNames = new LinkedList<>();
+            for (WetLabSampleSheet.Row row : wetLabSampleSheet.getRows(fullRunName)) {
+                Matcher sampleNameMatcher = SAMPLE_FOLDER_PATTERN.matcher(row.sampleName);
+                if (!sampleNameMatcher.matches()) {
+                    // Controls and notes aren't named like samples.
+                    continue;
+                }
+                String sampleName = formatSampleName(
+                    sampleNameMatcher.group(1),
+                    sampleNameMatcher.group(2)
+                );
+                if (!excelData.containsKey(sampleName)) {
+                    missingSampleNames.add(sampleName);
+                }
+            }
+            if (!missingSampleNames.isEmpty()) {
+                System.out.printf(
+                    "The wet-lab Excel file lists %d sample(s) with no folder in \"%s\": %s%n",
+                    missingSampleNames.size(),
+                    fullRunName,
+                    String.join(
+                        ", ",
+                        missingSampleNames
+                    )
+                );
+            }
+        }
         List<String> orderedListOfSampleNames = new LinkedList<>(excelData.keySet());
         orderedListOfSampleNames.sort(compareStringsIgnoreCase);
         List<String> documentLines = new LinkedList<>();
@@ -2133,7 +2246,12 @@ public class FinalizeRunOperation extends DocumentOperation {
         }
         pythonProcess.validateExitValue(exitValue);
         if (exportFinalAnalysisFolderAndFilesFlag) {
-            try {
+            try (
+                StageTimer stageTimer = StageTimer.start(
+                    StageTimer.FINALIZE_EXPORT,
+                    null
+                ).addReadCount(defaultNucleotideSequenceAnnotatedPluginDocuments.size())
+            ) {
                 if (!Files.exists(exportDirectoryPathPerRun)) {
                     Files.createDirectory(exportDirectoryPathPerRun);
                 }
@@ -0,0 +1,138 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.databaseservice.DatabaseServiceException;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Types the genomes of every VPipe .json file in one Python process, instead of starting one process per file.
+ * <p>
+ * The script is given a file listing one .json path per line (its "-l" argument) and prints one
+ * "path=>accession number" line per genome found. Each line is routed to the sample that the path belongs to as soon
+ * as it is printed, so the copies carry on while the script runs.
+ */
+class GenomeTypingBatch {
+    static final String PATH_ACCESSION_NUMBER_SEPARATOR = "=>";
+
+    private final Map<String, WritableDatabaseServiceDatum> writableDatabaseServiceDataPerJsonPath = new LinkedHashMap<>();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    void add(
+        Path jsonFilePath,
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum
+    ) {
+        this.writableDatabaseServiceDataPerJsonPath.put(
+            jsonFilePath.toAbsolutePath().toString(),
+            writableDatabaseServiceDatum
+        );
+    }
+
+    boolean isEmpty() {
+        return this.writableDatabaseServiceDataPerJsonPath.isEmpty();
+    }
+
+    /**
+     * Starts the Python process on an I/O thread, since the thread only waits on it. Nothing may be added after this
+     * is called.
+     */
+    void start(
+        ExecutorService ioExecutorService,
+        String pythonScriptName,
+        Path pythonScriptsFolderPath
+    ) {
+        if (isEmpty()) {
+            this.completion.complete(null);
+            return;
+        }
+        ioExecutorService.execute(() -> {
+            try {
+                run(
+                    pythonScriptName,
+                    pythonScriptsFolderPath
+                );
+                this.completion.complete(null);
+            } catch (Throwable throwable) {
+                this.completion.completeExceptionally(throwable);
+            }
+        });
+    }
+
+    /**
+     * Waits for the Python process to finish, after which every sample's accession numbers have been added.
+     */
+    void awaitCompletion() throws DocumentOperationException, InterruptedException {
+        try {
+            this.completion.get();
+        } catch (ExecutionException executionException) {
+            Throwable cause = executionException.getCause();
+            if (cause instanceof DocumentOperationException) {
+                throw (DocumentOperationException)cause;
+            }
+            throw new DocumentOperationException(cause);
+        }
+    }
+
+    private void run(
+        String pythonScriptName,
+        Path pythonScriptsFolderPath
+    ) throws IOException, InterruptedException, DatabaseServiceException, DocumentOperationException {
+        Path jsonFilePathListPath = Files.createTempFile(
+            "vpipeJsonFilePaths",
+            ".txt"
+        );
+        try {
+            Files.write(
+                jsonFilePathListPath,
+                new ArrayList<>(this.writableDatabaseServiceDataPerJsonPath.keySet()),
+                StandardCharsets.UTF_8
+            );
+            List<String> unexpectedLines = new ArrayList<>();
+            PythonProcess pythonProcess = new PythonProcess(
+                pythonScriptName,
+                pythonScriptsFolderPath.toAbsolutePath().toString(),
+                pythonOutputLine -> {
+                    int separatorIndex = pythonOutputLine.lastIndexOf(PATH_ACCESSION_NUMBER_SEPARATOR);
+                    WritableDatabaseServiceDatum writableDatabaseServiceDatum = separatorIndex == -1 ? null : this.writableDatabaseServiceDataPerJsonPath.get(pythonOutputLine.substring(0, separatorIndex).trim());
+                    if (writableDatabaseServiceDatum == null) {
+                        unexpectedLines.add(pythonOutputLine);
+                        return;
+                    }
+                    writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.add(pythonOutputLine.substring(separatorIndex + PATH_ACCESSION_NUMBER_SEPARATOR.length()).trim());
+                }
+            );
+            Integer exitValue = pythonProcess.execute(
+                true,
+                String.format(
+                    "-l %s",
+                    jsonFilePathListPath.toAbsolutePath()
+                )
+            );
+            if (exitValue == null) {
+                throw new DocumentOperationException("exitValue should never be null.");
+            }
+            pythonProcess.validateExitValue(exitValue);
+            if (!unexpectedLines.isEmpty()) {
+                throw new DocumentOperationException(String.format(
+                    "Python script \"%s.py\" printed %d line(s) that weren't \"path%saccession number\" for a listed .json file, starting with \"%s\".",
+                    pythonScriptName,
+                    unexpectedLines.size(),
+                    PATH_ACCESSION_NUMBER_SEPARATOR,
+                    unexpectedLines.get(0)
+                ));
+            }
+        } finally {
+            Files.deleteIfExists(jsonFilePathListPath);
+        }
+    }
+}
@@ -8,17 +8,18 @@ import com.biomatters.geneious.publicapi.documents.DocumentUtilities;
 import com.biomatters.geneious.publicapi.documents.PluginDocument;
 import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
 import com.biomatters.geneious.publicapi.documents.sequence.SequenceAlignmentDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceDocument;
+import com.biomatters.geneious.publicapi.implementations.DefaultAlignmentDocument;
+import com.biomatters.geneious.publicapi.implementations.Percentage;
+import com.biomatters.geneious.publicapi.implementations.sequence.DefaultNucleotideSequence;
 import com.biomatters.geneious.publicapi.plugin.*;
 import com.biomatters.geneious.publicapi.utilities.ImportUtilities;
 import jebl.util.ProgressListener;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.biomatters.ppbAutomation.CommonGeneiousKeys.*;
@@ -54,161 +55,370 @@ public class HelperFunctions {
         return geneiousPluginsPerNameMap.get(geneiousPluginName);
     }
 
-    public static void validateAndCopyReferenceGenomes(
-        Collection<WritableDatabaseServiceDatum> writableDatabaseServiceData,
-        String defaultReferenceAccessionNumber,
-        HashMap<String, AnnotatedPluginDocument> referenceGenomesPerAccessionNumber,
-        ProgressListener progressListener
-    ) throws DocumentOperationException, DatabaseServiceException {
-        AtomicInteger i = new AtomicInteger(0);
-        AtomicInteger totalNumberOfReferenceGenomes = new AtomicInteger(0);
-        writableDatabaseServiceData.forEach(
-            writableDatabaseServiceDatum -> totalNumberOfReferenceGenomes.addAndGet(Math.max(
-                1,
-                writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.size()
-            ))
+    public static Assembler getGeneiousAssembler() throws DocumentOperationException {
+        GeneiousPlugin geneiousAssemblerPlugin = getGeneiousPlugin(
+            GENEIOUS_ASSEMBLER_PLUGIN_NAME,
+            true
         );
-//        CompositeProgressListener compositeProgressListener = new CompositeProgressListener(
-//            progressListener,
-//            numberOfSubtasks.get()
-//        );
-        for (WritableDatabaseServiceDatum writableDatabaseServiceDatum : writableDatabaseServiceData) {
-            if (writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.size() == 0) {
-                writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.add(defaultReferenceAccessionNumber);
-            }
-            for (String referenceGenomeAccessionNumber : writableDatabaseServiceDatum.referenceGenomeAccessionNumbers) {
-                if (!referenceGenomesPerAccessionNumber.containsKey(referenceGenomeAccessionNumber)) {
-                    throw new DocumentOperationException(String.format(
-                        "Reference genome \"%s\" was not included as an input document.",
-                        referenceGenomeAccessionNumber
-                    ));
+        Assembler[] geneiousAssemblers = geneiousAssemblerPlugin.getAssemblers();
+        return geneiousAssemblers[1];
+    }
+
+    /**
+     * Creates a child folder, or if reattachFlag is set and one with that name already exists (because an earlier
+     * attempt at the run was interrupted), returns that one instead.
+     */
+    public static WritableDatabaseService getOrCreateChildFolder(
+        WritableDatabaseService parentWritableDatabaseService,
+        String childFolderName,
+        boolean reattachFlag
+    ) throws DatabaseServiceException {
+        if (reattachFlag) {
+            for (GeneiousService childService : parentWritableDatabaseService.getChildServices()) {
+                if (childService instanceof WritableDatabaseService && childService.getName().equals(childFolderName)) {
+                    return (WritableDatabaseService)childService;
                 }
-                AnnotatedPluginDocument referenceGenome = referenceGenomesPerAccessionNumber.get(referenceGenomeAccessionNumber);
-                writableDatabaseServiceDatum.writableDatabaseService.addDocumentCopy(
-                    referenceGenome,
-                    ProgressListener.EMPTY
-                );
-                writableDatabaseServiceDatum.referenceGenomes.add(referenceGenome);
-                String message = String.format(
-                    "Copied reference genome \"%s\" into folder \"%s\" (%d / %d)",
-                    referenceGenome.getName(),
-                    writableDatabaseServiceDatum.writableDatabaseService.getName(),
-                    i.incrementAndGet(),
-                    totalNumberOfReferenceGenomes.get()
-                );
-                progressListener.setMessage(message);
-                System.out.println(message);
             }
         }
+        return parentWritableDatabaseService.createChildFolder(childFolderName);
     }
 
-    public static void importFastqFiles(
-        Collection<WritableDatabaseServiceDatum> writableDatabaseServiceDataWithFastqFiles,
-        ExecutorService executorService,
+    public static void validateAndCopyReferenceGenomes(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        String defaultReferenceAccessionNumber,
+        Map<String, AnnotatedPluginDocument> referenceGenomesPerAccessionNumber,
+        boolean alreadyCopiedFlag,
+        WritableDatabaseServiceDatum sharedReferenceGenomesDatum,
+        DatabaseCommitQueue databaseCommitQueue,
+        RunJournal runJournal,
+        AtomicInteger i,
+        AtomicInteger totalNumberOfReferenceGenomes,
         ProgressListener progressListener
-    ) throws InterruptedException, ExecutionException {
-        // Download and copy FASTQ files.
-        List<Callable<Void>> tasks = new LinkedList<>();
-        AtomicInteger i = new AtomicInteger(0);
-        AtomicInteger fastqFileCount = new AtomicInteger(0);
-        writableDatabaseServiceDataWithFastqFiles.forEach(
-            writableDatabaseServiceDatum -> fastqFileCount.addAndGet(writableDatabaseServiceDatum.rawFastqFiles.size())
-        );
-        for (WritableDatabaseServiceDatum writableDatabaseServiceDatum : writableDatabaseServiceDataWithFastqFiles) {
-            tasks.add(() -> {
-                for (File rawFastqFile : writableDatabaseServiceDatum.rawFastqFiles) {
-                    WritableDatabaseService writableDatabaseService = writableDatabaseServiceDatum.writableDatabaseService;
-//                    compositeProgressListener.beginSubtask(String.format(
-//                        "Import %s",
-//                        rawFastqFile.getName()
-//                    ));
-                    List<AnnotatedPluginDocument> importedAnnotatedPluginDocuments = new LinkedList<>();
-                    ImportUtilities.importDocuments(
-                        rawFastqFile,
-                        new DocumentFileImporter.ImportCallback() {
-                            @Override
-                            public AnnotatedPluginDocument addDocument(PluginDocument pluginDocument) {
-                                return null;
-                            }
-
-                            @Override
-                            public AnnotatedPluginDocument addDocument(AnnotatedPluginDocument annotatedPluginDocument) {
-                                importedAnnotatedPluginDocuments.add(annotatedPluginDocument);
-                                return annotatedPluginDocument;
-                            }
-                        },
-                        ImportUtilities.ActionWhenInvalid.ReplaceInvalidBases,
-                        ProgressListener.EMPTY
-                    );
-//                    compositeProgressListener.beginNextSubtask(String.format(
-//                        "Copy FASTQ file into \"%s\" folder.",
-//                        writableDatabaseService.getName()
-//                    ));
-                    for (AnnotatedPluginDocument importedAnnotatedPluginDocument : importedAnnotatedPluginDocuments) {
-                        writableDatabaseService.addDocumentCopy(
-                            importedAnnotatedPluginDocument,
-                            ProgressListener.EMPTY
+    ) throws DocumentOperationException {
+        if (writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.size() == 0) {
+            writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.add(defaultReferenceAccessionNumber);
+        }
+        for (String referenceGenomeAccessionNumber : writableDatabaseServiceDatum.referenceGenomeAccessionNumbers) {
+            if (!referenceGenomesPerAccessionNumber.containsKey(referenceGenomeAccessionNumber)) {
+                throw new DocumentOperationException(String.format(
+                    "Reference genome \"%s\" was not included as an input document.",
+                    referenceGenomeAccessionNumber
+                ));
+            }
+            writableDatabaseServiceDatum.referenceGenomes.add(referenceGenomesPerAccessionNumber.get(referenceGenomeAccessionNumber));
+        }
+        if (sharedReferenceGenomesDatum != null) {
+            for (AnnotatedPluginDocument referenceGenome : writableDatabaseServiceDatum.referenceGenomes) {
+                // Whichever sample needs a reference genome first stores it for the whole run.
+                if (!sharedReferenceGenomesDatum.referenceGenomeAccessionNumbers.add(referenceGenome.getName())) {
+                    continue;
+                }
+                totalNumberOfReferenceGenomes.incrementAndGet();
+                databaseCommitQueue.commit(
+                    sharedReferenceGenomesDatum.writableDatabaseService,
+                    List.of(referenceGenome),
+                    null,
+                    new StageTimer(
+                        StageTimer.REFERENCE_COPY,
+                        writableDatabaseServiceDatum.sampleName
+                    ).setType(referenceGenome.getName()),
+                    referenceGenomeCopies -> {
+                        runJournal.record(
+                            RunJournal.RUN_SAMPLE_NAME,
+                            RunJournal.REFERENCE_SHARED,
+                            referenceGenome.getName()
                         );
+                        String message = String.format(
+                            "Stored reference genome \"%s\" in folder \"%s\" for the whole run (%d / %d)",
+                            referenceGenome.getName(),
+                            sharedReferenceGenomesDatum.writableDatabaseService.getName(),
+                            i.incrementAndGet(),
+                            totalNumberOfReferenceGenomes.get()
+                        );
+                        progressListener.setMessage(message);
+                        System.out.println(message);
                     }
-                    writableDatabaseServiceDatum.importedFastqFiles.addAll(importedAnnotatedPluginDocuments);
+                );
+            }
+            return;
+        }
+        if (alreadyCopiedFlag) {
+            return;
+        }
+        List<AnnotatedPluginDocument> referenceGenomes = new ArrayList<>(writableDatabaseServiceDatum.referenceGenomes);
+        totalNumberOfReferenceGenomes.addAndGet(referenceGenomes.size());
+        databaseCommitQueue.commit(
+            writableDatabaseServiceDatum.writableDatabaseService,
+            referenceGenomes,
+            null,
+            new StageTimer(
+                StageTimer.REFERENCE_COPY,
+                writableDatabaseServiceDatum.sampleName
+            ),
+            referenceGenomeCopies -> {
+                runJournal.record(
+                    writableDatabaseServiceDatum.sampleName,
+                    RunJournal.REFERENCES_COPIED
+                );
+                for (AnnotatedPluginDocument referenceGenome : referenceGenomes) {
                     String message = String.format(
-                        "Imported \"%s\" into folder \"%s\" (%d / %d)",
-                        rawFastqFile.getName(),
-                        writableDatabaseService.getName(),
+                        "Copied reference genome \"%s\" into folder \"%s\" (%d / %d)",
+                        referenceGenome.getName(),
+                        writableDatabaseServiceDatum.writableDatabaseService.getName(),
                         i.incrementAndGet(),
-                        fastqFileCount.get()
+                        totalNumberOfReferenceGenomes.get()
                     );
                     progressListener.setMessage(message);
                     System.out.println(message);
                 }
-                return null;
-            });
-        }
-        List<Future<Void>> taskReturnValues = executorService.invokeAll(tasks);
-        for (Future<Void> taskReturnValue : taskReturnValues) {
-            taskReturnValue.get();
-        }
+            }
+        );
     }
 
-    public static void performAssemblies(
-        Collection<WritableDatabaseServiceDatum> writableDatabaseServiceDataWithFastqFiles,
-        ExecutorService executorService,
-        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun,
-        boolean calculateContigsFlag,
+    /**
+     * Imports one FASTQ file into the sample's folder and returns the imported documents. They aren't added to the
+     * sample's importedFastqFiles here, so that files imported in parallel can be merged back in file order. If
+     * rawFastqFile was merged from chunk files, they are listed in chunkFastqFiles, so that they are journaled and
+     * released along with it; otherwise chunkFastqFiles is empty. If readScreen isn't null, only the reads that pass it
+     * are imported, from a screened copy that is released along with rawFastqFile.
+     */
+    public static List<AnnotatedPluginDocument> importFastqFile(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        File rawFastqFile,
+        List<File> chunkFastqFiles,
+        ReadScreen readScreen,
+        boolean useNativeFastqReaderFlag,
+        StagingCache.Session stagingSession,
+        DatabaseCommitQueue databaseCommitQueue,
+        RunJournal runJournal,
+        AtomicInteger i,
+        AtomicInteger fastqFileCount,
         ProgressListener progressListener
-    ) throws IOException, DocumentImportException, DatabaseServiceException, DocumentOperationException, InterruptedException, ExecutionException {
-        GeneiousPlugin geneiousAssemblerPlugin = getGeneiousPlugin(
-            GENEIOUS_ASSEMBLER_PLUGIN_NAME,
-            true
+    ) throws IOException, DocumentImportException, DocumentOperationException {
+        WritableDatabaseService writableDatabaseService = writableDatabaseServiceDatum.writableDatabaseService;
+        List<AnnotatedPluginDocument> importedAnnotatedPluginDocuments = new LinkedList<>();
+        List<String> journalDetails = new LinkedList<>();
+        File fastqFileToBeImported = readScreen == null ? rawFastqFile : screenFastqFile(
+            writableDatabaseServiceDatum,
+            rawFastqFile,
+            readScreen,
+            stagingSession
         );
-        Assembler[] geneiousAssemblers = geneiousAssemblerPlugin.getAssemblers();
-        Assembler geneiousAssembler = geneiousAssemblers[1];
-//        CompositeProgressListener compositeProgressListener = new CompositeProgressListener(
-//            progressListener,
-//            numberOfSubtasks
-//        );
-        Set<AnnotatedPluginDocument> allReferenceGenomes = new HashSet<>();
-        AtomicInteger i = new AtomicInteger(0);
-        AtomicInteger totalNumberOfReferenceGenomes = new AtomicInteger(0);
-        writableDatabaseServiceDataWithFastqFiles.forEach(
-            writableDatabaseServiceDatum -> totalNumberOfReferenceGenomes.addAndGet(writableDatabaseServiceDatum.referenceGenomes.size())
-        );
-        // Assemble FASTQ files to reference genomes.
-        List<Callable<Void>> tasks = new LinkedList<>();
-        for (WritableDatabaseServiceDatum writableDatabaseServiceDatum : writableDatabaseServiceDataWithFastqFiles) {
-            for (AnnotatedPluginDocument referenceGenome : writableDatabaseServiceDatum.referenceGenomes) {
-                allReferenceGenomes.add(referenceGenome);
-                if (!calculateContigsFlag) {
-                    continue;
+        try (
+            StageTimer stageTimer = StageTimer.start(
+                StageTimer.FASTQ_IMPORT,
+                writableDatabaseServiceDatum.sampleName
+            ).setBytes(fastqFileToBeImported.length())
+        ) {
+            if (useNativeFastqReaderFlag) {
+                importedAnnotatedPluginDocuments.add(FastqReader.importFastqFile(fastqFileToBeImported.toPath()));
+            } else {
+                ImportUtilities.importDocuments(
+                    fastqFileToBeImported,
+                    new DocumentFileImporter.ImportCallback() {
+                        @Override
+                        public AnnotatedPluginDocument addDocument(PluginDocument pluginDocument) {
+                            return null;
+                        }
+
+                        @Override
+                        public AnnotatedPluginDocument addDocument(AnnotatedPluginDocument annotatedPluginDocument) {
+                            importedAnnotatedPluginDocuments.add(annotatedPluginDocument);
+                            return annotatedPluginDocument;
+                        }
+                    },
+                    ImportUtilities.ActionWhenInvalid.ReplaceInvalidBases,
+                    ProgressListener.EMPTY
+                );
+            }
+            journalDetails.add(rawFastqFile.getName());
+            for (AnnotatedPluginDocument importedAnnotatedPluginDocument : importedAnnotatedPluginDocuments) {
+                journalDetails.add(importedAnnotatedPluginDocument.getName());
+                AssemblyMemoryEstimator.recordTotalSequenceLength(importedAnnotatedPluginDocument);
+                Object numberOfSequences = importedAnnotatedPluginDocument.getFieldValue(DocumentField.NUCLEOTIDE_SEQUENCE_COUNT);
+                if (numberOfSequences instanceof Number) {
+                    stageTimer.addReadCount(((Number)numberOfSequences).longValue());
                 }
-                if (writableDatabaseServiceDatum.importedFastqFiles.size() == 0) {
-                    continue;
+            }
+        }
+        databaseCommitQueue.commit(
+            writableDatabaseService,
+            importedAnnotatedPluginDocuments,
+            null,
+            new StageTimer(
+                StageTimer.FASTQ_COMMIT,
+                writableDatabaseServiceDatum.sampleName
+            ).setBytes(fastqFileToBeImported.length()),
+            importedAnnotatedPluginDocumentCopies -> {
+                List<List<String>> journalDetailsPerRecord = new ArrayList<>();
+                journalDetailsPerRecord.add(journalDetails);
+                for (File chunkFastqFile : chunkFastqFiles) {
+                    // Only the merged file's record names the documents, so that each is restored once.
+                    journalDetailsPerRecord.add(List.of(chunkFastqFile.getName()));
                 }
-                long numberOfSequencesExcludingReferences = 0;
-                for (AnnotatedPluginDocument importedFastqFile : writableDatabaseServiceDatum.importedFastqFiles) {
-                    numberOfSequencesExcludingReferences += (int)importedFastqFile.getFieldValue(DocumentField.NUCLEOTIDE_SEQUENCE_COUNT);
+                runJournal.recordEach(
+                    writableDatabaseServiceDatum.sampleName,
+                    RunJournal.IMPORTED,
+                    journalDetailsPerRecord
+                );
+                // The staged copy isn't needed once its documents are in the database.
+                stagingSession.release(rawFastqFile.toPath());
+                if (fastqFileToBeImported != rawFastqFile) {
+                    stagingSession.release(fastqFileToBeImported.toPath());
+                }
+                for (File chunkFastqFile : chunkFastqFiles) {
+                    stagingSession.release(chunkFastqFile.toPath());
                 }
+                String message = String.format(
+                    "Imported \"%s\" into folder \"%s\" (%d / %d)",
+                    rawFastqFile.getName(),
+                    writableDatabaseService.getName(),
+                    i.incrementAndGet(),
+                    fastqFileCount.get()
+                );
+                progressListener.setMessage(message);
+                System.out.println(message);
+            }
+        );
+        return importedAnnotatedPluginDocuments;
+    }
 
+    /**
+     * Writes the reads of rawFastqFile that pass readScreen to a scratch file of the staging session and returns it.
+     */
+    private static File screenFastqFile(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        File rawFastqFile,
+        ReadScreen readScreen,
+        StagingCache.Session stagingSession
+    ) throws IOException {
+        // Named like rawFastqFile once its extension is dropped, so that the documents are named the same.
+        Path screenedFastqFilePath = stagingSession.createScratchFilePath(FastqReader.formatDocumentName(rawFastqFile.toPath()) + ".fastq");
+        try (
+            StageTimer stageTimer = StageTimer.start(
+                StageTimer.READ_SCREEN,
+                writableDatabaseServiceDatum.sampleName
+            ).setBytes(rawFastqFile.length())
+        ) {
+            ReadScreen.Result result = readScreen.screen(
+                rawFastqFile.toPath(),
+                screenedFastqFilePath
+            );
+            stageTimer.addReadCount(result.numberOfReads);
+            System.out.printf(
+                "Kept %d of %d reads of \"%s\"%n",
+                result.numberOfKeptReads,
+                result.numberOfReads,
+                rawFastqFile.getName()
+            );
+        }
+        return screenedFastqFilePath.toFile();
+    }
+
+    /**
+     * Assembles the sample's reads against referenceGenome and commits the contig. If pileupFolderPath isn't null, only
+     * the imported documents that the sample's saved pileup doesn't hold yet are assembled, and the committed contig is
+     * built from the pileup instead. If readBinner isn't null, only the reads binned to referenceGenome are assembled.
+     * If referenceMapper isn't null, it maps the reads in place of geneiousAssembler, which is then null, and the
+     * contig is always built from a pileup, kept only in memory when pileupFolderPath is null. If readDownsampler isn't
+     * null, the reads are downsampled last, and the fraction kept is set on the contig.
+     */
+    public static void performAssembly(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        AnnotatedPluginDocument referenceGenome,
+        Assembler geneiousAssembler,
+        ReferenceMapper referenceMapper,
+        boolean reattachFlag,
+        Path pileupFolderPath,
+        ReadBinner readBinner,
+        ReadDownsampler readDownsampler,
+        DatabaseCommitQueue databaseCommitQueue,
+        RunJournal runJournal,
+        AtomicInteger i,
+        AtomicInteger totalNumberOfReferenceGenomes,
+        ProgressListener progressListener
+    ) throws DocumentOperationException, DatabaseServiceException {
+        String sampleName = writableDatabaseServiceDatum.sampleName;
+        List<AnnotatedPluginDocument> importedFastqFilesToBeAssembled = writableDatabaseServiceDatum.importedFastqFiles;
+        Map<String, Long> sequenceCountsPerImportedFastqFileName = new LinkedHashMap<>();
+        ReadPileup readPileup = null;
+        if (pileupFolderPath != null) {
+            for (AnnotatedPluginDocument importedFastqFile : writableDatabaseServiceDatum.importedFastqFiles) {
+                sequenceCountsPerImportedFastqFileName.put(
+                    importedFastqFile.getName(),
+                    ((Number)importedFastqFile.getFieldValue(DocumentField.NUCLEOTIDE_SEQUENCE_COUNT)).longValue()
+                );
+            }
+            try {
+                readPileup = ReadPileup.open(
+                    pileupFolderPath,
+                    sampleName == null ? "" : sampleName,
+                    (SequenceDocument)referenceGenome.getDocument()
+                );
+            } catch (IOException ioException) {
+                throw new DocumentOperationException(ioException);
+            }
+            Set<String> unfoldedImportedFastqFileNames = new HashSet<>(readPileup.getUnfoldedSourceNames(sequenceCountsPerImportedFastqFileName));
+            importedFastqFilesToBeAssembled = new ArrayList<>();
+            for (AnnotatedPluginDocument importedFastqFile : writableDatabaseServiceDatum.importedFastqFiles) {
+                if (unfoldedImportedFastqFileNames.contains(importedFastqFile.getName())) {
+                    importedFastqFilesToBeAssembled.add(importedFastqFile);
+                }
+            }
+        } else if (referenceMapper != null) {
+            // The mapper only ever counts into a pileup.
+            readPileup = ReadPileup.create((SequenceDocument)referenceGenome.getDocument());
+        }
+
+        List<AnnotatedPluginDocument> readDocumentsToBeAssembled = importedFastqFilesToBeAssembled;
+        long numberOfSequencesExcludingReferences = 0;
+        if (readBinner != null) {
+            ReadBinner.Bin bin = readBinner.getBin(
+                referenceGenome,
+                importedFastqFilesToBeAssembled
+            );
+            readDocumentsToBeAssembled = bin.documents;
+            numberOfSequencesExcludingReferences = bin.numberOfReads;
+        } else {
+            for (AnnotatedPluginDocument importedFastqFile : importedFastqFilesToBeAssembled) {
+                numberOfSequencesExcludingReferences += (int)importedFastqFile.getFieldValue(DocumentField.NUCLEOTIDE_SEQUENCE_COUNT);
+            }
+        }
+        double downsamplingFraction = 1;
+        if (readDownsampler != null && !readDocumentsToBeAssembled.isEmpty()) {
+            ReadDownsampler.Sample sample = readDownsampler.downsample(
+                readDocumentsToBeAssembled,
+                (SequenceDocument)referenceGenome.getDocument(),
+                readPileup
+            );
+            readDocumentsToBeAssembled = sample.documents;
+            numberOfSequencesExcludingReferences = sample.numberOfReads;
+            downsamplingFraction = sample.fraction;
+        }
+
+        String contigDocumentName = String.format(
+            "%s - [TYPE] - Final Contig",
+            sampleName == null ? "[SAMPLE_NAME]" : sampleName
+        );
+        String folderName = String.format(
+            "%s - Final Contig",
+            referenceGenome.getName()
+        );
+        List<AnnotatedPluginDocument> outputContigDocuments = new LinkedList<>();
+        ReadPileup readPileupOrNull = readPileup;
+        try (
+            StageTimer stageTimer = StageTimer.start(
+                StageTimer.ASSEMBLY,
+                sampleName
+            ).setType(referenceGenome.getName()).addReadCount(numberOfSequencesExcludingReferences)
+        ) {
+            if (!readDocumentsToBeAssembled.isEmpty() && referenceMapper != null) {
+                referenceMapper.map(
+                    readDocumentsToBeAssembled,
+                    readPileupOrNull,
+                    ((SequenceDocument)referenceGenome.getDocument()).getCharSequence()
+                );
+            } else if (!readDocumentsToBeAssembled.isEmpty()) {
                 AssemblerInput.Properties assemblerInputProperties = new AssemblerInput.Properties(numberOfSequencesExcludingReferences);
                 Options geneiousAssemblerOptions = geneiousAssembler.getOptions(
                     null,
@@ -220,105 +430,283 @@ public class HelperFunctions {
                 ));
                 List<AnnotatedPluginDocument> documentsToBeAssembled = new LinkedList<>();
                 documentsToBeAssembled.add(referenceGenome);
-                documentsToBeAssembled.addAll(writableDatabaseServiceDatum.importedFastqFiles);
+                documentsToBeAssembled.addAll(readDocumentsToBeAssembled);
                 AssemblerInput geneiousAssemblerInput = new AssemblerInput(
                     documentsToBeAssembled,
                     referenceSequences,
                     false
                 );
-                String sampleName = writableDatabaseServiceDatum.sampleName;
-                String contigDocumentName = String.format(
-                    "%s - [TYPE] - Final Contig",
-                    sampleName == null ? "[SAMPLE_NAME]" : sampleName
-                );
-                String folderName = String.format(
-                    "%s - Final Contig",
-                    referenceGenome.getName()
-                );
-                List<AnnotatedPluginDocument> outputContigDocuments = new LinkedList<>();
-                tasks.add(() -> {
-                    geneiousAssembler.assemble(
-                        geneiousAssemblerOptions,
-                        geneiousAssemblerInput,
-                        null,
-                        new Assembler.Callback() {
-                            @Override
-                            public void addContigDocument(
-                                SequenceAlignmentDocument contig,
-                                NucleotideSequenceDocument contigConsensus,
-                                boolean isThisTheOnlyContigGeneratedByDeNovoAssembly,
-                                ProgressListener progressListener
-                            ) {
+                geneiousAssembler.assemble(
+                    geneiousAssemblerOptions,
+                    geneiousAssemblerInput,
+                    null,
+                    new Assembler.Callback() {
+                        @Override
+                        public void addContigDocument(
+                            SequenceAlignmentDocument contig,
+                            NucleotideSequenceDocument contigConsensus,
+                            boolean isThisTheOnlyContigGeneratedByDeNovoAssembly,
+                            ProgressListener progressListener
+                        ) {
+                            if (readPileupOrNull == null) {
                                 outputContigDocuments.add(DocumentUtilities.createAnnotatedPluginDocument(contig));
+                            } else {
+                                // Folded straight in, so that the reads don't have to be held until the assembly ends.
+                                readPileupOrNull.fold(contig);
                             }
+                        }
 
-                            @Override
-                            public void addUnusedRead(
-                                AssemblerInput.Read read,
-                                ProgressListener progressListener
-                            ) {
-                                // Do nothing.
-                            }
+                        @Override
+                        public void addUnusedRead(
+                            AssemblerInput.Read read,
+                            ProgressListener progressListener
+                        ) {
+                            // Do nothing.
                         }
-                    );
-                    WritableDatabaseService writableDatabaseServiceForContig = writableDatabaseServiceDatum.writableDatabaseService.createChildFolder(folderName);
-                    for (AnnotatedPluginDocument outputContigDocument : outputContigDocuments) {
-                        // I'm trying to do this in multiple ways, because it isn't working reliably.
-                        // It might be necessary to set a delay in order for this to work reliably.
-                        outputContigDocument.setName(contigDocumentName);
-                        AnnotatedPluginDocument documentCopy = writableDatabaseServiceForContig.addDocumentCopy(
-                            outputContigDocument,
-                            null
-                        );
-                        documentCopy.setName(contigDocumentName);
                     }
-                    String message = String.format(
-                        "Calculated \"%s\" in folder \"%s\" (%d / %d)",
-                        contigDocumentName,
-                        folderName,
-                        i.incrementAndGet(),
-                        totalNumberOfReferenceGenomes.get()
+                );
+            }
+            if (readPileupOrNull != null) {
+                if (pileupFolderPath != null) {
+                    readPileupOrNull.addSources(sequenceCountsPerImportedFastqFileName);
+                    readPileupOrNull.save();
+                }
+                outputContigDocuments.add(createPileupContigDocument(
+                    readPileupOrNull,
+                    referenceGenome
+                ));
+            }
+            if (readDownsampler != null) {
+                for (AnnotatedPluginDocument outputContigDocument : outputContigDocuments) {
+                    outputContigDocument.setFieldValue(
+                        ReadDownsampler.DOWNSAMPLING_FRACTION_FIELD,
+                        downsamplingFraction
                     );
-                    progressListener.setMessage(message);
-                    System.out.println(message);
-                    return null;
-                });
+                }
             }
+        } catch (IOException ioException) {
+            throw new DocumentOperationException(ioException);
         }
-        List<Future<Void>> taskReturnValues = executorService.invokeAll(tasks);
-        for (Future<Void> taskReturnValue : taskReturnValues) {
-            taskReturnValue.get();
-        }
+        databaseCommitQueue.commit(
+            () -> {
+                // Always looked up first, since the queue retries this and a failed attempt may still have created it.
+                WritableDatabaseService writableDatabaseServiceForContig = getOrCreateChildFolder(
+                    writableDatabaseServiceDatum.writableDatabaseService,
+                    folderName,
+                    true
+                );
+                if (reattachFlag) {
+                    // Anything already in here was left by an attempt that was interrupted before it was journaled.
+                    for (AnnotatedPluginDocument leftOverDocument : writableDatabaseServiceForContig.retrieve("")) {
+                        writableDatabaseServiceForContig.removeDocument(leftOverDocument);
+                    }
+                }
+                return writableDatabaseServiceForContig;
+            },
+            outputContigDocuments,
+            contigDocumentName,
+            new StageTimer(
+                StageTimer.CONTIG_COMMIT,
+                sampleName
+            ).setType(referenceGenome.getName()),
+            outputContigDocumentCopies -> {
+                runJournal.record(
+                    writableDatabaseServiceDatum.sampleName,
+                    RunJournal.ASSEMBLED,
+                    referenceGenome.getName()
+                );
+                String message = String.format(
+                    "Calculated \"%s\" in folder \"%s\" (%d / %d)",
+                    contigDocumentName,
+                    folderName,
+                    i.incrementAndGet(),
+                    totalNumberOfReferenceGenomes.get()
+                );
+                progressListener.setMessage(message);
+                System.out.println(message);
+            }
+        );
+    }
 
-        WritableDatabaseService writableDatabaseServicePerFinalAssemblies = writableDatabaseServiceDatumPerRun.writableDatabaseService.createChildFolder(FINAL_ASSEMBLIES_FOLDER_NAME);
-        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerFinalAssemblies = new WritableDatabaseServiceDatum(writableDatabaseServicePerFinalAssemblies);
+    /**
+     * Returns a contig of the reference and the pileup's consensus, with the coverage figures that Finalize reads from
+     * an assembled contig taken from the pileup instead.
+     */
+    private static AnnotatedPluginDocument createPileupContigDocument(
+        ReadPileup readPileup,
+        AnnotatedPluginDocument referenceGenome
+    ) throws DocumentOperationException {
+        SequenceDocument referenceSequenceDocument = (SequenceDocument)referenceGenome.getDocument();
+        DefaultAlignmentDocument contig = new DefaultAlignmentDocument(
+            referenceGenome.getName(),
+            referenceSequenceDocument,
+            new DefaultNucleotideSequence(
+                String.format(
+                    "Consensus of %d reads",
+                    readPileup.getNumberOfReads()
+                ),
+                readPileup.getConsensus()
+            )
+        );
+        contig.setContigReferenceSequenceIndex(0);
+        AnnotatedPluginDocument contigDocument = DocumentUtilities.createAnnotatedPluginDocument(contig);
+        contigDocument.setFieldValue(
+            DocumentField.CONTIG_MEAN_COVERAGE,
+            readPileup.getMeanCoverage()
+        );
+        contigDocument.setFieldValue(
+            DocumentField.CONTIG_PERCENTAGE_OF_REFERENCE_SEQUENCE_COVERED,
+            new Percentage(readPileup.getPercentageOfReferenceCovered())
+        );
+        contigDocument.setFieldValue(
+            ReadPileup.COVERAGE_FIELD,
+            readPileup.encodeCoverage()
+        );
+        return contigDocument;
+    }
+
+    /**
+     * Returns the References folder of the run's Final Assemblies folder, creating Final Assemblies along with its
+     * Alignments and References folders the first time.
+     */
+    public static WritableDatabaseServiceDatum getOrCreateFinalAssembliesFolders(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun,
+        boolean reattachFlag
+    ) throws DatabaseServiceException {
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerFinalAssemblies = writableDatabaseServiceDatumPerRun.children.get(FINAL_ASSEMBLIES_FOLDER_NAME);
+        if (writableDatabaseServiceDatumPerFinalAssemblies != null) {
+            return writableDatabaseServiceDatumPerFinalAssemblies.children.get(REFERENCES_FOLDER_NAME);
+        }
+        WritableDatabaseService writableDatabaseServicePerFinalAssemblies = getOrCreateChildFolder(
+            writableDatabaseServiceDatumPerRun.writableDatabaseService,
+            FINAL_ASSEMBLIES_FOLDER_NAME,
+            reattachFlag
+        );
+        writableDatabaseServiceDatumPerFinalAssemblies = new WritableDatabaseServiceDatum(writableDatabaseServicePerFinalAssemblies);
         writableDatabaseServiceDatumPerRun.children.put(
             FINAL_ASSEMBLIES_FOLDER_NAME,
             writableDatabaseServiceDatumPerFinalAssemblies
         );
-        WritableDatabaseService writableDatabaseServicePerAlignments = writableDatabaseServicePerFinalAssemblies.createChildFolder(ALIGNMENTS_FOLDER_NAME);
+        WritableDatabaseService writableDatabaseServicePerAlignments = getOrCreateChildFolder(
+            writableDatabaseServicePerFinalAssemblies,
+            ALIGNMENTS_FOLDER_NAME,
+            reattachFlag
+        );
         WritableDatabaseServiceDatum writableDatabaseServiceDatumPerAlignments = new WritableDatabaseServiceDatum(writableDatabaseServicePerAlignments);
         writableDatabaseServiceDatumPerFinalAssemblies.children.put(
             ALIGNMENTS_FOLDER_NAME,
             writableDatabaseServiceDatumPerAlignments
         );
-        WritableDatabaseService writableDatabaseServicePerReferences = writableDatabaseServicePerFinalAssemblies.createChildFolder(REFERENCES_FOLDER_NAME);
+        WritableDatabaseService writableDatabaseServicePerReferences = getOrCreateChildFolder(
+            writableDatabaseServicePerFinalAssemblies,
+            REFERENCES_FOLDER_NAME,
+            reattachFlag
+        );
         WritableDatabaseServiceDatum writableDatabaseServiceDatumPerReferences = new WritableDatabaseServiceDatum(writableDatabaseServicePerReferences);
         writableDatabaseServiceDatumPerFinalAssemblies.children.put(
             REFERENCES_FOLDER_NAME,
             writableDatabaseServiceDatumPerReferences
         );
+        return writableDatabaseServiceDatumPerReferences;
+    }
 
-        for (WritableDatabaseService writableDatabaseService : List.of(
-            writableDatabaseServicePerFinalAssemblies,
-            writableDatabaseServicePerReferences
-        )) {
-            for (AnnotatedPluginDocument referenceGenome : allReferenceGenomes) {
-                writableDatabaseService.addDocumentCopy(
-                    referenceGenome,
-                    null
-                );
+    /**
+     * Sets up the run's References folder as the one place every reference genome is stored, so that samples don't
+     * each need a copy. Its referenceGenomeAccessionNumbers hold the names of the reference genomes already stored.
+     */
+    public static WritableDatabaseServiceDatum prepareSharedReferenceGenomes(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun,
+        RunJournal runJournal
+    ) throws DatabaseServiceException {
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerReferences = getOrCreateFinalAssembliesFolders(
+            writableDatabaseServiceDatumPerRun,
+            runJournal.isResuming()
+        );
+        if (runJournal.isResuming()) {
+            Set<String> sharedReferenceGenomeNames = new HashSet<>();
+            for (List<String> details : runJournal.getRecords(RunJournal.RUN_SAMPLE_NAME, RunJournal.REFERENCE_SHARED)) {
+                sharedReferenceGenomeNames.add(details.get(0));
             }
+            // Anything not journaled was written by an attempt that was interrupted, and is stored again.
+            for (AnnotatedPluginDocument referenceGenome : writableDatabaseServiceDatumPerReferences.writableDatabaseService.retrieve("")) {
+                if (!sharedReferenceGenomeNames.contains(referenceGenome.getName())) {
+                    writableDatabaseServiceDatumPerReferences.writableDatabaseService.removeDocument(referenceGenome);
+                }
+            }
+            writableDatabaseServiceDatumPerReferences.referenceGenomeAccessionNumbers.addAll(sharedReferenceGenomeNames);
         }
+        return writableDatabaseServiceDatumPerReferences;
+    }
+
+    public static void copyReferenceGenomesIntoFinalAssemblies(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerRun,
+        Collection<AnnotatedPluginDocument> allReferenceGenomes,
+        boolean shareReferenceGenomesFlag,
+        DatabaseCommitQueue databaseCommitQueue,
+        RunJournal runJournal
+    ) throws DatabaseServiceException, DocumentOperationException, InterruptedException, IOException {
+        if (runJournal.hasRecord(RunJournal.RUN_SAMPLE_NAME, RunJournal.FINAL_ASSEMBLIES_COPIED)) {
+            return;
+        }
+        WritableDatabaseServiceDatum writableDatabaseServiceDatumPerReferences;
+        if (shareReferenceGenomesFlag) {
+            writableDatabaseServiceDatumPerReferences = getOrCreateFinalAssembliesFolders(
+                writableDatabaseServiceDatumPerRun,
+                true
+            );
+            if (runJournal.isResuming()) {
+                WritableDatabaseService writableDatabaseServicePerFinalAssemblies = writableDatabaseServiceDatumPerRun.children.get(FINAL_ASSEMBLIES_FOLDER_NAME).writableDatabaseService;
+                for (AnnotatedPluginDocument leftOverDocument : writableDatabaseServicePerFinalAssemblies.retrieve("")) {
+                    writableDatabaseServicePerFinalAssemblies.removeDocument(leftOverDocument);
+                }
+            }
+        } else {
+            // A previous attempt may have been interrupted part of the way through, so its folders are replaced.
+            if (runJournal.isResuming()) {
+                for (GeneiousService childService : writableDatabaseServiceDatumPerRun.writableDatabaseService.getChildServices()) {
+                    if (childService instanceof WritableDatabaseService && childService.getName().equals(FINAL_ASSEMBLIES_FOLDER_NAME)) {
+                        writableDatabaseServiceDatumPerRun.writableDatabaseService.removeChildFolder(FINAL_ASSEMBLIES_FOLDER_NAME);
+                        break;
+                    }
+                }
+            }
+            writableDatabaseServiceDatumPerReferences = getOrCreateFinalAssembliesFolders(
+                writableDatabaseServiceDatumPerRun,
+                false
+            );
+        }
+
+        List<AnnotatedPluginDocument> referenceGenomesMissingFromReferences = new LinkedList<>();
+        for (AnnotatedPluginDocument referenceGenome : allReferenceGenomes) {
+            if (!writableDatabaseServiceDatumPerReferences.referenceGenomeAccessionNumbers.contains(referenceGenome.getName())) {
+                referenceGenomesMissingFromReferences.add(referenceGenome);
+            }
+        }
+        // Both folders are queued together and written in the same batches as whatever else is still being committed.
+        databaseCommitQueue.commit(
+            writableDatabaseServiceDatumPerRun.children.get(FINAL_ASSEMBLIES_FOLDER_NAME).writableDatabaseService,
+            new ArrayList<>(allReferenceGenomes),
+            null,
+            new StageTimer(
+                StageTimer.REFERENCE_COPY,
+                null
+            ).setType(FINAL_ASSEMBLIES_FOLDER_NAME),
+            null
+        );
+        databaseCommitQueue.commit(
+            writableDatabaseServiceDatumPerReferences.writableDatabaseService,
+            referenceGenomesMissingFromReferences,
+            null,
+            new StageTimer(
+                StageTimer.REFERENCE_COPY,
+                null
+            ).setType(REFERENCES_FOLDER_NAME),
+            null
+        );
+        databaseCommitQueue.flush();
+        runJournal.record(
+            RunJournal.RUN_SAMPLE_NAME,
+            RunJournal.FINAL_ASSEMBLIES_COPIED
+        );
     }
 }
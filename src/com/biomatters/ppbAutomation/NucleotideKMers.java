@@ -0,0 +1,147 @@
+package com.biomatters.ppbAutomation;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The 2-bit nucleotide encoding, canonical k-mer iteration and open-addressing slot probe shared by the classes that
+ * index reads and references by k-mer.
+ */
+final class NucleotideKMers {
+    // Marks an empty slot; no k-mer of 31 or fewer bases has every bit set.
+    static final long EMPTY_KEY = -1;
+    private static final byte[] CODES_PER_CHARACTER = new byte[128];
+
+    static {
+        Arrays.fill(CODES_PER_CHARACTER, (byte)-1);
+        String nucleotides = "ACGT";
+        for (int code = 0; code < nucleotides.length(); code++) {
+            CODES_PER_CHARACTER[nucleotides.charAt(code)] = (byte)code;
+            CODES_PER_CHARACTER[Character.toLowerCase(nucleotides.charAt(code))] = (byte)code;
+        }
+        CODES_PER_CHARACTER['U'] = CODES_PER_CHARACTER['T'];
+        CODES_PER_CHARACTER['u'] = CODES_PER_CHARACTER['T'];
+    }
+
+    interface KMerConsumer {
+        void accept(long kMer);
+    }
+
+    private NucleotideKMers() {
+    }
+
+    /**
+     * Returns the 2-bit code of A, C, G, T or U, in either case, or -1 for any other character.
+     */
+    static int encode(int character) {
+        return character >= 0 && character < 128 ? CODES_PER_CHARACTER[character] : -1;
+    }
+
+    static long mask(int k) {
+        return (1L << (2 * k)) - 1;
+    }
+
+    /**
+     * Calls kMerConsumer with the smaller of each k-mer and its reverse complement, skipping k-mers that span anything
+     * other than A, C, G, T or U.
+     */
+    static void forEachCanonicalKMer(
+        int k,
+        CharSequence sequence,
+        KMerConsumer kMerConsumer
+    ) {
+        long kMerMask = mask(k);
+        long forwardKMer = 0;
+        long reverseKMer = 0;
+        int validLength = 0;
+        int length = sequence.length();
+        for (int i = 0; i < length; i++) {
+            int code = encode(sequence.charAt(i));
+            if (code < 0) {
+                validLength = 0;
+                continue;
+            }
+            forwardKMer = ((forwardKMer << 2) | code) & kMerMask;
+            reverseKMer = (reverseKMer >>> 2) | ((long)(3 - code) << (2 * (k - 1)));
+            if (++validLength >= k) {
+                kMerConsumer.accept(Math.min(
+                    forwardKMer,
+                    reverseKMer
+                ));
+            }
+        }
+    }
+
+    /**
+     * Like {@link #forEachCanonicalKMer(int, CharSequence, KMerConsumer)}, for the first length ASCII bytes of
+     * sequence.
+     */
+    static void forEachCanonicalKMer(
+        int k,
+        byte[] sequence,
+        int length,
+        KMerConsumer kMerConsumer
+    ) {
+        long kMerMask = mask(k);
+        long forwardKMer = 0;
+        long reverseKMer = 0;
+        int validLength = 0;
+        for (int i = 0; i < length; i++) {
+            int code = encode(sequence[i] & 0xFF);
+            if (code < 0) {
+                validLength = 0;
+                continue;
+            }
+            forwardKMer = ((forwardKMer << 2) | code) & kMerMask;
+            reverseKMer = (reverseKMer >>> 2) | ((long)(3 - code) << (2 * (k - 1)));
+            if (++validLength >= k) {
+                kMerConsumer.accept(Math.min(
+                    forwardKMer,
+                    reverseKMer
+                ));
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of keys that holds kMer, or the empty slot it would go in. The number of slots must be a power
+     * of two, and at least one must be empty.
+     */
+    static int findSlot(
+        LongBuffer keys,
+        long kMer
+    ) {
+        int slotMask = keys.capacity() - 1;
+        int slot = firstSlot(kMer, slotMask);
+        long key;
+        while ((key = keys.get(slot)) != EMPTY_KEY && key != kMer) {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Like {@link #findSlot(LongBuffer, long)}, for keys kept in an array.
+     */
+    static int findSlot(
+        long[] keys,
+        long kMer
+    ) {
+        int slotMask = keys.length - 1;
+        int slot = firstSlot(kMer, slotMask);
+        long key;
+        while ((key = keys[slot]) != EMPTY_KEY && key != kMer) {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    private static int firstSlot(
+        long kMer,
+        int slotMask
+    ) {
+        // Spreads the k-mer's bits (the multiplier is from MurmurHash3's finalizer) so neighbouring k-mers don't cluster.
+        long hash = kMer * 0xff51afd7ed558ccdL;
+        return (int)(hash ^ (hash >>> 32)) & slotMask;
+    }
+}
@@ -3,6 +3,8 @@ package com.biomatters.ppbAutomation;
 import com.biomatters.geneious.publicapi.plugin.DocumentOperation;
 import com.biomatters.geneious.publicapi.plugin.GeneiousPlugin;
 
+import java.io.File;
+
 /**
  * The bootstrap class for the PPBAutomationPlugin. Its function is to act as a
  * factory class for the BackTranslationOperation class and to provide basic
@@ -19,6 +21,32 @@ import com.biomatters.geneious.publicapi.plugin.GeneiousPlugin;
  * @author Bruce Ashton
  */
 public class PPBAutomationPlugin extends GeneiousPlugin {
+    private static PluginExecutionService pluginExecutionService;
+
+    /**
+     * Returns the threads shared by every operation, creating them the first time and shutting them down with the JVM.
+     */
+    static synchronized PluginExecutionService getPluginExecutionService() {
+        if (pluginExecutionService == null) {
+            PluginExecutionService newPluginExecutionService = new PluginExecutionService();
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                newPluginExecutionService::shutdown,
+                "PPB shutdown"
+            ));
+            pluginExecutionService = newPluginExecutionService;
+        }
+        return pluginExecutionService;
+    }
+
+    @Override
+    public void initialize(
+        File pluginUserDirectory,
+        File pluginDirectory
+    ) {
+        // Clearing out what crashed runs left behind can take a while, so it isn't allowed to hold up Geneious starting.
+        getPluginExecutionService().getIoExecutorService().execute(StagingCache::deleteLegacyTemporaryFolders);
+    }
+
     public String getAuthors() {
         return "CDC/DVD/NCIRD/PPB/MESL/Caeden Meade";
     }
@@ -0,0 +1,353 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a BGZF file (the blocked gzip written by bgzip and samtools) on several threads at once.
+ * <p>
+ * Every BGZF block records its own compressed size, so the blocks can be found without inflating anything and handed
+ * out in batches. The inflated batches are returned in file order. Gzip files that aren't BGZF don't say where their
+ * members end, so they are inflated sequentially, one buffer ahead of the parser.
+ */
+class ParallelGzipByteChunkSource implements FastqReader.ByteChunkSource {
+    // A BGZF block never inflates to more than 64 KiB, so a batch always fits in one pooled buffer.
+    private static final int BLOCKS_PER_BATCH = DirectByteBufferPool.BUFFER_SIZE >> 16;
+    private static final int BGZF_HEADER_SIZE = 18;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final long MAP_REGION_SIZE = 256L << 20;
+    private static final int NUMBER_OF_DECOMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAXIMUM_NUMBER_OF_BATCHES_IN_FLIGHT = 2 * NUMBER_OF_DECOMPRESSION_THREADS;
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<CRC32> crc32s = ThreadLocal.withInitial(CRC32::new);
+
+    private static final class Batch {
+        final ByteBuffer compressedBytes;
+        final long offset;
+
+        Batch(
+            ByteBuffer compressedBytes,
+            long offset
+        ) {
+            this.compressedBytes = compressedBytes;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Pulls chunks from a sequential source on a decompression thread, so the next chunk is being inflated while the
+     * current one is parsed.
+     */
+    static final class ReadAheadByteChunkSource implements FastqReader.ByteChunkSource {
+        private final FastqReader.ByteChunkSource byteChunkSource;
+        private Future<ByteBuffer> nextChunk;
+        private ByteBuffer currentChunk;
+
+        ReadAheadByteChunkSource(FastqReader.ByteChunkSource byteChunkSource) {
+            this.byteChunkSource = byteChunkSource;
+            this.nextChunk = getDecompressionExecutorService().submit(this::copyNextChunk);
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            DirectByteBufferPool.release(this.currentChunk);
+            this.currentChunk = awaitChunk(this.nextChunk);
+            this.nextChunk = this.currentChunk == null ? null : getDecompressionExecutorService().submit(this::copyNextChunk);
+            return this.currentChunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            discardChunk(this.nextChunk);
+            DirectByteBufferPool.release(this.currentChunk);
+            this.currentChunk = null;
+            this.byteChunkSource.close();
+        }
+
+        private ByteBuffer copyNextChunk() throws IOException {
+            ByteBuffer chunk = this.byteChunkSource.nextChunk();
+            if (chunk == null) {
+                return null;
+            }
+            ByteBuffer copiedChunk = DirectByteBufferPool.acquire();
+            if (chunk.remaining() > copiedChunk.capacity()) {
+                copiedChunk = ByteBuffer.allocateDirect(chunk.remaining());
+            }
+            copiedChunk.put(chunk);
+            copiedChunk.flip();
+            return copiedChunk;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel fileChannel;
+    private final long size;
+    private ByteBuffer region;
+    private long regionOffset = 0;
+    private final Deque<Future<ByteBuffer>> batchesInFlight = new ArrayDeque<>();
+    private boolean exhaustedFlag = false;
+    private ByteBuffer currentChunk;
+
+    /**
+     * Opens a gzipped file, inflating it in parallel if it is BGZF.
+     */
+    static FastqReader.ByteChunkSource open(Path path) throws IOException {
+        if (isBgzf(path)) {
+            return new ParallelGzipByteChunkSource(path);
+        }
+        FastqReader.ByteChunkSource mappedByteChunkSource = new FastqReader.MappedByteChunkSource(path);
+        try {
+            return new ReadAheadByteChunkSource(new FastqReader.GzipByteChunkSource(mappedByteChunkSource));
+        } catch (IOException | RuntimeException exception) {
+            mappedByteChunkSource.close();
+            throw exception;
+        }
+    }
+
+    private ParallelGzipByteChunkSource(Path path) throws IOException {
+        this.path = path;
+        this.fileChannel = FileChannel.open(
+            path,
+            StandardOpenOption.READ
+        );
+        this.size = this.fileChannel.size();
+    }
+
+    @Override
+    public ByteBuffer nextChunk() throws IOException {
+        DirectByteBufferPool.release(this.currentChunk);
+        this.currentChunk = null;
+        while (!this.exhaustedFlag && this.batchesInFlight.size() < MAXIMUM_NUMBER_OF_BATCHES_IN_FLIGHT) {
+            Batch batch = nextBatch();
+            if (batch == null) {
+                this.exhaustedFlag = true;
+                break;
+            }
+            this.batchesInFlight.add(getDecompressionExecutorService().submit(() -> inflateBatch(batch)));
+        }
+        Future<ByteBuffer> batchInFlight = this.batchesInFlight.poll();
+        if (batchInFlight == null) {
+            return null;
+        }
+        this.currentChunk = awaitChunk(batchInFlight);
+        return this.currentChunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<ByteBuffer> batchInFlight : this.batchesInFlight) {
+            discardChunk(batchInFlight);
+        }
+        this.batchesInFlight.clear();
+        DirectByteBufferPool.release(this.currentChunk);
+        this.currentChunk = null;
+        this.fileChannel.close();
+    }
+
+    private Batch nextBatch() throws IOException {
+        if (this.region == null) {
+            if (this.size == 0) {
+                return null;
+            }
+            mapRegion(0);
+        }
+        int batchStart = this.region.position();
+        int numberOfBlocks = 0;
+        while (numberOfBlocks < BLOCKS_PER_BATCH && this.regionOffset + this.region.position() < this.size) {
+            int blockSize = readBlockSize(this.region);
+            if (blockSize == -1 || blockSize > this.region.remaining()) {
+                if (numberOfBlocks > 0) {
+                    // Finish this batch and start the next one in a fresh region.
+                    break;
+                }
+                if (this.regionOffset + this.region.limit() >= this.size) {
+                    throw new IOException(String.format(
+                        "BGZF file \"%s\" is truncated at offset %d.",
+                        this.path,
+                        this.regionOffset + this.region.position()
+                    ));
+                }
+                mapRegion(this.regionOffset + this.region.position());
+                batchStart = 0;
+                continue;
+            }
+            this.region.position(this.region.position() + blockSize);
+            numberOfBlocks++;
+        }
+        if (numberOfBlocks == 0) {
+            return null;
+        }
+        ByteBuffer compressedBytes = this.region.duplicate();
+        compressedBytes.limit(this.region.position()).position(batchStart);
+        return new Batch(
+            compressedBytes.slice(),
+            this.regionOffset + batchStart
+        );
+    }
+
+    private void mapRegion(long offset) throws IOException {
+        this.regionOffset = offset;
+        // Batches that are still being inflated keep their own reference to the previous region.
+        this.region = this.fileChannel.map(
+            FileChannel.MapMode.READ_ONLY,
+            offset,
+            Math.min(
+                MAP_REGION_SIZE,
+                this.size - offset
+            )
+        );
+    }
+
+    /**
+     * Returns the size of the BGZF block starting at the buffer's position, or -1 if its header isn't all in the buffer.
+     */
+    private int readBlockSize(ByteBuffer byteBuffer) throws IOException {
+        int blockStart = byteBuffer.position();
+        if (byteBuffer.remaining() < BGZF_HEADER_SIZE) {
+            return -1;
+        }
+        if ((byteBuffer.get(blockStart) & 0xFF) != 0x1F
+            || (byteBuffer.get(blockStart + 1) & 0xFF) != 0x8B
+            || byteBuffer.get(blockStart + 2) != 8
+            || (byteBuffer.get(blockStart + 3) & 4) == 0) {
+            throw new IOException(String.format(
+                "\"%s\" has no BGZF block at offset %d.",
+                this.path,
+                this.regionOffset + blockStart
+            ));
+        }
+        int extraLength = readUnsignedShort(byteBuffer, blockStart + 10);
+        if (byteBuffer.remaining() < 12 + extraLength) {
+            return -1;
+        }
+        for (int subfieldStart = blockStart + 12; subfieldStart + 4 <= blockStart + 12 + extraLength; ) {
+            int subfieldLength = readUnsignedShort(byteBuffer, subfieldStart + 2);
+            if (byteBuffer.get(subfieldStart) == 'B' && byteBuffer.get(subfieldStart + 1) == 'C' && subfieldLength == 2) {
+                return readUnsignedShort(byteBuffer, subfieldStart + 4) + 1;
+            }
+            subfieldStart += 4 + subfieldLength;
+        }
+        throw new IOException(String.format(
+            "The gzip member at offset %d of \"%s\" has no BGZF block size.",
+            this.regionOffset + blockStart,
+            this.path
+        ));
+    }
+
+    private ByteBuffer inflateBatch(Batch batch) throws IOException {
+        ByteBuffer compressedBytes = batch.compressedBytes;
+        ByteBuffer inflatedBytes = DirectByteBufferPool.acquire();
+        Inflater inflater = inflaters.get();
+        CRC32 crc32 = crc32s.get();
+        try {
+            while (compressedBytes.hasRemaining()) {
+                int blockStart = compressedBytes.position();
+                int blockEnd = blockStart + readBlockSize(compressedBytes);
+                int extraLength = readUnsignedShort(compressedBytes, blockStart + 10);
+                ByteBuffer deflatedBytes = compressedBytes.duplicate();
+                deflatedBytes.limit(blockEnd - GZIP_TRAILER_SIZE).position(blockStart + 12 + extraLength);
+                int outputStart = inflatedBytes.position();
+                inflater.reset();
+                inflater.setInput(deflatedBytes);
+                while (!inflater.finished()) {
+                    if (inflater.inflate(inflatedBytes) == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary() || !inflatedBytes.hasRemaining())) {
+                        throw new IOException(String.format(
+                            "BGZF block at offset %d of \"%s\" is corrupt.",
+                            batch.offset + blockStart,
+                            this.path
+                        ));
+                    }
+                }
+                ByteBuffer blockBytes = inflatedBytes.duplicate();
+                blockBytes.flip().position(outputStart);
+                crc32.reset();
+                crc32.update(blockBytes);
+                long expectedCrc32 = readUnsignedShort(compressedBytes, blockEnd - 8) | ((long)readUnsignedShort(compressedBytes, blockEnd - 6) << 16);
+                long expectedSize = readUnsignedShort(compressedBytes, blockEnd - 4) | ((long)readUnsignedShort(compressedBytes, blockEnd - 2) << 16);
+                if (crc32.getValue() != expectedCrc32 || inflatedBytes.position() - outputStart != expectedSize) {
+                    throw new IOException(String.format(
+                        "BGZF block at offset %d of \"%s\" failed its CRC32 or size check.",
+                        batch.offset + blockStart,
+                        this.path
+                    ));
+                }
+                compressedBytes.position(blockEnd);
+            }
+            inflatedBytes.flip();
+            return inflatedBytes;
+        } catch (DataFormatException dataFormatException) {
+            DirectByteBufferPool.release(inflatedBytes);
+            throw new IOException(dataFormatException);
+        } catch (IOException | RuntimeException exception) {
+            DirectByteBufferPool.release(inflatedBytes);
+            throw exception;
+        }
+    }
+
+    private static boolean isBgzf(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BGZF_HEADER_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && fileChannel.read(header) != -1) {
+                // Keep reading until the header is full or the file ends.
+            }
+        }
+        return !header.hasRemaining()
+            && (header.get(0) & 0xFF) == 0x1F
+            && (header.get(1) & 0xFF) == 0x8B
+            && header.get(2) == 8
+            && (header.get(3) & 4) != 0
+            && header.get(12) == 'B'
+            && header.get(13) == 'C'
+            && readUnsignedShort(header, 14) == 2;
+    }
+
+    private static int readUnsignedShort(
+        ByteBuffer byteBuffer,
+        int index
+    ) {
+        return (byteBuffer.get(index) & 0xFF) | ((byteBuffer.get(index + 1) & 0xFF) << 8);
+    }
+
+    private static ByteBuffer awaitChunk(Future<ByteBuffer> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException executionException) {
+            Throwable cause = executionException.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void discardChunk(Future<ByteBuffer> chunk) {
+        if (chunk == null) {
+            return;
+        }
+        chunk.cancel(false);
+        try {
+            DirectByteBufferPool.release(chunk.get());
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException exception) {
+            // The chunk was never going to be used.
+        }
+    }
+
+    private static ExecutorService getDecompressionExecutorService() {
+        return PPBAutomationPlugin.getPluginExecutionService().getDecompressionExecutorService();
+    }
+}
@@ -0,0 +1,262 @@
+package com.biomatters.ppbAutomation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by every operation of the plugin, which live as long as Geneious does instead of being created
+ * (and left behind) by every run.
+ * <p>
+ * Blocking network and file work goes to the I/O pool, which uses virtual threads when the runtime has them, and so
+ * does anything that mostly waits, such as a run's dispatchers. Importing and assembling go to the CPU pool, which has a
+ * thread per processor; each operation gets its own view of it that runs at most the operation's "Number of threads"
+ * tasks at once, so that runs started together don't resize the pool under each other. Decompression has its own pool
+ * because CPU-pool tasks wait on it, and database writes have a single thread so that only one write is ever in flight.
+ */
+final class PluginExecutionService {
+    private static final long IDLE_THREAD_TIMEOUT_S = 60;
+
+    private final ExecutorService ioExecutorService;
+    private final ThreadPoolExecutor cpuExecutorService;
+    private final ThreadPoolExecutor decompressionExecutorService;
+    private final ThreadPoolExecutor databaseExecutorService;
+
+    PluginExecutionService() {
+        this.ioExecutorService = createIoExecutorService();
+        this.cpuExecutorService = createThreadPoolExecutor(
+            "PPB CPU",
+            CommonGeneiousKeys.DEFAULT_NUMBER_OF_THREADS
+        );
+        this.decompressionExecutorService = createThreadPoolExecutor(
+            "PPB decompress",
+            Runtime.getRuntime().availableProcessors()
+        );
+        this.databaseExecutorService = createThreadPoolExecutor(
+            "PPB database writer",
+            1
+        );
+    }
+
+    ExecutorService getIoExecutorService() {
+        return this.ioExecutorService;
+    }
+
+    /**
+     * Returns a view of the CPU pool for one operation, which runs at most numberOfThreads of its tasks at once and
+     * queues the rest itself. Shutting the view down doesn't affect the pool.
+     */
+    ExecutorService getCpuExecutorService(int numberOfThreads) {
+        return new BoundedExecutorService(
+            this.cpuExecutorService,
+            numberOfThreads
+        );
+    }
+
+    ExecutorService getDecompressionExecutorService() {
+        return this.decompressionExecutorService;
+    }
+
+    ExecutorService getDatabaseExecutorService() {
+        return this.databaseExecutorService;
+    }
+
+    /**
+     * Stops accepting work, interrupts whatever is running and waits briefly for it to stop.
+     */
+    void shutdown() {
+        for (ExecutorService executorService : new ExecutorService[] {
+            this.ioExecutorService,
+            this.cpuExecutorService,
+            this.decompressionExecutorService,
+            this.databaseExecutorService
+        }) {
+            executorService.shutdownNow();
+        }
+        try {
+            for (ExecutorService executorService : new ExecutorService[] {
+                this.ioExecutorService,
+                this.cpuExecutorService,
+                this.decompressionExecutorService,
+                this.databaseExecutorService
+            }) {
+                executorService.awaitTermination(
+                    5,
+                    TimeUnit.SECONDS
+                );
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class BoundedExecutorService extends AbstractExecutorService {
+        private final ExecutorService executorService;
+        private final int numberOfThreads;
+        private final Queue<Runnable> pendingTasks = new ArrayDeque<>();
+        private int numberOfRunningTasks = 0;
+        private boolean shutdownFlag = false;
+
+        BoundedExecutorService(
+            ExecutorService executorService,
+            int numberOfThreads
+        ) {
+            this.executorService = executorService;
+            this.numberOfThreads = Math.max(1, numberOfThreads);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (this.shutdownFlag) {
+                    throw new RejectedExecutionException("The executor has been shut down.");
+                }
+                if (this.numberOfRunningTasks == this.numberOfThreads) {
+                    this.pendingTasks.add(task);
+                    return;
+                }
+                this.numberOfRunningTasks++;
+            }
+            start(task);
+        }
+
+        /**
+         * Hands task to the pool. Each finished task hands over the next waiting one, rather than running it on the same
+         * thread, so that the pool's queue stays fair between operations.
+         */
+        private void start(Runnable task) {
+            try {
+                this.executorService.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        startNext();
+                    }
+                });
+            } catch (RejectedExecutionException rejectedExecutionException) {
+                startNext();
+                throw rejectedExecutionException;
+            }
+        }
+
+        private void startNext() {
+            Runnable nextTask;
+            synchronized (this) {
+                nextTask = this.pendingTasks.poll();
+                if (nextTask == null) {
+                    this.numberOfRunningTasks--;
+                    notifyAll();
+                    return;
+                }
+            }
+            start(nextTask);
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            this.shutdownFlag = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            this.shutdownFlag = true;
+            List<Runnable> pendingTasks = new ArrayList<>(this.pendingTasks);
+            this.pendingTasks.clear();
+            notifyAll();
+            return pendingTasks;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return this.shutdownFlag;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return this.shutdownFlag && this.numberOfRunningTasks == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(
+            long timeout,
+            TimeUnit timeUnit
+        ) throws InterruptedException {
+            long deadlineNs = System.nanoTime() + timeUnit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(
+                    this,
+                    remainingNs
+                );
+            }
+            return true;
+        }
+    }
+
+    private static ExecutorService createIoExecutorService() {
+        try {
+            // Virtual threads only exist from Java 21 onwards, and the plugin is built for older Geneious runtimes.
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException reflectiveOperationException) {
+            AtomicInteger threadNumber = new AtomicInteger(0);
+            return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                IDLE_THREAD_TIMEOUT_S,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                runnable -> createDaemonThread(
+                    runnable,
+                    String.format(
+                        "PPB I/O %d",
+                        threadNumber.incrementAndGet()
+                    )
+                )
+            );
+        }
+    }
+
+    private static ThreadPoolExecutor createThreadPoolExecutor(
+        String threadNamePrefix,
+        int numberOfThreads
+    ) {
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+            numberOfThreads,
+            numberOfThreads,
+            IDLE_THREAD_TIMEOUT_S,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> createDaemonThread(
+                runnable,
+                String.format(
+                    "%s %d",
+                    threadNamePrefix,
+                    threadNumber.incrementAndGet()
+                )
+            )
+        );
+        // Idle threads are let go between runs rather than held for the rest of the Geneious session.
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    private static Thread createDaemonThread(
+        Runnable runnable,
+        String threadName
+    ) {
+        Thread thread = new Thread(
+            runnable,
+            threadName
+        );
+        thread.setDaemon(true);
+        return thread;
+    }
+}
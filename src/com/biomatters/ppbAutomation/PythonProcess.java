@@ -9,7 +9,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 
 interface PythonOutputHandler {
-    void accept(String pythonOutputLine) throws DatabaseServiceException, IOException;
+    void accept(String pythonOutputLine) throws DatabaseServiceException, IOException, InterruptedException;
 }
 
 public class PythonProcess {
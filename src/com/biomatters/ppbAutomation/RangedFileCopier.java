@@ -0,0 +1,247 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies large files as several byte ranges at once, which keeps more requests in flight on a slow network share than
+ * a single sequential copy can.
+ * <p>
+ * Each range is read and written with positional FileChannel calls and checksummed as it streams, and the per-range
+ * CRC32Cs are combined afterwards, so the CRC32C of the whole file is known without reading it a second time. Ranges
+ * are copied on the plugin's I/O threads, no more than numberOfCopyThreads at a time.
+ */
+class RangedFileCopier {
+    private static final long MINIMUM_RANGED_COPY_SIZE = 64L << 20;
+    private static final long RANGE_SIZE = 32L << 20;
+    // The reversed Castagnoli polynomial used by CRC32C.
+    private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+    private final ExecutorService executorService;
+    private final Semaphore copySlots;
+    private final long minimumRangedCopySize;
+    private final long rangeSize;
+
+    RangedFileCopier(
+        ExecutorService ioExecutorService,
+        int numberOfCopyThreads
+    ) {
+        this(
+            ioExecutorService,
+            numberOfCopyThreads,
+            MINIMUM_RANGED_COPY_SIZE,
+            RANGE_SIZE
+        );
+    }
+
+    /**
+     * Copies files of at least minimumRangedCopySize bytes as ranges of rangeSize bytes. Only tests need sizes other
+     * than the defaults.
+     */
+    RangedFileCopier(
+        ExecutorService ioExecutorService,
+        int numberOfCopyThreads,
+        long minimumRangedCopySize,
+        long rangeSize
+    ) {
+        this.executorService = ioExecutorService;
+        this.copySlots = new Semaphore(numberOfCopyThreads);
+        this.minimumRangedCopySize = minimumRangedCopySize;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Copies sourcePath to destinationPath, replacing it, and returns the CRC32C of the copied bytes.
+     */
+    long copy(
+        Path sourcePath,
+        Path destinationPath
+    ) throws IOException, InterruptedException {
+        try (
+            FileChannel sourceFileChannel = FileChannel.open(
+                sourcePath,
+                StandardOpenOption.READ
+            );
+            FileChannel destinationFileChannel = FileChannel.open(
+                destinationPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            long size = sourceFileChannel.size();
+            long crc32c;
+            if (size < this.minimumRangedCopySize) {
+                crc32c = copyRange(
+                    sourceFileChannel,
+                    destinationFileChannel,
+                    0,
+                    size
+                );
+            } else {
+                List<Future<Long>> rangeCrc32cs = new ArrayList<>();
+                List<Long> rangeSizes = new ArrayList<>();
+                for (long rangeStart = 0; rangeStart < size; rangeStart += this.rangeSize) {
+                    long start = rangeStart;
+                    long rangeSize = Math.min(
+                        this.rangeSize,
+                        size - rangeStart
+                    );
+                    rangeSizes.add(rangeSize);
+                    this.copySlots.acquire();
+                    rangeCrc32cs.add(this.executorService.submit(() -> {
+                        try {
+                            return copyRange(
+                                sourceFileChannel,
+                                destinationFileChannel,
+                                start,
+                                rangeSize
+                            );
+                        } finally {
+                            this.copySlots.release();
+                        }
+                    }));
+                }
+                crc32c = 0;
+                try {
+                    for (int i = 0; i < rangeCrc32cs.size(); i++) {
+                        crc32c = i == 0 ? rangeCrc32cs.get(i).get() : combineCrc32cs(
+                            crc32c,
+                            rangeCrc32cs.get(i).get(),
+                            rangeSizes.get(i)
+                        );
+                    }
+                } catch (ExecutionException executionException) {
+                    for (Future<Long> rangeCrc32c : rangeCrc32cs) {
+                        rangeCrc32c.cancel(true);
+                    }
+                    Throwable cause = executionException.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException)cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            if (destinationFileChannel.size() != size || sourceFileChannel.size() != size) {
+                throw new IOException(String.format(
+                    "\"%s\" changed size while it was being copied to \"%s\".",
+                    sourcePath,
+                    destinationPath
+                ));
+            }
+            return crc32c;
+        }
+    }
+
+    private long copyRange(
+        FileChannel sourceFileChannel,
+        FileChannel destinationFileChannel,
+        long start,
+        long rangeSize
+    ) throws IOException {
+        ByteBuffer byteBuffer = DirectByteBufferPool.acquire();
+        try {
+            CRC32C crc32c = new CRC32C();
+            long position = start;
+            long end = start + rangeSize;
+            while (position < end) {
+                byteBuffer.clear();
+                if (end - position < byteBuffer.capacity()) {
+                    byteBuffer.limit((int)(end - position));
+                }
+                int numberOfBytesRead = sourceFileChannel.read(
+                    byteBuffer,
+                    position
+                );
+                if (numberOfBytesRead == -1) {
+                    throw new IOException("Source file ended before the expected number of bytes was read.");
+                }
+                byteBuffer.flip();
+                crc32c.update(byteBuffer.duplicate());
+                long writePosition = position;
+                while (byteBuffer.hasRemaining()) {
+                    writePosition += destinationFileChannel.write(
+                        byteBuffer,
+                        writePosition
+                    );
+                }
+                position += numberOfBytesRead;
+            }
+            return crc32c.getValue();
+        } finally {
+            DirectByteBufferPool.release(byteBuffer);
+        }
+    }
+
+    /**
+     * Returns the CRC32C of two concatenated blocks from the CRC32C of each block and the length of the second, using
+     * the same GF(2) matrix method as zlib's crc32_combine.
+     */
+    static long combineCrc32cs(
+        long crc32c1,
+        long crc32c2,
+        long length2
+    ) {
+        if (length2 <= 0) {
+            return crc32c1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // The operator for one zero bit.
+        odd[0] = CRC32C_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // The operators for two and then four zero bits.
+        squareGf2Matrix(even, odd);
+        squareGf2Matrix(odd, even);
+        // Apply len2 zero bytes to crc32c1, one bit of len2 at a time.
+        do {
+            squareGf2Matrix(even, odd);
+            if ((length2 & 1) != 0) {
+                crc32c1 = multiplyGf2Matrix(even, crc32c1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            squareGf2Matrix(odd, even);
+            if ((length2 & 1) != 0) {
+                crc32c1 = multiplyGf2Matrix(odd, crc32c1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc32c1 ^ crc32c2) & 0xFFFFFFFFL;
+    }
+
+    private static long multiplyGf2Matrix(
+        long[] matrix,
+        long vector
+    ) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareGf2Matrix(
+        long[] square,
+        long[] matrix
+    ) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyGf2Matrix(matrix, matrix[n]);
+        }
+    }
+}
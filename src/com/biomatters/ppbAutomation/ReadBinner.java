@@ -0,0 +1,247 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.DocumentUtilities;
+import com.biomatters.geneious.publicapi.documents.PluginDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceListDocument;
+import com.biomatters.geneious.publicapi.implementations.DefaultSequenceListDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.util.*;
+
+import static com.biomatters.ppbAutomation.NucleotideKMers.*;
+
+/**
+ * Splits a sample's reads between its reference genomes before assembly, so that each read is mapped against the one
+ * reference it matches best instead of against every reference.
+ * <p>
+ * One k-mer index is built over all of the sample's references, both strands, with each k-mer mapped to the set of
+ * references that contain it. Every read is then scanned once and goes to the reference that shares the most k-mers
+ * with it, or to each of the tied references, so that reads the references can't tell apart aren't lost. Reads that
+ * share no k-mer with any reference couldn't have been mapped, and are left out.
+ */
+final class ReadBinner {
+    static final int K = 15;
+
+    static final class Bin {
+        final List<AnnotatedPluginDocument> documents;
+        final long numberOfReads;
+
+        private Bin(
+            List<AnnotatedPluginDocument> documents,
+            long numberOfReads
+        ) {
+            this.documents = documents;
+            this.numberOfReads = numberOfReads;
+        }
+    }
+
+    private final List<AnnotatedPluginDocument> referenceGenomes;
+    private final List<AnnotatedPluginDocument> importedFastqFiles;
+    // Binned reads per reference, then per imported document name, filled in the first time a bin is asked for.
+    private List<Map<String, List<NucleotideSequenceDocument>>> readsPerImportedFastqFileNamePerReference = null;
+
+    /**
+     * Only references are indexed up front; the reads aren't looked at until the first bin is needed. At most 64
+     * references can be told apart.
+     */
+    ReadBinner(
+        List<AnnotatedPluginDocument> referenceGenomes,
+        List<AnnotatedPluginDocument> importedFastqFiles
+    ) {
+        if (referenceGenomes.size() > Long.SIZE) {
+            throw new IllegalArgumentException(String.format(
+                "Reads can be binned between at most %d references, not %d.",
+                Long.SIZE,
+                referenceGenomes.size()
+            ));
+        }
+        this.referenceGenomes = new ArrayList<>(referenceGenomes);
+        this.importedFastqFiles = new ArrayList<>(importedFastqFiles);
+    }
+
+    /**
+     * Returns the reads of importedFastqFilesToBeAssembled that were binned to referenceGenome, as one sequence-list
+     * document that isn't stored anywhere, or no documents if none were.
+     */
+    synchronized Bin getBin(
+        AnnotatedPluginDocument referenceGenome,
+        List<AnnotatedPluginDocument> importedFastqFilesToBeAssembled
+    ) throws DocumentOperationException {
+        if (this.readsPerImportedFastqFileNamePerReference == null) {
+            binReads();
+        }
+        int referenceIndex = this.referenceGenomes.indexOf(referenceGenome);
+        if (referenceIndex < 0) {
+            throw new IllegalArgumentException(String.format(
+                "Reference genome \"%s\" wasn't indexed.",
+                referenceGenome.getName()
+            ));
+        }
+        Map<String, List<NucleotideSequenceDocument>> readsPerImportedFastqFileName = this.readsPerImportedFastqFileNamePerReference.get(referenceIndex);
+        List<NucleotideSequenceDocument> reads = new ArrayList<>();
+        for (AnnotatedPluginDocument importedFastqFile : importedFastqFilesToBeAssembled) {
+            reads.addAll(readsPerImportedFastqFileName.getOrDefault(
+                importedFastqFile.getName(),
+                List.of()
+            ));
+        }
+        if (reads.isEmpty()) {
+            return new Bin(
+                List.of(),
+                0
+            );
+        }
+        AnnotatedPluginDocument binDocument = DocumentUtilities.createAnnotatedPluginDocument(DefaultSequenceListDocument.forNucleotideSequences(reads));
+        binDocument.setName(String.format(
+            "Reads binned to %s",
+            referenceGenome.getName()
+        ));
+        return new Bin(
+            List.of(binDocument),
+            reads.size()
+        );
+    }
+
+    private void binReads() throws DocumentOperationException {
+        KMerIndex kMerIndex = new KMerIndex();
+        for (int referenceIndex = 0; referenceIndex < this.referenceGenomes.size(); referenceIndex++) {
+            CharSequence referenceSequence = ((SequenceDocument)this.referenceGenomes.get(referenceIndex).getDocument()).getCharSequence();
+            long referenceMask = 1L << referenceIndex;
+            forEachCanonicalKMer(
+                K,
+                referenceSequence,
+                kMer -> kMerIndex.add(
+                    kMer,
+                    referenceMask
+                )
+            );
+        }
+        List<Map<String, List<NucleotideSequenceDocument>>> readsPerImportedFastqFileNamePerReference = new ArrayList<>();
+        for (int referenceIndex = 0; referenceIndex < this.referenceGenomes.size(); referenceIndex++) {
+            readsPerImportedFastqFileNamePerReference.add(new HashMap<>());
+        }
+        int numberOfReferences = this.referenceGenomes.size();
+        int[] hitsPerReference = new int[numberOfReferences];
+        long numberOfReads = 0;
+        long numberOfUnbinnedReads = 0;
+        long numberOfTiedReads = 0;
+        for (AnnotatedPluginDocument importedFastqFile : this.importedFastqFiles) {
+            PluginDocument pluginDocument = importedFastqFile.getDocument();
+            if (!(pluginDocument instanceof SequenceListDocument)) {
+                throw new DocumentOperationException(String.format(
+                    "Imported document \"%s\" isn't a sequence list, so its reads can't be binned.",
+                    importedFastqFile.getName()
+                ));
+            }
+            for (NucleotideSequenceDocument read : ((SequenceListDocument)pluginDocument).getNucleotideSequences()) {
+                numberOfReads++;
+                Arrays.fill(hitsPerReference, 0);
+                forEachCanonicalKMer(
+                    K,
+                    read.getCharSequence(),
+                    kMer -> {
+                        long referenceMask = kMerIndex.get(kMer);
+                        while (referenceMask != 0) {
+                            hitsPerReference[Long.numberOfTrailingZeros(referenceMask)]++;
+                            referenceMask &= referenceMask - 1;
+                        }
+                    }
+                );
+                int bestHits = 0;
+                int numberOfBestReferences = 0;
+                for (int hits : hitsPerReference) {
+                    if (hits > bestHits) {
+                        bestHits = hits;
+                        numberOfBestReferences = 1;
+                    } else if (hits == bestHits && hits > 0) {
+                        numberOfBestReferences++;
+                    }
+                }
+                if (bestHits == 0) {
+                    numberOfUnbinnedReads++;
+                    continue;
+                }
+                if (numberOfBestReferences > 1) {
+                    numberOfTiedReads++;
+                }
+                for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+                    if (hitsPerReference[referenceIndex] == bestHits) {
+                        readsPerImportedFastqFileNamePerReference.get(referenceIndex).computeIfAbsent(
+                            importedFastqFile.getName(),
+                            key -> new ArrayList<>()
+                        ).add(read);
+                    }
+                }
+            }
+        }
+        this.readsPerImportedFastqFileNamePerReference = readsPerImportedFastqFileNamePerReference;
+        System.out.printf(
+            "Binned %d reads between %d references (%d tied, %d matching none)%n",
+            numberOfReads,
+            numberOfReferences,
+            numberOfTiedReads,
+            numberOfUnbinnedReads
+        );
+    }
+
+    /**
+     * An open-addressing hash table from k-mers to reference masks, kept in two primitive arrays.
+     */
+    private static final class KMerIndex {
+        private long[] keys = newKeys(1 << 16);
+        private long[] referenceMasks = new long[1 << 16];
+        private int size = 0;
+
+        void add(
+            long kMer,
+            long referenceMask
+        ) {
+            if (2 * (this.size + 1) > this.keys.length) {
+                grow();
+            }
+            int slot = findSlot(
+                this.keys,
+                kMer
+            );
+            if (this.keys[slot] == EMPTY_KEY) {
+                this.keys[slot] = kMer;
+                this.size++;
+            }
+            this.referenceMasks[slot] |= referenceMask;
+        }
+
+        long get(long kMer) {
+            int slot = findSlot(
+                this.keys,
+                kMer
+            );
+            return this.keys[slot] == EMPTY_KEY ? 0 : this.referenceMasks[slot];
+        }
+
+        private void grow() {
+            long[] oldKeys = this.keys;
+            long[] oldReferenceMasks = this.referenceMasks;
+            this.keys = newKeys(oldKeys.length * 2);
+            this.referenceMasks = new long[oldKeys.length * 2];
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                if (oldKeys[oldSlot] != EMPTY_KEY) {
+                    int slot = findSlot(
+                        this.keys,
+                        oldKeys[oldSlot]
+                    );
+                    this.keys[slot] = oldKeys[oldSlot];
+                    this.referenceMasks[slot] = oldReferenceMasks[oldSlot];
+                }
+            }
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.DocumentField;
+import com.biomatters.geneious.publicapi.documents.DocumentUtilities;
+import com.biomatters.geneious.publicapi.documents.PluginDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceListDocument;
+import com.biomatters.geneious.publicapi.implementations.DefaultSequenceListDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.util.*;
+
+/**
+ * Thins out the reads of very deep samples before assembly, keeping just enough of them that every stretch of the
+ * reference is still covered to a target depth, since past that depth more reads cost assembly time without changing
+ * the consensus.
+ * <p>
+ * Each read is placed on the reference by the unique reference k-mers it shares, on either strand. Reads are then
+ * taken in an order fixed by the seed and each read's name, and a read is kept only while some window it spans is
+ * still short of the target depth. Unlike a flat sampling fraction, this keeps every read of a weak amplicon while
+ * thinning the strong ones, and the same reads are kept every time the same reads are given. Reads that can't be
+ * placed are all kept, as they don't add depth anywhere.
+ */
+final class ReadDownsampler {
+    static final DocumentField DOWNSAMPLING_FRACTION_FIELD = DocumentField.createDoubleField(
+        "Downsampling fraction",
+        "Fraction of the reads offered for assembly that were kept after downsampling to the target depth",
+        "ppbDownsamplingFraction"
+    );
+    private static final int K = 15;
+    private static final long K_MER_MASK = NucleotideKMers.mask(K);
+    private static final int WINDOW_SIZE = 50;
+    // Placing a read needs only a few of its k-mers, so only every few are looked up.
+    private static final int K_MER_STRIDE = 4;
+
+    static final class Sample {
+        final List<AnnotatedPluginDocument> documents;
+        final long numberOfReads;
+        final double fraction;
+
+        private Sample(
+            List<AnnotatedPluginDocument> documents,
+            long numberOfReads,
+            double fraction
+        ) {
+            this.documents = documents;
+            this.numberOfReads = numberOfReads;
+            this.fraction = fraction;
+        }
+    }
+
+    private final int targetDepth;
+    private final long seed;
+
+    ReadDownsampler(
+        int targetDepth,
+        long seed
+    ) {
+        this.targetDepth = targetDepth;
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the reads of readDocuments to assemble against referenceSequenceDocument, as one sequence-list document
+     * that isn't stored anywhere, or readDocuments themselves if every read is kept. If readPileup isn't null, the
+     * depth it already holds counts towards the target, and the fraction is of the reads given here.
+     */
+    Sample downsample(
+        List<AnnotatedPluginDocument> readDocuments,
+        SequenceDocument referenceSequenceDocument,
+        ReadPileup readPileup
+    ) throws DocumentOperationException {
+        List<NucleotideSequenceDocument> reads = new ArrayList<>();
+        for (AnnotatedPluginDocument readDocument : readDocuments) {
+            PluginDocument pluginDocument = readDocument.getDocument();
+            if (!(pluginDocument instanceof SequenceListDocument)) {
+                throw new DocumentOperationException(String.format(
+                    "Document \"%s\" isn't a sequence list, so its reads can't be downsampled.",
+                    readDocument.getName()
+                ));
+            }
+            reads.addAll(((SequenceListDocument)pluginDocument).getNucleotideSequences());
+        }
+        CharSequence referenceSequence = referenceSequenceDocument.getCharSequence();
+        int referenceLength = referenceSequence.length();
+        long[] referenceIndex = indexUniqueKMers(referenceSequence);
+        int numberOfWindows = Math.max(1, (referenceLength + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        int[] depthPerWindow = new int[numberOfWindows];
+        if (readPileup != null) {
+            for (int position = 0; position < readPileup.getReferenceLength(); position++) {
+                depthPerWindow[position / WINDOW_SIZE] = Math.max(
+                    depthPerWindow[position / WINDOW_SIZE],
+                    readPileup.getCoverage(position)
+                );
+            }
+        }
+        // Reads are visited in a shuffled order so that the reads kept don't all come from the start of the run.
+        long[] orderKeys = new long[reads.size()];
+        for (int i = 0; i < reads.size(); i++) {
+            long hash = mix(this.seed ^ mix(reads.get(i).getName().hashCode()));
+            // The low bits hold the read's index, so that reads with the same name stay in order.
+            orderKeys[i] = (hash & ~0xFFFFFFFFL) | i;
+        }
+        Arrays.sort(orderKeys);
+        boolean[] keptFlags = new boolean[reads.size()];
+        int numberOfKeptReads = 0;
+        for (long orderKey : orderKeys) {
+            int i = (int)orderKey;
+            CharSequence read = reads.get(i).getCharSequence();
+            int start = place(
+                read,
+                referenceIndex
+            );
+            if (start == Integer.MIN_VALUE) {
+                keptFlags[i] = true;
+                numberOfKeptReads++;
+                continue;
+            }
+            int firstWindow = Math.max(0, start) / WINDOW_SIZE;
+            int lastWindow = Math.min(referenceLength - 1, start + read.length() - 1) / WINDOW_SIZE;
+            boolean shortFlag = false;
+            for (int window = firstWindow; window <= lastWindow && window < numberOfWindows; window++) {
+                if (depthPerWindow[window] < this.targetDepth) {
+                    shortFlag = true;
+                    break;
+                }
+            }
+            if (!shortFlag) {
+                continue;
+            }
+            for (int window = firstWindow; window <= lastWindow && window < numberOfWindows; window++) {
+                depthPerWindow[window]++;
+            }
+            keptFlags[i] = true;
+            numberOfKeptReads++;
+        }
+        double fraction = reads.isEmpty() ? 1 : (double)numberOfKeptReads / reads.size();
+        System.out.printf(
+            "Downsampled %d reads to %d for %s (fraction %.4f)%n",
+            reads.size(),
+            numberOfKeptReads,
+            referenceSequenceDocument.getName(),
+            fraction
+        );
+        if (numberOfKeptReads == reads.size()) {
+            return new Sample(
+                readDocuments,
+                numberOfKeptReads,
+                fraction
+            );
+        }
+        List<NucleotideSequenceDocument> keptReads = new ArrayList<>(numberOfKeptReads);
+        for (int i = 0; i < reads.size(); i++) {
+            if (keptFlags[i]) {
+                keptReads.add(reads.get(i));
+            }
+        }
+        if (keptReads.isEmpty()) {
+            return new Sample(
+                List.of(),
+                0,
+                fraction
+            );
+        }
+        AnnotatedPluginDocument sampleDocument = DocumentUtilities.createAnnotatedPluginDocument(DefaultSequenceListDocument.forNucleotideSequences(keptReads));
+        sampleDocument.setName(String.format(
+            "Reads downsampled to %dx",
+            this.targetDepth
+        ));
+        return new Sample(
+            List.of(sampleDocument),
+            numberOfKeptReads,
+            fraction
+        );
+    }
+
+    /**
+     * Returns the reference position that the read's first base would align to, on whichever strand more of its
+     * k-mers are found, as the median over those k-mers; or Integer.MIN_VALUE if none of them are.
+     */
+    private static int place(
+        CharSequence read,
+        long[] referenceIndex
+    ) {
+        int length = read.length();
+        int[] forwardDiagonals = new int[length / K_MER_STRIDE + 1];
+        int[] reverseDiagonals = new int[length / K_MER_STRIDE + 1];
+        int numberOfForwardDiagonals = 0;
+        int numberOfReverseDiagonals = 0;
+        long forwardKMer = 0;
+        long reverseKMer = 0;
+        int validLength = 0;
+        for (int i = 0; i < length; i++) {
+            int code = NucleotideKMers.encode(read.charAt(i));
+            if (code < 0) {
+                validLength = 0;
+                continue;
+            }
+            forwardKMer = ((forwardKMer << 2) | code) & K_MER_MASK;
+            reverseKMer = (reverseKMer >>> 2) | ((long)(3 - code) << (2 * (K - 1)));
+            if (++validLength < K || (i - K + 1) % K_MER_STRIDE != 0) {
+                continue;
+            }
+            int forwardPosition = find(
+                referenceIndex,
+                forwardKMer
+            );
+            if (forwardPosition >= 0) {
+                forwardDiagonals[numberOfForwardDiagonals++] = forwardPosition - (i - K + 1);
+            }
+            int reversePosition = find(
+                referenceIndex,
+                reverseKMer
+            );
+            if (reversePosition >= 0) {
+                // This k-mer starts at length - 1 - i in the reverse complement of the read.
+                reverseDiagonals[numberOfReverseDiagonals++] = reversePosition - (length - 1 - i);
+            }
+        }
+        int[] diagonals = forwardDiagonals;
+        int numberOfDiagonals = numberOfForwardDiagonals;
+        if (numberOfReverseDiagonals > numberOfForwardDiagonals) {
+            diagonals = reverseDiagonals;
+            numberOfDiagonals = numberOfReverseDiagonals;
+        }
+        if (numberOfDiagonals == 0) {
+            return Integer.MIN_VALUE;
+        }
+        Arrays.sort(diagonals, 0, numberOfDiagonals);
+        return diagonals[numberOfDiagonals / 2];
+    }
+
+    /**
+     * Returns the reference's k-mers that occur only once, packed as k-mer and position and sorted by k-mer.
+     */
+    private static long[] indexUniqueKMers(CharSequence referenceSequence) {
+        int length = referenceSequence.length();
+        long[] packedKMers = new long[Math.max(0, length - K + 1)];
+        int numberOfKMers = 0;
+        long kMer = 0;
+        int validLength = 0;
+        for (int i = 0; i < length; i++) {
+            int code = NucleotideKMers.encode(referenceSequence.charAt(i));
+            if (code < 0) {
+                validLength = 0;
+                continue;
+            }
+            kMer = ((kMer << 2) | code) & K_MER_MASK;
+            if (++validLength >= K) {
+                packedKMers[numberOfKMers++] = (kMer << 32) | (i - K + 1);
+            }
+        }
+        Arrays.sort(packedKMers, 0, numberOfKMers);
+        long[] uniqueKMers = new long[numberOfKMers];
+        int numberOfUniqueKMers = 0;
+        for (int i = 0; i < numberOfKMers; i++) {
+            long kMerOnly = packedKMers[i] >>> 32;
+            boolean repeatedFlag = (i > 0 && packedKMers[i - 1] >>> 32 == kMerOnly) || (i + 1 < numberOfKMers && packedKMers[i + 1] >>> 32 == kMerOnly);
+            if (!repeatedFlag) {
+                uniqueKMers[numberOfUniqueKMers++] = packedKMers[i];
+            }
+        }
+        return Arrays.copyOf(uniqueKMers, numberOfUniqueKMers);
+    }
+
+    /**
+     * Returns the reference position of kMer, or -1 if it isn't one of the unique k-mers.
+     */
+    private static int find(
+        long[] referenceIndex,
+        long kMer
+    ) {
+        int low = 0;
+        int high = referenceIndex.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKMer = referenceIndex[middle] >>> 32;
+            if (middleKMer < kMer) {
+                low = middle + 1;
+            } else if (middleKMer > kMer) {
+                high = middle - 1;
+            } else {
+                return (int)referenceIndex[middle];
+            }
+        }
+        return -1;
+    }
+
+    private static long mix(long value) {
+        // The finalizer of SplitMix64, so that nearby seeds and names give unrelated orders.
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
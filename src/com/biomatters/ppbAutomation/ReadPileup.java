@@ -0,0 +1,394 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.DocumentField;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceAlignmentDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceDocument;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Base counts for every position of one sample's reference genome, kept on disk between runs so that reads which
+ * have already been assembled never have to be assembled again.
+ * <p>
+ * Reads are folded in from contigs that were assembled against the reference, in reference coordinates: columns where
+ * the reference has a gap are insertions and are left out, and a gap inside a read counts as a deletion. The pileup
+ * remembers which imported documents it holds, by name and sequence count, so that only new ones are assembled. The
+ * file is replaced whole, through a temporary file, so a pileup that was being saved when Geneious stopped is either
+ * the old one or the new one.
+ */
+final class ReadPileup {
+    static final DocumentField COVERAGE_FIELD = DocumentField.createStringField(
+        "Pileup coverage",
+        "Reads covering each reference position, run-length encoded as count:length pairs",
+        "ppbPileupCoverage"
+    );
+    private static final int FILE_MAGIC = 0x50504250;
+    private static final int FILE_VERSION = 1;
+    private static final String PILEUP_FILE_EXTENSION = ".pileup";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+    // A, C, G, T, deletion, then anything else (N and the other ambiguity codes), which covers but never votes.
+    static final int NUMBER_OF_SLOTS = 6;
+    static final int DELETION_SLOT = 4;
+    static final int OTHER_SLOT = 5;
+    private static final char[] CONSENSUS_CHARACTERS = {'A', 'C', 'G', 'T', '-'};
+    private static final byte[] SLOTS_PER_CHARACTER = new byte[128];
+
+    static {
+        Arrays.fill(SLOTS_PER_CHARACTER, (byte)OTHER_SLOT);
+        for (int slot = 0; slot < CONSENSUS_CHARACTERS.length; slot++) {
+            SLOTS_PER_CHARACTER[CONSENSUS_CHARACTERS[slot]] = (byte)slot;
+            SLOTS_PER_CHARACTER[Character.toLowerCase(CONSENSUS_CHARACTERS[slot])] = (byte)slot;
+        }
+        SLOTS_PER_CHARACTER['U'] = SLOTS_PER_CHARACTER['T'];
+        SLOTS_PER_CHARACTER['u'] = SLOTS_PER_CHARACTER['T'];
+    }
+
+    private final Path pileupFilePath;
+    private final long referenceChecksum;
+    private final int referenceLength;
+    private final int[] counts;
+    // Each folded-in document's name, mapped to its sequence count.
+    private final Map<String, Long> sequenceCountsPerSourceName = new LinkedHashMap<>();
+    private long numberOfReads = 0;
+
+    private ReadPileup(
+        Path pileupFilePath,
+        long referenceChecksum,
+        int referenceLength
+    ) {
+        this.pileupFilePath = pileupFilePath;
+        this.referenceChecksum = referenceChecksum;
+        this.referenceLength = referenceLength;
+        this.counts = new int[referenceLength * NUMBER_OF_SLOTS];
+    }
+
+    /**
+     * Reads back the pileup saved for the sample and reference, or starts an empty one if there is none, or if the one
+     * saved was built on a different reference sequence or can't be read.
+     */
+    static ReadPileup open(
+        Path pileupFolderPath,
+        String sampleName,
+        SequenceDocument referenceSequenceDocument
+    ) throws IOException {
+        Files.createDirectories(pileupFolderPath);
+        String referenceSequence = referenceSequenceDocument.getSequenceString();
+        ReadPileup readPileup = new ReadPileup(
+            pileupFolderPath.resolve(String.format(
+                "%s - %s%s",
+                sanitize(sampleName),
+                sanitize(referenceSequenceDocument.getName()),
+                PILEUP_FILE_EXTENSION
+            )),
+            calculateChecksum(referenceSequence),
+            referenceSequence.length()
+        );
+        if (Files.exists(readPileup.pileupFilePath) && !readPileup.load()) {
+            System.out.printf(
+                "Pileup \"%s\" is out of date or unreadable and will be rebuilt.%n",
+                readPileup.pileupFilePath
+            );
+            readPileup.clear();
+        }
+        return readPileup;
+    }
+
+    /**
+     * Starts an empty pileup that is only kept in memory, for a single assembly, and can't be saved.
+     */
+    static ReadPileup create(SequenceDocument referenceSequenceDocument) {
+        String referenceSequence = referenceSequenceDocument.getSequenceString();
+        return new ReadPileup(
+            null,
+            calculateChecksum(referenceSequence),
+            referenceSequence.length()
+        );
+    }
+
+    /**
+     * Returns the names of the documents in sourceSequenceCountsPerName that haven't been folded in yet. If anything
+     * already folded in is missing from it, or has a different sequence count, the pileup is emptied first, since
+     * reads can't be taken back out.
+     */
+    List<String> getUnfoldedSourceNames(Map<String, Long> sourceSequenceCountsPerName) {
+        for (Map.Entry<String, Long> foldedSource : this.sequenceCountsPerSourceName.entrySet()) {
+            if (!foldedSource.getValue().equals(sourceSequenceCountsPerName.get(foldedSource.getKey()))) {
+                clear();
+                break;
+            }
+        }
+        List<String> unfoldedSourceNames = new ArrayList<>();
+        for (String sourceName : sourceSequenceCountsPerName.keySet()) {
+            if (!this.sequenceCountsPerSourceName.containsKey(sourceName)) {
+                unfoldedSourceNames.add(sourceName);
+            }
+        }
+        return unfoldedSourceNames;
+    }
+
+    /**
+     * Adds every read of a contig that was assembled against this pileup's reference.
+     */
+    void fold(SequenceAlignmentDocument contig) {
+        int referenceSequenceIndex = contig.getContigReferenceSequenceIndex();
+        CharSequence referenceCharSequence = contig.getSequence(referenceSequenceIndex).getCharSequence();
+        int numberOfColumns = referenceCharSequence.length();
+        // The reference position of every column, or -1 for the columns that are insertions.
+        int[] referencePositionsPerColumn = new int[numberOfColumns];
+        int referencePosition = 0;
+        for (int column = 0; column < numberOfColumns; column++) {
+            referencePositionsPerColumn[column] = referenceCharSequence.charAt(column) == '-' ? -1 : referencePosition++;
+        }
+        if (referencePosition != this.referenceLength) {
+            throw new IllegalArgumentException(String.format(
+                "Contig \"%s\" has a reference of %d bases, but the pileup's reference has %d.",
+                contig.getName(),
+                referencePosition,
+                this.referenceLength
+            ));
+        }
+        int numberOfSequences = contig.getNumberOfSequences();
+        for (int i = 0; i < numberOfSequences; i++) {
+            if (i == referenceSequenceIndex) {
+                continue;
+            }
+            CharSequence readCharSequence = contig.getSequence(i).getCharSequence();
+            int firstColumn = 0;
+            int endColumn = Math.min(
+                readCharSequence.length(),
+                numberOfColumns
+            );
+            // Gaps before and after the read don't cover anything.
+            while (firstColumn < endColumn && readCharSequence.charAt(firstColumn) == '-') {
+                firstColumn++;
+            }
+            while (endColumn > firstColumn && readCharSequence.charAt(endColumn - 1) == '-') {
+                endColumn--;
+            }
+            if (firstColumn == endColumn) {
+                continue;
+            }
+            for (int column = firstColumn; column < endColumn; column++) {
+                int position = referencePositionsPerColumn[column];
+                if (position < 0) {
+                    continue;
+                }
+                char c = readCharSequence.charAt(column);
+                this.counts[position * NUMBER_OF_SLOTS + (c < 128 ? SLOTS_PER_CHARACTER[c] : OTHER_SLOT)]++;
+            }
+            this.numberOfReads++;
+        }
+    }
+
+    /**
+     * Adds base counts laid out like the pileup's own, NUMBER_OF_SLOTS per reference position, for numberOfReads reads.
+     * Unlike the rest of the pileup this can be called from several threads at once.
+     */
+    synchronized void addCounts(
+        int[] counts,
+        long numberOfReads
+    ) {
+        if (counts.length != this.counts.length) {
+            throw new IllegalArgumentException(String.format(
+                "Counts for %d positions can't be added to a pileup of %d.",
+                counts.length / NUMBER_OF_SLOTS,
+                this.referenceLength
+            ));
+        }
+        for (int i = 0; i < counts.length; i++) {
+            this.counts[i] += counts[i];
+        }
+        this.numberOfReads += numberOfReads;
+    }
+
+    /**
+     * Records that the reads of the named documents are now part of the pileup. Called once their contigs have been
+     * folded in, and before save.
+     */
+    void addSources(Map<String, Long> sourceSequenceCountsPerName) {
+        this.sequenceCountsPerSourceName.putAll(sourceSequenceCountsPerName);
+    }
+
+    int getReferenceLength() {
+        return this.referenceLength;
+    }
+
+    long getNumberOfReads() {
+        return this.numberOfReads;
+    }
+
+    int getCoverage(int position) {
+        int coverage = 0;
+        int offset = position * NUMBER_OF_SLOTS;
+        for (int slot = 0; slot < NUMBER_OF_SLOTS; slot++) {
+            coverage += this.counts[offset + slot];
+        }
+        return coverage;
+    }
+
+    double getMeanCoverage() {
+        long totalCoverage = 0;
+        for (int count : this.counts) {
+            totalCoverage += count;
+        }
+        return this.referenceLength == 0 ? 0 : (double)totalCoverage / this.referenceLength;
+    }
+
+    double getPercentageOfReferenceCovered() {
+        int numberOfCoveredPositions = 0;
+        for (int position = 0; position < this.referenceLength; position++) {
+            if (getCoverage(position) > 0) {
+                numberOfCoveredPositions++;
+            }
+        }
+        return this.referenceLength == 0 ? 0 : 100d * numberOfCoveredPositions / this.referenceLength;
+    }
+
+    /**
+     * Returns the majority base at every reference position, - where most reads have a deletion, and N where nothing
+     * covers the position or the reads there are mostly ambiguous.
+     */
+    String getConsensus() {
+        StringBuilder consensus = new StringBuilder(this.referenceLength);
+        for (int position = 0; position < this.referenceLength; position++) {
+            int offset = position * NUMBER_OF_SLOTS;
+            int bestSlot = OTHER_SLOT;
+            int bestCount = 0;
+            for (int slot = 0; slot < NUMBER_OF_SLOTS; slot++) {
+                if (this.counts[offset + slot] > bestCount) {
+                    bestSlot = slot;
+                    bestCount = this.counts[offset + slot];
+                }
+            }
+            consensus.append(bestSlot == OTHER_SLOT ? 'N' : CONSENSUS_CHARACTERS[bestSlot]);
+        }
+        return consensus.toString();
+    }
+
+    /**
+     * Returns the coverage of every position as count:length runs, which is short enough to keep in a document field.
+     */
+    String encodeCoverage() {
+        StringJoiner runs = new StringJoiner(",");
+        int position = 0;
+        while (position < this.referenceLength) {
+            int coverage = getCoverage(position);
+            int runLength = 1;
+            while (position + runLength < this.referenceLength && getCoverage(position + runLength) == coverage) {
+                runLength++;
+            }
+            runs.add(coverage + ":" + runLength);
+            position += runLength;
+        }
+        return runs.toString();
+    }
+
+    static int[] decodeCoverage(String encodedCoverage) {
+        List<int[]> runs = new ArrayList<>();
+        int length = 0;
+        if (!encodedCoverage.isEmpty()) {
+            for (String run : encodedCoverage.split(",")) {
+                int separatorIndex = run.indexOf(':');
+                int[] coverageAndRunLength = {
+                    Integer.parseInt(run.substring(0, separatorIndex)),
+                    Integer.parseInt(run.substring(separatorIndex + 1))
+                };
+                runs.add(coverageAndRunLength);
+                length += coverageAndRunLength[1];
+            }
+        }
+        int[] coverage = new int[length];
+        int position = 0;
+        for (int[] coverageAndRunLength : runs) {
+            Arrays.fill(
+                coverage,
+                position,
+                position + coverageAndRunLength[1],
+                coverageAndRunLength[0]
+            );
+            position += coverageAndRunLength[1];
+        }
+        return coverage;
+    }
+
+    void save() throws IOException {
+        if (this.pileupFilePath == null) {
+            throw new IllegalStateException("A pileup that is only kept in memory can't be saved.");
+        }
+        Path temporaryFilePath = this.pileupFilePath.resolveSibling(this.pileupFilePath.getFileName() + TEMPORARY_FILE_EXTENSION);
+        try (
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFilePath)))
+        ) {
+            dataOutputStream.writeInt(FILE_MAGIC);
+            dataOutputStream.writeInt(FILE_VERSION);
+            dataOutputStream.writeLong(this.referenceChecksum);
+            dataOutputStream.writeInt(this.referenceLength);
+            dataOutputStream.writeLong(this.numberOfReads);
+            dataOutputStream.writeInt(this.sequenceCountsPerSourceName.size());
+            for (Map.Entry<String, Long> source : this.sequenceCountsPerSourceName.entrySet()) {
+                dataOutputStream.writeUTF(source.getKey());
+                dataOutputStream.writeLong(source.getValue());
+            }
+            for (int count : this.counts) {
+                dataOutputStream.writeInt(count);
+            }
+        }
+        Files.move(
+            temporaryFilePath,
+            this.pileupFilePath,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+
+    private boolean load() {
+        try (
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.pileupFilePath)))
+        ) {
+            if (
+                dataInputStream.readInt() != FILE_MAGIC ||
+                dataInputStream.readInt() != FILE_VERSION ||
+                dataInputStream.readLong() != this.referenceChecksum ||
+                dataInputStream.readInt() != this.referenceLength
+            ) {
+                return false;
+            }
+            this.numberOfReads = dataInputStream.readLong();
+            int numberOfSources = dataInputStream.readInt();
+            for (int i = 0; i < numberOfSources; i++) {
+                this.sequenceCountsPerSourceName.put(
+                    dataInputStream.readUTF(),
+                    dataInputStream.readLong()
+                );
+            }
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = dataInputStream.readInt();
+            }
+            return true;
+        } catch (IOException ioException) {
+            return false;
+        }
+    }
+
+    private void clear() {
+        Arrays.fill(this.counts, 0);
+        this.sequenceCountsPerSourceName.clear();
+        this.numberOfReads = 0;
+    }
+
+    private static long calculateChecksum(String referenceSequence) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(referenceSequence.getBytes(StandardCharsets.US_ASCII));
+        return crc32c.getValue();
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
@@ -0,0 +1,156 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.PluginDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import static com.biomatters.ppbAutomation.NucleotideKMers.*;
+
+/**
+ * Drops the reads of a FASTQ file that can't be from any of the run's reference genomes before the file is imported,
+ * since most reads from environmental and stool samples are host or bacterial and would otherwise be imported, stored
+ * and assembled for nothing.
+ * <p>
+ * Every canonical k-mer of every reference goes into one open-addressing set kept in a direct buffer, so that even a
+ * large reference set costs no heap and nothing for the garbage collector to trace. A read is kept if it shares at
+ * least {@link #MINIMUM_NUMBER_OF_SHARED_K_MERS} k-mers with the set. The set is only read once built, so any number
+ * of files can be screened against it at once.
+ */
+final class ReadScreen {
+    static final int K = 15;
+    // A random 15-mer is in the set of a few hundred references well under 1% of the time, so three shared k-mers
+    // almost never happen by chance, while a true read of even 100 bases has dozens.
+    private static final int MINIMUM_NUMBER_OF_SHARED_K_MERS = 3;
+    // Keeps the set under 512 MB, which is thousands of enterovirus genomes.
+    private static final long MAXIMUM_NUMBER_OF_REFERENCE_BASES = 1 << 25;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    static final class Result {
+        final long numberOfReads;
+        final long numberOfKeptReads;
+
+        private Result(
+            long numberOfReads,
+            long numberOfKeptReads
+        ) {
+            this.numberOfReads = numberOfReads;
+            this.numberOfKeptReads = numberOfKeptReads;
+        }
+    }
+
+    private final LongBuffer keys;
+
+    ReadScreen(Collection<AnnotatedPluginDocument> referenceGenomes) throws DocumentOperationException {
+        long numberOfReferenceBases = 0;
+        byte[][] referenceSequences = new byte[referenceGenomes.size()][];
+        int referenceIndex = 0;
+        for (AnnotatedPluginDocument referenceGenome : referenceGenomes) {
+            PluginDocument pluginDocument = referenceGenome.getDocument();
+            if (!(pluginDocument instanceof SequenceDocument)) {
+                throw new DocumentOperationException(String.format(
+                    "Reference genome \"%s\" isn't a sequence, so reads can't be screened against it.",
+                    referenceGenome.getName()
+                ));
+            }
+            referenceSequences[referenceIndex] = ((SequenceDocument)pluginDocument).getSequenceString().getBytes(StandardCharsets.US_ASCII);
+            numberOfReferenceBases += referenceSequences[referenceIndex].length;
+            referenceIndex++;
+        }
+        if (numberOfReferenceBases > MAXIMUM_NUMBER_OF_REFERENCE_BASES) {
+            throw new DocumentOperationException(String.format(
+                "The run's reference genomes have %d bases, more than the %d that reads can be screened against.",
+                numberOfReferenceBases,
+                MAXIMUM_NUMBER_OF_REFERENCE_BASES
+            ));
+        }
+        // At most half full, so that probes stay short.
+        int capacity = Integer.highestOneBit((int)Math.max(
+            1024,
+            2 * numberOfReferenceBases
+        ) * 2 - 1);
+        this.keys = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+        for (int slot = 0; slot < capacity; slot++) {
+            this.keys.put(slot, EMPTY_KEY);
+        }
+        for (byte[] referenceSequence : referenceSequences) {
+            forEachCanonicalKMer(
+                K,
+                referenceSequence,
+                referenceSequence.length,
+                kMer -> {
+                    int slot = findSlot(
+                        this.keys,
+                        kMer
+                    );
+                    if (this.keys.get(slot) == EMPTY_KEY) {
+                        this.keys.put(slot, kMer);
+                    }
+                }
+            );
+        }
+    }
+
+    /**
+     * Writes the reads of inputPath that pass the screen to outputPath, as plain FASTQ.
+     */
+    Result screen(
+        Path inputPath,
+        Path outputPath
+    ) throws IOException {
+        long[] numberOfReadAndKeptReads = new long[2];
+        int[] numberOfSharedKMers = new int[1];
+        try (
+            OutputStream outputStream = new BufferedOutputStream(
+                Files.newOutputStream(outputPath),
+                OUTPUT_BUFFER_SIZE
+            )
+        ) {
+            FastqReader.read(
+                inputPath,
+                fastqRecord -> {
+                    numberOfReadAndKeptReads[0]++;
+                    numberOfSharedKMers[0] = 0;
+                    forEachCanonicalKMer(
+                        K,
+                        fastqRecord.sequence,
+                        fastqRecord.sequenceLength,
+                        kMer -> {
+                            if (this.keys.get(findSlot(this.keys, kMer)) == kMer) {
+                                numberOfSharedKMers[0]++;
+                            }
+                        }
+                    );
+                    if (numberOfSharedKMers[0] < MINIMUM_NUMBER_OF_SHARED_K_MERS) {
+                        return;
+                    }
+                    numberOfReadAndKeptReads[1]++;
+                    outputStream.write('@');
+                    outputStream.write(fastqRecord.name, 0, fastqRecord.nameLength);
+                    outputStream.write('\n');
+                    outputStream.write(fastqRecord.sequence, 0, fastqRecord.sequenceLength);
+                    outputStream.write('\n');
+                    outputStream.write('+');
+                    outputStream.write('\n');
+                    outputStream.write(fastqRecord.quality, 0, fastqRecord.qualityLength);
+                    outputStream.write('\n');
+                }
+            );
+        }
+        return new Result(
+            numberOfReadAndKeptReads[0],
+            numberOfReadAndKeptReads[1]
+        );
+    }
+}
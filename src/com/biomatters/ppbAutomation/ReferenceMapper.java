@@ -0,0 +1,517 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.documents.PluginDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.NucleotideSequenceDocument;
+import com.biomatters.geneious.publicapi.documents.sequence.SequenceListDocument;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Maps reads onto one small reference genome and adds them to a {@link ReadPileup}, as a lighter alternative to the
+ * Geneious assembler for our ~7.5 kb references.
+ * <p>
+ * Every k-mer of the reference is kept in one sorted array of packed k-mer and position pairs. A read's k-mers, on
+ * both strands, are looked up there, and the longest chain of seeds that keeps to one diagonal (give or take indels)
+ * places the read. The stretches between chained seeds are aligned with a small banded edit-distance alignment, and
+ * whatever lies outside the chain is clipped. Reads are mapped in blocks on several threads at once, each thread
+ * counting into its own arrays.
+ */
+final class ReferenceMapper {
+    private static final int K = 13;
+    private static final int K_MER_MASK = (int)NucleotideKMers.mask(K);
+    private static final int READS_PER_BLOCK = 1024;
+    // K-mers found more often than this in the reference are repeats that would only add false seeds.
+    private static final int MAXIMUM_K_MER_OCCURRENCES = 8;
+    private static final int MINIMUM_NUMBER_OF_CHAINED_SEEDS = 4;
+    // How many of the previous seeds each seed can be chained to, which bounds chaining to linear time.
+    private static final int CHAINING_WINDOW = 64;
+    private static final int MINIMUM_DIAGONAL_DRIFT = 16;
+    private static final double MAXIMUM_DIAGONAL_DRIFT_PER_BASE = 0.2;
+    private static final int BAND_MARGIN = 8;
+    // Gaps between seeds that would need a larger alignment than this are left uncounted.
+    private static final long MAXIMUM_NUMBER_OF_ALIGNMENT_CELLS = 1 << 20;
+    private static final byte N_CODE = 4;
+
+    private final ExecutorService executorService;
+    private final int numberOfThreads;
+
+    /**
+     * Reads are mapped on the calling thread and on up to numberOfThreads - 1 tasks of executorService, which may be the
+     * pool the caller itself runs on: the caller never waits for a task that hasn't started.
+     */
+    ReferenceMapper(
+        ExecutorService executorService,
+        int numberOfThreads
+    ) {
+        this.executorService = executorService;
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Maps every read of readDocuments onto the pileup's reference and adds the mapped ones to the pileup.
+     */
+    void map(
+        List<AnnotatedPluginDocument> readDocuments,
+        ReadPileup readPileup,
+        CharSequence referenceSequence
+    ) throws DocumentOperationException {
+        List<NucleotideSequenceDocument> reads = new ArrayList<>();
+        for (AnnotatedPluginDocument readDocument : readDocuments) {
+            PluginDocument pluginDocument = readDocument.getDocument();
+            if (!(pluginDocument instanceof SequenceListDocument)) {
+                throw new DocumentOperationException(String.format(
+                    "Document \"%s\" isn't a sequence list, so its reads can't be mapped.",
+                    readDocument.getName()
+                ));
+            }
+            reads.addAll(((SequenceListDocument)pluginDocument).getNucleotideSequences());
+        }
+        byte[] reference = encode(referenceSequence);
+        if (reference.length != readPileup.getReferenceLength()) {
+            throw new IllegalArgumentException("The reference doesn't match the pileup's.");
+        }
+        long[] referenceIndex = indexKMers(reference);
+        int numberOfBlocks = (reads.size() + READS_PER_BLOCK - 1) / READS_PER_BLOCK;
+        AtomicInteger nextBlock = new AtomicInteger(0);
+        AtomicInteger numberOfActiveWorkers = new AtomicInteger(0);
+        AtomicLong numberOfMappedReads = new AtomicLong(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            numberOfActiveWorkers.incrementAndGet();
+            try {
+                int[] counts = null;
+                long numberOfMappedReadsInWorker = 0;
+                int block;
+                while (failure.get() == null && (block = nextBlock.getAndIncrement()) < numberOfBlocks) {
+                    if (counts == null) {
+                        counts = new int[reference.length * ReadPileup.NUMBER_OF_SLOTS];
+                    }
+                    int end = Math.min(
+                        reads.size(),
+                        (block + 1) * READS_PER_BLOCK
+                    );
+                    for (int i = block * READS_PER_BLOCK; i < end; i++) {
+                        if (mapRead(
+                            encode(reads.get(i).getCharSequence()),
+                            reference,
+                            referenceIndex,
+                            counts
+                        )) {
+                            numberOfMappedReadsInWorker++;
+                        }
+                    }
+                }
+                if (counts != null) {
+                    readPileup.addCounts(
+                        counts,
+                        numberOfMappedReadsInWorker
+                    );
+                    numberOfMappedReads.addAndGet(numberOfMappedReadsInWorker);
+                }
+            } catch (Throwable throwable) {
+                failure.compareAndSet(null, throwable);
+            } finally {
+                synchronized (numberOfActiveWorkers) {
+                    numberOfActiveWorkers.decrementAndGet();
+                    numberOfActiveWorkers.notifyAll();
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(this.numberOfThreads, numberOfBlocks); i++) {
+            this.executorService.execute(worker);
+        }
+        worker.run();
+        // Helpers that start from here on find no blocks left, so only those already mapping are waited for.
+        synchronized (numberOfActiveWorkers) {
+            while (numberOfActiveWorkers.get() > 0) {
+                try {
+                    numberOfActiveWorkers.wait();
+                } catch (InterruptedException interruptedException) {
+                    failure.compareAndSet(null, interruptedException);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            throw new DocumentOperationException(throwable);
+        }
+        System.out.printf(
+            "Mapped %d of %d reads%n",
+            numberOfMappedReads.get(),
+            reads.size()
+        );
+    }
+
+    /**
+     * Maps one read, on whichever strand chains more seeds, and adds it to counts. Returns whether it was mapped.
+     */
+    static boolean mapRead(
+        byte[] read,
+        byte[] reference,
+        long[] referenceIndex,
+        int[] counts
+    ) {
+        int[] forwardChain = chainSeeds(
+            read,
+            referenceIndex
+        );
+        byte[] reverseComplementedRead = reverseComplement(read);
+        int[] reverseChain = chainSeeds(
+            reverseComplementedRead,
+            referenceIndex
+        );
+        int[] chain = forwardChain;
+        byte[] mappedRead = read;
+        if (reverseChain.length > forwardChain.length) {
+            chain = reverseChain;
+            mappedRead = reverseComplementedRead;
+        }
+        if (chain.length / 2 < MINIMUM_NUMBER_OF_CHAINED_SEEDS) {
+            return false;
+        }
+        countAlignment(
+            mappedRead,
+            reference,
+            chain,
+            counts
+        );
+        return true;
+    }
+
+    /**
+     * Returns every k-mer of the reference packed as k-mer and position, sorted so that a k-mer's positions can be found
+     * by binary search.
+     */
+    static long[] indexKMers(byte[] reference) {
+        long[] packedKMers = new long[Math.max(0, reference.length - K + 1)];
+        int numberOfKMers = 0;
+        int kMer = 0;
+        int validLength = 0;
+        for (int position = 0; position < reference.length; position++) {
+            byte code = reference[position];
+            if (code >= N_CODE || code < 0) {
+                validLength = 0;
+                continue;
+            }
+            kMer = ((kMer << 2) | code) & K_MER_MASK;
+            if (++validLength >= K) {
+                packedKMers[numberOfKMers++] = ((long)kMer << 32) | (position - K + 1);
+            }
+        }
+        long[] referenceIndex = Arrays.copyOf(packedKMers, numberOfKMers);
+        Arrays.sort(referenceIndex);
+        return referenceIndex;
+    }
+
+    /**
+     * Finds the read's seeds and returns the best chain of them as read and reference start positions, interleaved and
+     * in read order.
+     */
+    private static int[] chainSeeds(
+        byte[] read,
+        long[] referenceIndex
+    ) {
+        int[] seedReadPositions = new int[64];
+        int[] seedReferencePositions = new int[64];
+        int numberOfSeeds = 0;
+        int kMer = 0;
+        int validLength = 0;
+        for (int readPosition = 0; readPosition < read.length; readPosition++) {
+            byte code = read[readPosition];
+            if (code >= N_CODE) {
+                validLength = 0;
+                continue;
+            }
+            kMer = ((kMer << 2) | code) & K_MER_MASK;
+            if (++validLength < K) {
+                continue;
+            }
+            long packedKMerStart = (long)kMer << 32;
+            int first = lowerBound(
+                referenceIndex,
+                packedKMerStart
+            );
+            int last = lowerBound(
+                referenceIndex,
+                packedKMerStart + (1L << 32)
+            );
+            if (first == last || last - first > MAXIMUM_K_MER_OCCURRENCES) {
+                continue;
+            }
+            for (int i = first; i < last; i++) {
+                if (numberOfSeeds == seedReadPositions.length) {
+                    seedReadPositions = Arrays.copyOf(seedReadPositions, numberOfSeeds * 2);
+                    seedReferencePositions = Arrays.copyOf(seedReferencePositions, numberOfSeeds * 2);
+                }
+                seedReadPositions[numberOfSeeds] = readPosition - K + 1;
+                seedReferencePositions[numberOfSeeds] = (int)referenceIndex[i];
+                numberOfSeeds++;
+            }
+        }
+        if (numberOfSeeds == 0) {
+            return new int[0];
+        }
+        // Seeds are already in read order, so each one is chained to the best earlier seed it can follow.
+        int[] chainLengths = new int[numberOfSeeds];
+        int[] previousSeeds = new int[numberOfSeeds];
+        int bestSeed = 0;
+        for (int seed = 0; seed < numberOfSeeds; seed++) {
+            chainLengths[seed] = 1;
+            previousSeeds[seed] = -1;
+            for (int previousSeed = Math.max(0, seed - CHAINING_WINDOW); previousSeed < seed; previousSeed++) {
+                int readDistance = seedReadPositions[seed] - seedReadPositions[previousSeed];
+                int referenceDistance = seedReferencePositions[seed] - seedReferencePositions[previousSeed];
+                if (
+                    readDistance <= 0 ||
+                    referenceDistance <= 0 ||
+                    Math.abs(referenceDistance - readDistance) > MINIMUM_DIAGONAL_DRIFT + MAXIMUM_DIAGONAL_DRIFT_PER_BASE * readDistance
+                ) {
+                    continue;
+                }
+                if (chainLengths[previousSeed] + 1 > chainLengths[seed]) {
+                    chainLengths[seed] = chainLengths[previousSeed] + 1;
+                    previousSeeds[seed] = previousSeed;
+                }
+            }
+            if (chainLengths[seed] > chainLengths[bestSeed]) {
+                bestSeed = seed;
+            }
+        }
+        int[] chain = new int[2 * chainLengths[bestSeed]];
+        int chainIndex = chain.length;
+        for (int seed = bestSeed; seed >= 0; seed = previousSeeds[seed]) {
+            chain[--chainIndex] = seedReferencePositions[seed];
+            chain[--chainIndex] = seedReadPositions[seed];
+        }
+        return chain;
+    }
+
+    /**
+     * Counts the read's bases against the reference between the first and last seeds of the chain. Each seed is an
+     * exact match; the stretches between seeds are aligned.
+     */
+    private static void countAlignment(
+        byte[] read,
+        byte[] reference,
+        int[] chain,
+        int[] counts
+    ) {
+        int readPosition = chain[0];
+        int referencePosition = chain[1];
+        for (int chainIndex = 0; chainIndex < chain.length; chainIndex += 2) {
+            int seedReadPosition = chain[chainIndex];
+            int seedReferencePosition = chain[chainIndex + 1];
+            if (seedReadPosition < readPosition || seedReferencePosition < referencePosition) {
+                // Overlaps what has already been counted: only the part past it is new, and only if it's on the same
+                // diagonal.
+                if (
+                    seedReferencePosition - seedReadPosition != referencePosition - readPosition ||
+                    seedReadPosition + K <= readPosition
+                ) {
+                    continue;
+                }
+            } else {
+                alignGap(
+                    read,
+                    readPosition,
+                    seedReadPosition,
+                    reference,
+                    referencePosition,
+                    seedReferencePosition,
+                    counts
+                );
+                readPosition = seedReadPosition;
+                referencePosition = seedReferencePosition;
+            }
+            int seedEnd = seedReadPosition + K;
+            while (readPosition < seedEnd) {
+                countBase(
+                    counts,
+                    referencePosition++,
+                    read[readPosition++]
+                );
+            }
+        }
+    }
+
+    /**
+     * Aligns read[readStart, readEnd) to reference[referenceStart, referenceEnd) end to end, within a band around the
+     * diagonal, and counts the read's bases and deletions at the reference positions they align to.
+     */
+    private static void alignGap(
+        byte[] read,
+        int readStart,
+        int readEnd,
+        byte[] reference,
+        int referenceStart,
+        int referenceEnd,
+        int[] counts
+    ) {
+        int readLength = readEnd - readStart;
+        int referenceLength = referenceEnd - referenceStart;
+        if (referenceLength == 0) {
+            // Only inserted bases, which the pileup leaves out.
+            return;
+        }
+        if (readLength == 0) {
+            for (int referencePosition = referenceStart; referencePosition < referenceEnd; referencePosition++) {
+                countBase(
+                    counts,
+                    referencePosition,
+                    (byte)-1
+                );
+            }
+            return;
+        }
+        int band = Math.abs(referenceLength - readLength) + BAND_MARGIN;
+        int width = 2 * band + 1;
+        if ((long)(readLength + 1) * width > MAXIMUM_NUMBER_OF_ALIGNMENT_CELLS) {
+            return;
+        }
+        // Row i holds the columns j = i - band .. i + band, in reference coordinates scaled to the read.
+        int infinity = Integer.MAX_VALUE / 2;
+        int[] scores = new int[(readLength + 1) * width];
+        Arrays.fill(scores, infinity);
+        for (int i = 0; i <= readLength; i++) {
+            int diagonal = diagonalOf(i, readLength, referenceLength);
+            for (int offset = 0; offset < width; offset++) {
+                int j = diagonal - band + offset;
+                if (j < 0 || j > referenceLength) {
+                    continue;
+                }
+                int score;
+                if (i == 0) {
+                    score = j;
+                } else {
+                    score = infinity;
+                    int previousDiagonal = diagonalOf(i - 1, readLength, referenceLength);
+                    // From (i - 1, j - 1): a match or mismatch.
+                    int previousOffset = j - 1 - (previousDiagonal - band);
+                    if (j > 0 && previousOffset >= 0 && previousOffset < width) {
+                        score = scores[(i - 1) * width + previousOffset] + (read[readStart + i - 1] == reference[referenceStart + j - 1] && read[readStart + i - 1] < N_CODE ? 0 : 1);
+                    }
+                    // From (i - 1, j): a base inserted in the read.
+                    previousOffset = j - (previousDiagonal - band);
+                    if (previousOffset >= 0 && previousOffset < width) {
+                        score = Math.min(score, scores[(i - 1) * width + previousOffset] + 1);
+                    }
+                    // From (i, j - 1): a base deleted from the read.
+                    if (offset > 0) {
+                        score = Math.min(score, scores[i * width + offset - 1] + 1);
+                    }
+                }
+                scores[i * width + offset] = score;
+            }
+        }
+        // Trace back from the end, collecting the reference position of every aligned read base or deletion.
+        int i = readLength;
+        int j = referenceLength;
+        while (i > 0 || j > 0) {
+            int diagonal = diagonalOf(i, readLength, referenceLength);
+            int score = scores[i * width + j - (diagonal - band)];
+            if (i > 0 && j > 0) {
+                int previousDiagonal = diagonalOf(i - 1, readLength, referenceLength);
+                int previousOffset = j - 1 - (previousDiagonal - band);
+                if (
+                    previousOffset >= 0 &&
+                    previousOffset < width &&
+                    scores[(i - 1) * width + previousOffset] + (read[readStart + i - 1] == reference[referenceStart + j - 1] && read[readStart + i - 1] < N_CODE ? 0 : 1) == score
+                ) {
+                    countBase(
+                        counts,
+                        referenceStart + j - 1,
+                        read[readStart + i - 1]
+                    );
+                    i--;
+                    j--;
+                    continue;
+                }
+            }
+            if (i > 0) {
+                int previousDiagonal = diagonalOf(i - 1, readLength, referenceLength);
+                int previousOffset = j - (previousDiagonal - band);
+                if (
+                    previousOffset >= 0 &&
+                    previousOffset < width &&
+                    scores[(i - 1) * width + previousOffset] + 1 == score
+                ) {
+                    i--;
+                    continue;
+                }
+            }
+            countBase(
+                counts,
+                referenceStart + j - 1,
+                (byte)-1
+            );
+            j--;
+        }
+    }
+
+    private static int diagonalOf(
+        int i,
+        int readLength,
+        int referenceLength
+    ) {
+        return (int)((long)i * referenceLength / readLength);
+    }
+
+    private static void countBase(
+        int[] counts,
+        int referencePosition,
+        byte code
+    ) {
+        int slot = code < 0 ? ReadPileup.DELETION_SLOT : code == N_CODE ? ReadPileup.OTHER_SLOT : code;
+        counts[referencePosition * ReadPileup.NUMBER_OF_SLOTS + slot]++;
+    }
+
+    private static int lowerBound(
+        long[] sortedValues,
+        long value
+    ) {
+        int low = 0;
+        int high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static byte[] encode(CharSequence sequence) {
+        int length = sequence.length();
+        byte[] codes = new byte[length];
+        int numberOfCodes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = sequence.charAt(i);
+            // Gap characters aren't bases.
+            if (c == '-') {
+                continue;
+            }
+            int code = NucleotideKMers.encode(c);
+            codes[numberOfCodes++] = code < 0 ? N_CODE : (byte)code;
+        }
+        return numberOfCodes == length ? codes : Arrays.copyOf(codes, numberOfCodes);
+    }
+
+    private static byte[] reverseComplement(byte[] read) {
+        byte[] reverseComplementedRead = new byte[read.length];
+        for (int i = 0; i < read.length; i++) {
+            byte code = read[read.length - 1 - i];
+            reverseComplementedRead[i] = code == N_CODE ? N_CODE : (byte)(3 - code);
+        }
+        return reverseComplementedRead;
+    }
+}
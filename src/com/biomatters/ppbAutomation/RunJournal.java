@@ -0,0 +1,207 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An append-only record of the work a Begin run has finished for each sample, so that an interrupted run can be
+ * resumed without redoing it.
+ * <p>
+ * Every record is one tab-separated line (sample name, stage, then any details) that is forced to disk before the
+ * method recording it returns. A line that was only partly written when Geneious stopped is ignored when the journal is
+ * read back.
+ */
+class RunJournal {
+    static final String TYPED = "typed";
+    static final String IMPORTED = "imported";
+    static final String REFERENCES_COPIED = "referencesCopied";
+    static final String ASSEMBLED = "assembled";
+    static final String REFERENCE_SHARED = "referenceShared";
+    static final String FINAL_ASSEMBLIES_COPIED = "finalAssembliesCopied";
+    // Records that belong to the run as a whole rather than to one sample.
+    static final String RUN_SAMPLE_NAME = "";
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
+    private static final String PILEUP_FOLDER_EXTENSION = ".pileups";
+
+    private final FileChannel fileChannel;
+    private final Path pileupFolderPath;
+    private final boolean resumeFlag;
+    private final Map<String, Map<String, List<List<String>>>> recordsPerStagePerSampleName = new HashMap<>();
+
+    /**
+     * Opens the journal for runName, reading back what it already holds if resumeFlag is set and otherwise starting it
+     * afresh. A run can't be resumed without its journal, since nothing would then say which of its documents are
+     * complete.
+     */
+    RunJournal(
+        Path journalFolderPath,
+        String runName,
+        boolean resumeFlag
+    ) throws IOException, DocumentOperationException {
+        this.resumeFlag = resumeFlag;
+        Files.createDirectories(journalFolderPath);
+        String fileName = runName.replaceAll("[^A-Za-z0-9._-]", "_");
+        Path journalFilePath = journalFolderPath.resolve(fileName + JOURNAL_FILE_EXTENSION);
+        this.pileupFolderPath = journalFolderPath.resolve(fileName + PILEUP_FOLDER_EXTENSION);
+        if (resumeFlag && !Files.exists(journalFilePath)) {
+            throw new DocumentOperationException(String.format(
+                "Run \"%s\" can't be resumed because its run journal \"%s\" doesn't exist. Check the run-journal folder path, or start the run afresh.",
+                runName,
+                journalFilePath.toAbsolutePath()
+            ));
+        }
+        long validSize = 0;
+        if (resumeFlag) {
+            byte[] bytes = Files.readAllBytes(journalFilePath);
+            int validLength = bytes.length;
+            // Anything after the last newline is a line that was cut off.
+            while (validLength > 0 && bytes[validLength - 1] != '\n') {
+                validLength--;
+            }
+            validSize = validLength;
+            for (String line : new String(bytes, 0, validLength, StandardCharsets.UTF_8).split("\n")) {
+                List<String> fields = Arrays.asList(line.split("\t", -1));
+                if (fields.size() < 2) {
+                    continue;
+                }
+                addRecord(
+                    fields.get(0),
+                    fields.get(1),
+                    fields.subList(2, fields.size())
+                );
+            }
+        }
+        this.fileChannel = FileChannel.open(
+            journalFilePath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE
+        );
+        this.fileChannel.truncate(validSize);
+        this.fileChannel.position(validSize);
+    }
+
+    synchronized void record(
+        String sampleName,
+        String stage,
+        String... details
+    ) throws IOException {
+        recordEach(
+            sampleName,
+            stage,
+            List.of(Arrays.asList(details))
+        );
+    }
+
+    /**
+     * Records one line for each entry of detailsPerRecord with a single write, for records that only make sense
+     * together.
+     */
+    synchronized void recordEach(
+        String sampleName,
+        String stage,
+        List<List<String>> detailsPerRecord
+    ) throws IOException {
+        List<List<String>> fieldsPerRecord = new ArrayList<>();
+        StringBuilder lines = new StringBuilder();
+        for (List<String> details : detailsPerRecord) {
+            List<String> fields = new ArrayList<>();
+            fields.add(sanitize(sampleName));
+            fields.add(stage);
+            for (String detail : details) {
+                fields.add(sanitize(detail));
+            }
+            fieldsPerRecord.add(fields);
+            lines.append(String.join("\t", fields)).append('\n');
+        }
+        this.fileChannel.write(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+        this.fileChannel.force(false);
+        for (List<String> fields : fieldsPerRecord) {
+            addRecord(
+                fields.get(0),
+                stage,
+                fields.subList(2, fields.size())
+            );
+        }
+    }
+
+    synchronized boolean hasRecord(
+        String sampleName,
+        String stage
+    ) {
+        return !getRecords(sampleName, stage).isEmpty();
+    }
+
+    /**
+     * Returns whether a record exists for the sample and stage whose first detail is firstDetail.
+     */
+    synchronized boolean hasRecord(
+        String sampleName,
+        String stage,
+        String firstDetail
+    ) {
+        for (List<String> details : getRecords(sampleName, stage)) {
+            if (!details.isEmpty() && details.get(0).equals(sanitize(firstDetail))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized List<List<String>> getRecords(
+        String sampleName,
+        String stage
+    ) {
+        return new ArrayList<>(this.recordsPerStagePerSampleName.getOrDefault(
+            sanitize(sampleName),
+            Map.of()
+        ).getOrDefault(
+            stage,
+            List.of()
+        ));
+    }
+
+    /**
+     * Returns whether this run is resuming an interrupted one, in which case its folders may already exist.
+     */
+    boolean isResuming() {
+        return this.resumeFlag;
+    }
+
+    /**
+     * Returns the folder that the run's read pileups are kept in. Unlike the journal, pileups are kept when a run is
+     * started afresh, since each one records which reads it already holds.
+     */
+    Path getPileupFolderPath() {
+        return this.pileupFolderPath;
+    }
+
+    synchronized void close() throws IOException {
+        this.fileChannel.close();
+    }
+
+    private void addRecord(
+        String sampleName,
+        String stage,
+        List<String> details
+    ) {
+        this.recordsPerStagePerSampleName.computeIfAbsent(
+            sampleName,
+            key -> new HashMap<>()
+        ).computeIfAbsent(
+            stage,
+            key -> new ArrayList<>()
+        ).add(new ArrayList<>(details));
+    }
+
+    private static String sanitize(String field) {
+        return field == null ? RUN_SAMPLE_NAME : field.replaceAll("[\t\r\n]", " ");
+    }
+}
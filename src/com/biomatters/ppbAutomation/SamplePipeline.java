@@ -0,0 +1,912 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.databaseservice.DatabaseServiceException;
+import com.biomatters.geneious.publicapi.databaseservice.WritableDatabaseService;
+import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
+import com.biomatters.geneious.publicapi.plugin.Assembler;
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+import jebl.util.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.biomatters.ppbAutomation.HelperFunctions.*;
+
+/**
+ * Moves each sample of a Begin run through staging, reference copying, FASTQ import and assembly on its own, so that
+ * one slow sample no longer holds up every other sample at a global stage barrier.
+ * <p>
+ * A sample's reference genomes are copied and its FASTQ files are imported as soon as all of its files are staged and
+ * {@link #sealSample} has been called for it, or, when importing while staging, each FASTQ file is imported as soon as
+ * it is staged. Its assemblies start as soon as both of those have finished. Every stage
+ * has a bounded queue, so a slow stage makes the stages before it wait instead of letting staged work pile up.
+ * <p>
+ * Each finished stage is recorded in the {@link RunJournal}. When a run is resumed, what the journal says was already
+ * done for a sample is restored from its folder instead of being done again.
+ */
+class SamplePipeline {
+    private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+    private static final int ABORT_PERMITS = 1 << 20;
+    // While files are still being staged, chunks are only merged once this many are waiting, so each merge is worth it.
+    private static final int MINIMUM_NUMBER_OF_CHUNKS_PER_EARLY_MERGE = 64;
+    // How many lighter units may be started around a unit that doesn't fit in the memory budget, and for how long.
+    private static final int MAXIMUM_NUMBER_OF_BYPASSES_PER_THREAD = 4;
+    private static final long MAXIMUM_BLOCKED_TIME_MS = 10 * 60 * 1000;
+
+    interface StageWork {
+        List<StageUnit> split(SampleNode sampleNode) throws Exception;
+    }
+
+    static final class StageUnit {
+        final Callable<Void> callable;
+        // Units with a larger weight (for example, a larger file) are started first.
+        final long weight;
+        // Counted against the stage's memory budget while the unit runs.
+        final long memoryEstimateInBytes;
+
+        StageUnit(
+            Callable<Void> callable,
+            long weight
+        ) {
+            this(
+                callable,
+                weight,
+                0
+            );
+        }
+
+        StageUnit(
+            Callable<Void> callable,
+            long weight,
+            long memoryEstimateInBytes
+        ) {
+            this.callable = callable;
+            this.weight = weight;
+            this.memoryEstimateInBytes = memoryEstimateInBytes;
+        }
+    }
+
+    /**
+     * The settings of a run that decide what the pipeline does with each sample. Every field is set by name, so that
+     * none can be swapped for another of the same type; whatever isn't set is off.
+     */
+    static final class Options {
+        int numberOfThreads = 1;
+        boolean calculateContigsFlag = false;
+        boolean useBuiltInMapperFlag = false;
+        boolean useNativeFastqReaderFlag = false;
+        // Each FASTQ file is imported as soon as it is staged, instead of once all of its sample's files are.
+        boolean importWhileStagingFlag = false;
+        boolean incrementalAssemblyFlag = false;
+        boolean mergeChunksFlag = false;
+        boolean decompressMergedChunksFlag = false;
+        boolean binReadsFlag = false;
+        boolean screenReadsFlag = false;
+        // Deep samples aren't downsampled unless this is above 0.
+        int downsamplingTargetDepth = 0;
+        int downsamplingSeed = 0;
+        long assemblyMemoryBudgetInBytes = Long.MAX_VALUE;
+    }
+
+    private static final class PendingUnit {
+        final StageUnit stageUnit;
+        final SampleNode sampleNode;
+        final AtomicInteger remainingUnits;
+        final long sequenceNumber;
+
+        PendingUnit(
+            StageUnit stageUnit,
+            SampleNode sampleNode,
+            AtomicInteger remainingUnits,
+            long sequenceNumber
+        ) {
+            this.stageUnit = stageUnit;
+            this.sampleNode = sampleNode;
+            this.remainingUnits = remainingUnits;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    static final class SampleNode {
+        final WritableDatabaseServiceDatum writableDatabaseServiceDatum;
+        // One extra file is counted until the sample is sealed, so that it can't be handed on while files are still being added.
+        final AtomicInteger remainingFiles = new AtomicInteger(1);
+        final AtomicInteger remainingAssemblyPrerequisites = new AtomicInteger(2);
+        // Counts every import unit of the sample, including those started while it was still being staged, plus one
+        // until the import stage has added the rest.
+        final AtomicInteger remainingImportUnits = new AtomicInteger(1);
+        final Set<File> claimedRawFastqFiles = new HashSet<>();
+        final Map<File, List<AnnotatedPluginDocument>> importedFastqFilesPerRawFastqFile = new ConcurrentHashMap<>();
+        // The names of the documents that a resumed run's journal says were imported into the sample's folder.
+        final Set<String> journaledDocumentNames = new HashSet<>();
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        boolean sealedFlag = false;
+
+        SampleNode(WritableDatabaseServiceDatum writableDatabaseServiceDatum) {
+            this.writableDatabaseServiceDatum = writableDatabaseServiceDatum;
+        }
+    }
+
+    private final class Stage {
+        final BlockingQueue<SampleNode> queue = new LinkedBlockingQueue<>();
+        // The queue is bounded by these permits instead of by its own capacity, so that a slot can be reserved by
+        // whichever thread will later fill it without ever blocking a worker thread.
+        final Semaphore capacity;
+        final Semaphore concurrency;
+        final long memoryBudgetInBytes;
+        final Stage downstreamStage;
+        final StageWork stageWork;
+        final Function<SampleNode, AtomicInteger> remainingUnitsFunction;
+        final Consumer<SampleNode> onComplete;
+        // Units from every sample admitted to the stage wait here, heaviest first, so that the largest pieces of work
+        // aren't left until the end of the stage. Guarded by its own monitor, which is also waited on for memory.
+        final TreeSet<PendingUnit> pendingUnits = new TreeSet<>(
+            Comparator.comparingLong((PendingUnit pendingUnit) -> -pendingUnit.stageUnit.weight).thenComparingLong(pendingUnit -> pendingUnit.sequenceNumber)
+        );
+        long runningMemoryEstimateInBytes = 0;
+        // The heaviest unit that didn't fit when lighter ones were started around it, and how many were and since when.
+        // Past either bound nothing else is started until it has been, so that lighter units can't keep it waiting for ever.
+        final int maximumNumberOfBypasses;
+        PendingUnit blockedUnit = null;
+        int numberOfBypasses = 0;
+        long blockedSinceMs = 0;
+        // Both dispatchers are long-running tasks on the I/O pool, since they spend nearly all their time waiting.
+        Future<?> dispatcher;
+        Future<?> unitDispatcher;
+        final AtomicLong nextSequenceNumber = new AtomicLong(0);
+
+        Stage(
+            int queueCapacity,
+            int numberOfThreads,
+            long memoryBudgetInBytes,
+            Stage downstreamStage,
+            StageWork stageWork,
+            Function<SampleNode, AtomicInteger> remainingUnitsFunction,
+            Consumer<SampleNode> onComplete
+        ) {
+            this.capacity = new Semaphore(queueCapacity);
+            this.concurrency = new Semaphore(numberOfThreads);
+            this.maximumNumberOfBypasses = MAXIMUM_NUMBER_OF_BYPASSES_PER_THREAD * numberOfThreads;
+            this.memoryBudgetInBytes = memoryBudgetInBytes;
+            this.downstreamStage = downstreamStage;
+            this.stageWork = stageWork;
+            this.remainingUnitsFunction = remainingUnitsFunction;
+            this.onComplete = onComplete;
+        }
+
+        void start() {
+            this.dispatcher = ioExecutorService.submit(this::dispatch);
+            this.unitDispatcher = ioExecutorService.submit(this::dispatchUnits);
+        }
+
+        void stop() {
+            this.dispatcher.cancel(true);
+            this.unitDispatcher.cancel(true);
+        }
+
+        void dispatch() {
+            try {
+                while (true) {
+                    SampleNode sampleNode = this.queue.take();
+                    this.capacity.release();
+                    if (this.downstreamStage != null) {
+                        this.downstreamStage.capacity.acquire();
+                    }
+                    List<StageUnit> units;
+                    try {
+                        units = failure.get() == null ? this.stageWork.split(sampleNode) : List.of();
+                    } catch (Exception exception) {
+                        fail(exception);
+                        units = List.of();
+                    }
+                    // Holds one count of its own while the units are added, so the sample can't finish in the meantime.
+                    AtomicInteger remainingUnits = this.remainingUnitsFunction.apply(sampleNode);
+                    for (StageUnit unit : units) {
+                        add(
+                            unit,
+                            sampleNode,
+                            remainingUnits
+                        );
+                    }
+                    if (remainingUnits.decrementAndGet() == 0) {
+                        this.finish(sampleNode);
+                    }
+                }
+            } catch (InterruptedException interruptedException) {
+                // The pipeline has been closed.
+            }
+        }
+
+        void add(
+            StageUnit unit,
+            SampleNode sampleNode,
+            AtomicInteger remainingUnits
+        ) {
+            remainingUnits.incrementAndGet();
+            synchronized (this.pendingUnits) {
+                this.pendingUnits.add(new PendingUnit(
+                    unit,
+                    sampleNode,
+                    remainingUnits,
+                    this.nextSequenceNumber.getAndIncrement()
+                ));
+                this.pendingUnits.notifyAll();
+            }
+        }
+
+        /**
+         * Waits for, removes and returns the heaviest waiting unit whose memory estimate fits in what is left of the
+         * budget. When the heaviest doesn't fit, lighter ones keep being started around it, so the threads aren't idle,
+         * until it has been passed over too many times or for too long; then nothing else is started until it fits.
+         */
+        PendingUnit takeAdmissibleUnit() throws InterruptedException {
+            synchronized (this.pendingUnits) {
+                while (true) {
+                    if (this.blockedUnit != null) {
+                        if (fits(this.blockedUnit)) {
+                            PendingUnit pendingUnit = this.blockedUnit;
+                            this.blockedUnit = null;
+                            return admit(pendingUnit);
+                        }
+                        if (
+                            this.numberOfBypasses >= this.maximumNumberOfBypasses ||
+                            System.currentTimeMillis() - this.blockedSinceMs >= MAXIMUM_BLOCKED_TIME_MS
+                        ) {
+                            // Running units only finish from here on, so the blocked unit gets the memory they free.
+                            this.pendingUnits.wait();
+                            continue;
+                        }
+                    }
+                    for (PendingUnit pendingUnit : this.pendingUnits) {
+                        if (fits(pendingUnit)) {
+                            if (this.blockedUnit != null) {
+                                this.numberOfBypasses++;
+                            }
+                            return admit(pendingUnit);
+                        }
+                        if (this.blockedUnit == null) {
+                            this.blockedUnit = pendingUnit;
+                            this.blockedSinceMs = System.currentTimeMillis();
+                            this.numberOfBypasses = 0;
+                        }
+                    }
+                    this.pendingUnits.wait();
+                }
+            }
+        }
+
+        private boolean fits(PendingUnit pendingUnit) {
+            // A unit larger than the whole budget still runs, on its own, rather than never.
+            return this.runningMemoryEstimateInBytes == 0 || pendingUnit.stageUnit.memoryEstimateInBytes <= this.memoryBudgetInBytes - this.runningMemoryEstimateInBytes;
+        }
+
+        private PendingUnit admit(PendingUnit pendingUnit) {
+            this.pendingUnits.remove(pendingUnit);
+            this.runningMemoryEstimateInBytes += pendingUnit.stageUnit.memoryEstimateInBytes;
+            return pendingUnit;
+        }
+
+        void releaseMemory(long memoryEstimateInBytes) {
+            synchronized (this.pendingUnits) {
+                this.runningMemoryEstimateInBytes -= memoryEstimateInBytes;
+                this.pendingUnits.notifyAll();
+            }
+        }
+
+        void dispatchUnits() {
+            try {
+                while (true) {
+                    // A permit is taken first, so that the heaviest unit waiting at the moment a thread frees up is the one that runs.
+                    this.concurrency.acquire();
+                    PendingUnit pendingUnit = takeAdmissibleUnit();
+                    cpuExecutorService.execute(() -> {
+                        try {
+                            if (failure.get() == null) {
+                                pendingUnit.stageUnit.callable.call();
+                            }
+                        } catch (Throwable throwable) {
+                            fail(throwable);
+                        } finally {
+                            releaseMemory(pendingUnit.stageUnit.memoryEstimateInBytes);
+                            this.concurrency.release();
+                            if (pendingUnit.remainingUnits.decrementAndGet() == 0) {
+                                this.finish(pendingUnit.sampleNode);
+                            }
+                        }
+                    });
+                }
+            } catch (InterruptedException interruptedException) {
+                // The pipeline has been closed.
+            }
+        }
+
+        void finish(SampleNode sampleNode) {
+            Throwable throwable = failure.get();
+            if (throwable != null) {
+                sampleNode.completion.completeExceptionally(throwable);
+                return;
+            }
+            try {
+                this.onComplete.accept(sampleNode);
+            } catch (Throwable onCompleteThrowable) {
+                fail(onCompleteThrowable);
+                sampleNode.completion.completeExceptionally(onCompleteThrowable);
+            }
+        }
+
+        void abort() {
+            this.capacity.release(ABORT_PERMITS);
+            this.concurrency.release(ABORT_PERMITS);
+        }
+    }
+
+    private final ExecutorService ioExecutorService;
+    private final ExecutorService cpuExecutorService;
+    private final String defaultAccessionNumber;
+    private final Map<String, AnnotatedPluginDocument> referenceGenomesPerAccessionNumber;
+    private final boolean calculateContigsFlag;
+    // Exactly one of these is set when contigs are calculated.
+    private final Assembler geneiousAssembler;
+    private final ReferenceMapper referenceMapper;
+    private final WritableDatabaseServiceDatum sharedReferenceGenomesDatum;
+    private final StagingCache.Session stagingSession;
+    private final DatabaseCommitQueue databaseCommitQueue;
+    private final RunJournal runJournal;
+    private final ProgressListener progressListener;
+    private final boolean useNativeFastqReaderFlag;
+    private final boolean importWhileStagingFlag;
+    // Null unless only the reads that each sample's pileup doesn't hold yet are to be assembled.
+    private final Path pileupFolderPath;
+    private final boolean mergeChunksFlag;
+    private final boolean binReadsFlag;
+    // Null unless reads are screened against the run's reference genomes before they are imported.
+    private final ReadScreen readScreen;
+    // Null unless deep samples are downsampled before assembly.
+    private final ReadDownsampler readDownsampler;
+    private final boolean decompressMergedChunksFlag;
+    private final Semaphore stagingSlots;
+    private final Stage assemblyStage;
+    private final Stage importStage;
+    private final Stage referenceStage;
+    private final Map<WritableDatabaseServiceDatum, SampleNode> sampleNodes = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Set<AnnotatedPluginDocument> allReferenceGenomes = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger numberOfCopiedReferenceGenomes = new AtomicInteger(0);
+    private final AtomicInteger totalNumberOfCopiedReferenceGenomes = new AtomicInteger(0);
+    private final AtomicInteger numberOfImportedFastqFiles = new AtomicInteger(0);
+    private final AtomicInteger totalNumberOfImportedFastqFiles = new AtomicInteger(0);
+    private final AtomicInteger numberOfAssemblies = new AtomicInteger(0);
+    private final AtomicInteger totalNumberOfAssemblies = new AtomicInteger(0);
+
+    SamplePipeline(
+        ExecutorService ioExecutorService,
+        ExecutorService cpuExecutorService,
+        Options options,
+        String defaultAccessionNumber,
+        Map<String, AnnotatedPluginDocument> referenceGenomesPerAccessionNumber,
+        WritableDatabaseServiceDatum sharedReferenceGenomesDatum,
+        StagingCache.Session stagingSession,
+        DatabaseCommitQueue databaseCommitQueue,
+        RunJournal runJournal,
+        ProgressListener progressListener
+    ) throws DocumentOperationException {
+        this.ioExecutorService = ioExecutorService;
+        this.cpuExecutorService = cpuExecutorService;
+        this.defaultAccessionNumber = defaultAccessionNumber;
+        this.referenceGenomesPerAccessionNumber = referenceGenomesPerAccessionNumber;
+        // Looking the assembler up from worker threads isn't safe, so this is done once up front.
+        this.calculateContigsFlag = options.calculateContigsFlag;
+        this.geneiousAssembler = options.calculateContigsFlag && !options.useBuiltInMapperFlag ? getGeneiousAssembler() : null;
+        this.referenceMapper = options.calculateContigsFlag && options.useBuiltInMapperFlag ? new ReferenceMapper(
+            cpuExecutorService,
+            options.numberOfThreads
+        ) : null;
+        this.sharedReferenceGenomesDatum = sharedReferenceGenomesDatum;
+        this.stagingSession = stagingSession;
+        this.databaseCommitQueue = databaseCommitQueue;
+        this.databaseCommitQueue.setFailureListener(this::fail);
+        this.runJournal = runJournal;
+        this.progressListener = progressListener;
+        this.useNativeFastqReaderFlag = options.useNativeFastqReaderFlag;
+        this.importWhileStagingFlag = options.importWhileStagingFlag;
+        this.pileupFolderPath = options.incrementalAssemblyFlag ? runJournal.getPileupFolderPath() : null;
+        this.mergeChunksFlag = options.mergeChunksFlag;
+        this.decompressMergedChunksFlag = options.decompressMergedChunksFlag;
+        this.binReadsFlag = options.binReadsFlag;
+        this.readScreen = options.screenReadsFlag ? new ReadScreen(new LinkedHashSet<>(referenceGenomesPerAccessionNumber.values())) : null;
+        this.readDownsampler = options.downsamplingTargetDepth > 0 ? new ReadDownsampler(
+            options.downsamplingTargetDepth,
+            options.downsamplingSeed
+        ) : null;
+        int numberOfThreads = options.numberOfThreads;
+        long assemblyMemoryBudgetInBytes = options.assemblyMemoryBudgetInBytes;
+        int queueCapacity = QUEUE_CAPACITY_PER_THREAD * numberOfThreads;
+        this.stagingSlots = new Semaphore(queueCapacity);
+        this.assemblyStage = new Stage(
+            queueCapacity,
+            numberOfThreads,
+            assemblyMemoryBudgetInBytes,
+            null,
+            this::splitAssemblies,
+            sampleNode -> new AtomicInteger(1),
+            sampleNode -> sampleNode.completion.complete(null)
+        );
+        this.importStage = new Stage(
+            queueCapacity,
+            numberOfThreads,
+            Long.MAX_VALUE,
+            this.assemblyStage,
+            this::splitImports,
+            sampleNode -> sampleNode.remainingImportUnits,
+            sampleNode -> {
+                mergeImportedFastqFiles(sampleNode);
+                assemblyPrerequisiteComplete(sampleNode);
+            }
+        );
+        this.referenceStage = new Stage(
+            queueCapacity,
+            numberOfThreads,
+            Long.MAX_VALUE,
+            null,
+            sampleNode -> List.of(new StageUnit(() -> {
+                boolean referencesCopiedFlag = this.runJournal.hasRecord(
+                    sampleNode.writableDatabaseServiceDatum.sampleName,
+                    RunJournal.REFERENCES_COPIED
+                );
+                if (!referencesCopiedFlag && this.sharedReferenceGenomesDatum == null) {
+                    removeUnjournaledDocuments(
+                        sampleNode,
+                        getReferenceGenomeNames(sampleNode.writableDatabaseServiceDatum)
+                    );
+                }
+                validateAndCopyReferenceGenomes(
+                    sampleNode.writableDatabaseServiceDatum,
+                    this.defaultAccessionNumber,
+                    this.referenceGenomesPerAccessionNumber,
+                    referencesCopiedFlag,
+                    this.sharedReferenceGenomesDatum,
+                    this.databaseCommitQueue,
+                    this.runJournal,
+                    this.numberOfCopiedReferenceGenomes,
+                    this.totalNumberOfCopiedReferenceGenomes,
+                    this.progressListener
+                );
+                this.allReferenceGenomes.addAll(sampleNode.writableDatabaseServiceDatum.referenceGenomes);
+                return null;
+            }, 0)),
+            sampleNode -> new AtomicInteger(1),
+            this::assemblyPrerequisiteComplete
+        );
+        for (Stage stage : List.of(this.assemblyStage, this.importStage, this.referenceStage)) {
+            stage.start();
+        }
+    }
+
+    void addSample(WritableDatabaseServiceDatum writableDatabaseServiceDatum) throws DatabaseServiceException {
+        getSampleNode(writableDatabaseServiceDatum);
+    }
+
+    /**
+     * Returns whether the journal says that this FASTQ file was already imported into the sample's folder.
+     */
+    boolean isFastqFileImported(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        Path path
+    ) {
+        return this.runJournal.hasRecord(
+            writableDatabaseServiceDatum.sampleName,
+            RunJournal.IMPORTED,
+            path.getFileName().toString()
+        );
+    }
+
+    /**
+     * Returns whether the journal already holds the reference-genome accession numbers typed from this file.
+     */
+    boolean isSampleTyped(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        Path path
+    ) {
+        return this.runJournal.hasRecord(
+            writableDatabaseServiceDatum.sampleName,
+            RunJournal.TYPED,
+            path.getFileName().toString()
+        );
+    }
+
+    /**
+     * Journals the sample's reference-genome accession numbers once the file at path has been typed. Nothing is
+     * journaled once the run has failed, since the typing may then be incomplete.
+     */
+    void recordSampleTyped(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        Path path
+    ) throws IOException {
+        if (this.failure.get() != null) {
+            return;
+        }
+        List<String> details = new ArrayList<>();
+        details.add(path.getFileName().toString());
+        synchronized (writableDatabaseServiceDatum.referenceGenomeAccessionNumbers) {
+            details.addAll(writableDatabaseServiceDatum.referenceGenomeAccessionNumbers);
+        }
+        this.runJournal.record(
+            writableDatabaseServiceDatum.sampleName,
+            RunJournal.TYPED,
+            details.toArray(new String[0])
+        );
+    }
+
+    void stageFile(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        Path path,
+        FileProcessor fileProcessor
+    ) throws InterruptedException, DatabaseServiceException {
+        SampleNode sampleNode = getSampleNode(writableDatabaseServiceDatum);
+        if (sampleNode.sealedFlag) {
+            throw new IllegalStateException(String.format(
+                "Sample \"%s\" was already sealed.",
+                writableDatabaseServiceDatum.sampleName
+            ));
+        }
+        sampleNode.remainingFiles.incrementAndGet();
+        this.stagingSlots.acquire();
+        this.ioExecutorService.execute(() -> {
+            try {
+                if (this.failure.get() == null) {
+                    fileProcessor.processFile(
+                        path,
+                        writableDatabaseServiceDatum
+                    );
+                    if (this.importWhileStagingFlag) {
+                        for (StageUnit unit : claimImports(
+                            sampleNode,
+                            this.mergeChunksFlag ? MINIMUM_NUMBER_OF_CHUNKS_PER_EARLY_MERGE : 1
+                        )) {
+                            this.importStage.add(
+                                unit,
+                                sampleNode,
+                                sampleNode.remainingImportUnits
+                            );
+                        }
+                    }
+                }
+            } catch (Throwable throwable) {
+                fail(throwable);
+            } finally {
+                this.stagingSlots.release();
+                if (sampleNode.remainingFiles.decrementAndGet() == 0) {
+                    stagingComplete(sampleNode);
+                }
+            }
+        });
+    }
+
+    void sealSample(WritableDatabaseServiceDatum writableDatabaseServiceDatum) throws InterruptedException {
+        SampleNode sampleNode = this.sampleNodes.get(writableDatabaseServiceDatum);
+        if (sampleNode == null || sampleNode.sealedFlag) {
+            return;
+        }
+        sampleNode.sealedFlag = true;
+        this.referenceStage.capacity.acquire();
+        this.importStage.capacity.acquire();
+        if (sampleNode.remainingFiles.decrementAndGet() == 0) {
+            stagingComplete(sampleNode);
+        }
+    }
+
+    void awaitCompletion() throws InterruptedException, ExecutionException {
+        List<SampleNode> sampleNodes;
+        synchronized (this.sampleNodes) {
+            sampleNodes = new ArrayList<>(this.sampleNodes.values());
+        }
+        for (SampleNode sampleNode : sampleNodes) {
+            sealSample(sampleNode.writableDatabaseServiceDatum);
+        }
+        for (SampleNode sampleNode : sampleNodes) {
+            sampleNode.completion.get();
+        }
+    }
+
+    Set<AnnotatedPluginDocument> getAllReferenceGenomes() {
+        return this.allReferenceGenomes;
+    }
+
+    void close() {
+        for (Stage stage : List.of(this.assemblyStage, this.importStage, this.referenceStage)) {
+            stage.stop();
+        }
+    }
+
+    private SampleNode getSampleNode(WritableDatabaseServiceDatum writableDatabaseServiceDatum) throws DatabaseServiceException {
+        synchronized (this.sampleNodes) {
+            SampleNode sampleNode = this.sampleNodes.get(writableDatabaseServiceDatum);
+            if (sampleNode == null) {
+                sampleNode = new SampleNode(writableDatabaseServiceDatum);
+                restoreFromRunJournal(sampleNode);
+                if (this.importWhileStagingFlag) {
+                    // Each file is imported as soon as it is staged, so the sample's files never wait on each other.
+                    this.stagingSession.markImportable(writableDatabaseServiceDatum.sampleName);
+                }
+                this.sampleNodes.put(
+                    writableDatabaseServiceDatum,
+                    sampleNode
+                );
+            }
+            return sampleNode;
+        }
+    }
+
+    private void restoreFromRunJournal(SampleNode sampleNode) throws DatabaseServiceException {
+        if (!this.runJournal.isResuming()) {
+            return;
+        }
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum = sampleNode.writableDatabaseServiceDatum;
+        String sampleName = writableDatabaseServiceDatum.sampleName;
+        for (List<String> details : this.runJournal.getRecords(sampleName, RunJournal.TYPED)) {
+            // The first detail is the typed file name, and the rest are the accession numbers.
+            writableDatabaseServiceDatum.referenceGenomeAccessionNumbers.addAll(details.subList(1, details.size()));
+        }
+        for (List<String> details : this.runJournal.getRecords(sampleName, RunJournal.IMPORTED)) {
+            // The first detail is the FASTQ file name, and the rest are the names of the documents imported from it.
+            sampleNode.journaledDocumentNames.addAll(details.subList(1, details.size()));
+        }
+        if (sampleNode.journaledDocumentNames.isEmpty()) {
+            return;
+        }
+        for (AnnotatedPluginDocument annotatedPluginDocument : writableDatabaseServiceDatum.writableDatabaseService.retrieve("")) {
+            if (sampleNode.journaledDocumentNames.contains(annotatedPluginDocument.getName())) {
+                writableDatabaseServiceDatum.importedFastqFiles.add(annotatedPluginDocument);
+            }
+        }
+    }
+
+    /**
+     * When resuming, removes the documents named documentNames from the sample's folder before this pipeline writes
+     * them again, since they can only be what an interrupted attempt wrote before it was journaled. Journaled documents,
+     * and anything else in the folder, are left alone.
+     */
+    private void removeUnjournaledDocuments(
+        SampleNode sampleNode,
+        Set<String> documentNames
+    ) throws DatabaseServiceException {
+        if (!this.runJournal.isResuming()) {
+            return;
+        }
+        WritableDatabaseService writableDatabaseService = sampleNode.writableDatabaseServiceDatum.writableDatabaseService;
+        for (AnnotatedPluginDocument annotatedPluginDocument : writableDatabaseService.retrieve("")) {
+            String documentName = annotatedPluginDocument.getName();
+            if (documentNames.contains(documentName) && !sampleNode.journaledDocumentNames.contains(documentName)) {
+                System.out.printf(
+                    "Removing \"%s\" from folder \"%s\", which an interrupted attempt didn't finish%n",
+                    documentName,
+                    writableDatabaseService.getName()
+                );
+                writableDatabaseService.removeDocument(annotatedPluginDocument);
+            }
+        }
+    }
+
+    /**
+     * Returns the names that the sample's reference genomes are copied into its folder under.
+     */
+    private Set<String> getReferenceGenomeNames(WritableDatabaseServiceDatum writableDatabaseServiceDatum) {
+        Set<String> referenceGenomeNames = new HashSet<>();
+        List<String> accessionNumbers = new ArrayList<>(writableDatabaseServiceDatum.referenceGenomeAccessionNumbers);
+        if (accessionNumbers.isEmpty()) {
+            accessionNumbers.add(this.defaultAccessionNumber);
+        }
+        for (String accessionNumber : accessionNumbers) {
+            AnnotatedPluginDocument referenceGenome = this.referenceGenomesPerAccessionNumber.get(accessionNumber);
+            if (referenceGenome != null) {
+                referenceGenomeNames.add(referenceGenome.getName());
+            }
+        }
+        return referenceGenomeNames;
+    }
+
+    private void stagingComplete(SampleNode sampleNode) {
+        // Copies short of budget may now wait for the sample's files, since nothing stops them from being imported.
+        this.stagingSession.markImportable(sampleNode.writableDatabaseServiceDatum.sampleName);
+        // Slots in both queues were reserved when the sample was sealed.
+        this.referenceStage.queue.add(sampleNode);
+        this.importStage.queue.add(sampleNode);
+    }
+
+    private void assemblyPrerequisiteComplete(SampleNode sampleNode) {
+        if (sampleNode.remainingAssemblyPrerequisites.decrementAndGet() == 0) {
+            // A slot in the assembly queue was reserved by the import stage before it started this sample.
+            this.assemblyStage.queue.add(sampleNode);
+        }
+    }
+
+    private List<StageUnit> splitImports(SampleNode sampleNode) {
+        return claimImports(
+            sampleNode,
+            1
+        );
+    }
+
+    /**
+     * Returns an import unit for each of the sample's staged FASTQ files that no unit has been made for yet, or, when
+     * chunks are merged, one for each group of them. Nothing is claimed until at least minimumNumberOfFiles are waiting.
+     */
+    private List<StageUnit> claimImports(
+        SampleNode sampleNode,
+        int minimumNumberOfFiles
+    ) {
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum = sampleNode.writableDatabaseServiceDatum;
+        List<File> rawFastqFiles = new ArrayList<>();
+        synchronized (writableDatabaseServiceDatum.rawFastqFiles) {
+            synchronized (sampleNode.claimedRawFastqFiles) {
+                for (File rawFastqFile : writableDatabaseServiceDatum.rawFastqFiles) {
+                    if (!sampleNode.claimedRawFastqFiles.contains(rawFastqFile)) {
+                        rawFastqFiles.add(rawFastqFile);
+                    }
+                }
+                if (rawFastqFiles.size() < minimumNumberOfFiles) {
+                    return List.of();
+                }
+                sampleNode.claimedRawFastqFiles.addAll(rawFastqFiles);
+            }
+        }
+        List<List<File>> chunkFastqFilesPerUnit = new ArrayList<>();
+        if (this.mergeChunksFlag) {
+            chunkFastqFilesPerUnit.addAll(FastqChunkMerger.groupChunkFiles(
+                rawFastqFiles,
+                this.decompressMergedChunksFlag
+            ));
+        } else {
+            for (File rawFastqFile : rawFastqFiles) {
+                chunkFastqFilesPerUnit.add(List.of(rawFastqFile));
+            }
+        }
+        this.totalNumberOfImportedFastqFiles.addAndGet(chunkFastqFilesPerUnit.size());
+        List<StageUnit> units = new LinkedList<>();
+        for (List<File> chunkFastqFiles : chunkFastqFilesPerUnit) {
+            long size = 0;
+            for (File chunkFastqFile : chunkFastqFiles) {
+                size += chunkFastqFile.length();
+            }
+            units.add(new StageUnit(
+                () -> {
+                    File rawFastqFile = chunkFastqFiles.get(0);
+                    List<File> mergedChunkFastqFiles = List.of();
+                    // A single file is imported as it is, since merging it would only copy it.
+                    if (chunkFastqFiles.size() > 1) {
+                        rawFastqFile = mergeChunkFastqFiles(
+                            writableDatabaseServiceDatum,
+                            chunkFastqFiles
+                        );
+                        mergedChunkFastqFiles = chunkFastqFiles;
+                    }
+                    removeUnjournaledDocuments(
+                        sampleNode,
+                        Set.of(FastqReader.formatDocumentName(rawFastqFile.toPath()))
+                    );
+                    sampleNode.importedFastqFilesPerRawFastqFile.put(
+                        rawFastqFile,
+                        importFastqFile(
+                            writableDatabaseServiceDatum,
+                            rawFastqFile,
+                            mergedChunkFastqFiles,
+                            this.readScreen,
+                            this.useNativeFastqReaderFlag,
+                            this.stagingSession,
+                            this.databaseCommitQueue,
+                            this.runJournal,
+                            this.numberOfImportedFastqFiles,
+                            this.totalNumberOfImportedFastqFiles,
+                            this.progressListener
+                        )
+                    );
+                    return null;
+                },
+                size
+            ));
+        }
+        return units;
+    }
+
+    private File mergeChunkFastqFiles(
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum,
+        List<File> chunkFastqFiles
+    ) throws IOException {
+        Path mergedFilePath = this.stagingSession.createScratchFilePath(FastqChunkMerger.formatMergedFileName(
+            chunkFastqFiles,
+            this.decompressMergedChunksFlag
+        ));
+        try (
+            StageTimer stageTimer = StageTimer.start(
+                StageTimer.CHUNK_MERGE,
+                writableDatabaseServiceDatum.sampleName
+            )
+        ) {
+            stageTimer.setBytes(FastqChunkMerger.merge(
+                chunkFastqFiles,
+                mergedFilePath,
+                this.decompressMergedChunksFlag
+            ));
+        }
+        return mergedFilePath.toFile();
+    }
+
+    /**
+     * Adds the sample's imported documents in FASTQ file name order, so that they keep the same order however the
+     * imports finished.
+     */
+    private void mergeImportedFastqFiles(SampleNode sampleNode) {
+        List<File> rawFastqFiles = new ArrayList<>(sampleNode.importedFastqFilesPerRawFastqFile.keySet());
+        // Files are staged in whatever order their copies finish, so they are put back into name order.
+        rawFastqFiles.sort(Comparator.comparing(File::getName));
+        for (File rawFastqFile : rawFastqFiles) {
+            sampleNode.writableDatabaseServiceDatum.importedFastqFiles.addAll(sampleNode.importedFastqFilesPerRawFastqFile.get(rawFastqFile));
+        }
+    }
+
+    private List<StageUnit> splitAssemblies(SampleNode sampleNode) {
+        WritableDatabaseServiceDatum writableDatabaseServiceDatum = sampleNode.writableDatabaseServiceDatum;
+        if (
+            !this.calculateContigsFlag ||
+            writableDatabaseServiceDatum.importedFastqFiles.size() == 0
+        ) {
+            return List.of();
+        }
+        // Reads are binned between all of the sample's references, including any already assembled by a resumed run.
+        ReadBinner readBinner = this.binReadsFlag && writableDatabaseServiceDatum.referenceGenomes.size() > 1 ? new ReadBinner(
+            writableDatabaseServiceDatum.referenceGenomes,
+            writableDatabaseServiceDatum.importedFastqFiles
+        ) : null;
+        // Every reference is assembled against all of the sample's reads unless they are binned. Bins aren't known until
+        // the first one is asked for, so each is taken to hold an equal share of the reads.
+        long memoryEstimateInBytes = AssemblyMemoryEstimator.estimate(
+            writableDatabaseServiceDatum.importedFastqFiles,
+            this.geneiousAssembler != null
+        ) / (readBinner == null ? 1 : writableDatabaseServiceDatum.referenceGenomes.size());
+        List<StageUnit> units = new LinkedList<>();
+        for (AnnotatedPluginDocument referenceGenome : writableDatabaseServiceDatum.referenceGenomes) {
+            if (this.runJournal.hasRecord(writableDatabaseServiceDatum.sampleName, RunJournal.ASSEMBLED, referenceGenome.getName())) {
+                continue;
+            }
+            units.add(new StageUnit(() -> {
+                performAssembly(
+                    writableDatabaseServiceDatum,
+                    referenceGenome,
+                    this.geneiousAssembler,
+                    this.referenceMapper,
+                    this.runJournal.isResuming(),
+                    this.pileupFolderPath,
+                    readBinner,
+                    this.readDownsampler,
+                    this.databaseCommitQueue,
+                    this.runJournal,
+                    this.numberOfAssemblies,
+                    this.totalNumberOfAssemblies,
+                    this.progressListener
+                );
+                return null;
+            }, memoryEstimateInBytes, memoryEstimateInBytes));
+        }
+        this.totalNumberOfAssemblies.addAndGet(units.size());
+        return units;
+    }
+
+    private void fail(Throwable throwable) {
+        if (!this.failure.compareAndSet(null, throwable)) {
+            return;
+        }
+        throwable.printStackTrace();
+        this.stagingSlots.release(ABORT_PERMITS);
+        for (Stage stage : List.of(this.assemblyStage, this.importStage, this.referenceStage)) {
+            stage.abort();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.biomatters.ppbAutomation;
+
+import jdk.jfr.*;
+
+/**
+ * A JFR event for one piece of work done by a stage of a run, e.g. copying one FASTQ file or assembling one contig, so
+ * that a flight recording shows where a slow run's time went.
+ */
+@Name("com.biomatters.ppbAutomation.Stage")
+@Label("PPB Automation Stage")
+@Category("PPB Automation")
+@Description("One piece of work done by a stage of a Begin or Finalize run")
+@StackTrace(false)
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Sample")
+    String sample;
+
+    @Label("Type")
+    @Description("The reference genome or genome type the work was for, if any")
+    String type;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Read Count")
+    long readCount;
+}
@@ -0,0 +1,83 @@
+package com.biomatters.ppbAutomation;
+
+/**
+ * Times one piece of work done by a stage, committing a {@link StageEvent} and adding it to any Chrome trace being
+ * recorded when it is closed.
+ */
+final class StageTimer implements AutoCloseable {
+    static final String NETWORK_COPY = "networkCopy";
+    static final String JSON_TYPING = "jsonTyping";
+    static final String CHUNK_MERGE = "chunkMerge";
+    static final String READ_SCREEN = "readScreen";
+    static final String FASTQ_IMPORT = "fastqImport";
+    static final String FASTQ_COMMIT = "fastqCommit";
+    static final String REFERENCE_COPY = "referenceCopy";
+    static final String ASSEMBLY = "assembly";
+    static final String CONTIG_COMMIT = "contigCommit";
+    static final String FINALIZE_PARSE = "finalizeParse";
+    static final String FINALIZE_MAFFT = "finalizeMafft";
+    static final String FINALIZE_EXPORT = "finalizeExport";
+
+    private final StageEvent stageEvent = new StageEvent();
+    private long startTimeNs;
+
+    /**
+     * Creates a timer that doesn't start until {@link #start} is called, for work that is queued before it runs.
+     */
+    StageTimer(
+        String stage,
+        String sampleName
+    ) {
+        this.stageEvent.stage = stage;
+        this.stageEvent.sample = sampleName;
+    }
+
+    static StageTimer start(
+        String stage,
+        String sampleName
+    ) {
+        return new StageTimer(
+            stage,
+            sampleName
+        ).start();
+    }
+
+    StageTimer start() {
+        this.stageEvent.begin();
+        this.startTimeNs = System.nanoTime();
+        return this;
+    }
+
+    StageTimer setType(String type) {
+        this.stageEvent.type = type;
+        return this;
+    }
+
+    StageTimer setBytes(long bytes) {
+        this.stageEvent.bytes = bytes;
+        return this;
+    }
+
+    StageTimer addReadCount(long readCount) {
+        this.stageEvent.readCount += readCount;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        long endTimeNs = System.nanoTime();
+        this.stageEvent.end();
+        if (this.stageEvent.shouldCommit()) {
+            this.stageEvent.commit();
+        }
+        ChromeTraceRecorder.record(
+            this.stageEvent.stage,
+            this.stageEvent.sample,
+            this.stageEvent.type,
+            this.stageEvent.bytes,
+            this.stageEvent.readCount,
+            this.startTimeNs,
+            endTimeNs
+        );
+    }
+}
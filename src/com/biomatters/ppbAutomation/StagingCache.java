@@ -0,0 +1,830 @@
+package com.biomatters.ppbAutomation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A local copy of network FASTQ files that survives across runs, so that re-running a plate doesn't copy every file
+ * again.
+ * <p>
+ * Entries are keyed by source path, size and last-modified time, and point at a content-addressed object named after
+ * the CRC32C of the copied bytes. Identical files reached through different paths therefore share one object. When the
+ * objects outgrow the disk budget, the least recently used ones that aren't needed by a running operation are deleted.
+ * <p>
+ * Runs stage files through a {@link Session}, which holds on to each object until the run has imported it. While the
+ * budget is used up, new copies wait for other copies to finish or for the files of samples that the run has marked
+ * importable to be imported. Files of samples that can't be imported until more files are staged are never waited on,
+ * and no copy waits longer than {@link #MAXIMUM_BUDGET_WAIT_MS}, so the budget is exceeded rather than a run stalling.
+ */
+class StagingCache {
+    private static final String INDEX_FILE_NAME = "index.tsv";
+    private static final String OBJECTS_FOLDER_NAME = "objects";
+    private static final String PARTIAL_FOLDER_NAME = "partial";
+    private static final String SCRATCH_FOLDER_NAME = "scratch";
+    static final long MAXIMUM_BUDGET_WAIT_MS = 5 * 60 * 1000;
+    // The temporary folders that runs staged files in before there was a cache, which were never deleted.
+    private static final String LEGACY_TEMPORARY_FOLDER_PREFIX = "networkDumpFolderForGeneious";
+    private static final Map<Path, StagingCache> stagingCachesPerFolderPath = new HashMap<>();
+    private static boolean legacyTemporaryFoldersDeletedFlag = false;
+    private static final AtomicInteger sessionCount = new AtomicInteger(0);
+
+    private static final class Entry {
+        final String sourcePath;
+        final long size;
+        final long lastModifiedTimeMs;
+        final String checksum;
+        long lastAccessTimeMs;
+
+        Entry(
+            String sourcePath,
+            long size,
+            long lastModifiedTimeMs,
+            String checksum,
+            long lastAccessTimeMs
+        ) {
+            this.sourcePath = sourcePath;
+            this.size = size;
+            this.lastModifiedTimeMs = lastModifiedTimeMs;
+            this.checksum = checksum;
+            this.lastAccessTimeMs = lastAccessTimeMs;
+        }
+    }
+
+    private final Path folderPath;
+    private final Path indexFilePath;
+    private final Path objectsFolderPath;
+    private final Path partialFolderPath;
+    private final Path scratchFolderPath;
+    private long budgetInBytes;
+    private final LinkedHashMap<String, Entry> entriesPerKey = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<Path>> copiesInProgressPerKey = new HashMap<>();
+    // Objects held by a session are never evicted, because a run may still be about to import them.
+    private final Map<Path, Integer> holdCountsPerObjectPath = new HashMap<>();
+    // The sizes of the copies in progress, which will count against the budget once they finish.
+    private long reservedBytes = 0;
+    // Keyed by session and sample, so that a copy can tell whether anything it waits for will ever be released.
+    private final Map<String, Long> heldBytesPerGroupKey = new HashMap<>();
+    // The groups whose held files are being imported, and so will be released without any more files being staged.
+    private final Set<String> importableGroupKeys = new HashSet<>();
+    // The size of every object, kept in step with the objects folder so that eviction never has to list it.
+    private final Map<String, Map<String, Long>> objectSizesPerFileNamePerChecksum = new HashMap<>();
+    private long totalObjectSizeInBytes = 0;
+    // Set when entries have been touched since the index was last written. Cache hits only mark the index, so that a
+    // warm run doesn't rewrite the whole index for every file.
+    private boolean indexDirtyFlag = false;
+
+    private static final class Hold {
+        final Path objectPath;
+        final String groupKey;
+        final long size;
+
+        Hold(
+            Path objectPath,
+            String groupKey,
+            long size
+        ) {
+            this.objectPath = objectPath;
+            this.groupKey = groupKey;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The files staged by one run. Each staged file is held until {@link #release} is called for it, or until the
+     * session is closed.
+     */
+    final class Session implements AutoCloseable {
+        private final int sessionNumber = sessionCount.incrementAndGet();
+        private final boolean deleteAfterReleaseFlag;
+        private final List<Hold> holds = new ArrayList<>();
+        private final Set<Path> scratchFilePaths = new HashSet<>();
+        private final Set<String> importableGroupKeys = new HashSet<>();
+        private int numberOfScratchFiles = 0;
+
+        private Session(boolean deleteAfterReleaseFlag) {
+            this.deleteAfterReleaseFlag = deleteAfterReleaseFlag;
+        }
+
+        /**
+         * Returns a local copy of sourcePath for sampleName, copying it only if the cache doesn't already hold the
+         * current version.
+         */
+        Path stage(
+            Path sourcePath,
+            String sampleName,
+            RangedFileCopier rangedFileCopier
+        ) throws IOException, InterruptedException {
+            Hold hold = StagingCache.this.stage(
+                sourcePath,
+                formatGroupKey(sampleName),
+                rangedFileCopier
+            );
+            synchronized (this) {
+                this.holds.add(hold);
+            }
+            return hold.objectPath;
+        }
+
+        /**
+         * Tells the cache that sampleName's staged files are being imported, so that copies short of budget may wait
+         * for them to be released. Until then, the sample's files are assumed to wait for more of its files to be
+         * staged, and copies don't wait on them.
+         */
+        void markImportable(String sampleName) {
+            String groupKey = formatGroupKey(sampleName);
+            synchronized (this) {
+                if (!this.importableGroupKeys.add(groupKey)) {
+                    return;
+                }
+            }
+            StagingCache.this.markImportable(groupKey);
+        }
+
+        /**
+         * Lets go of a staged file once it has been imported, deleting it straight away if the session was opened to do
+         * so. Paths that weren't staged by this session are ignored.
+         */
+        void release(Path objectPath) throws IOException {
+            Hold releasedHold = null;
+            synchronized (this) {
+                if (this.scratchFilePaths.remove(objectPath)) {
+                    deleteRecursively(objectPath.getParent());
+                    return;
+                }
+                for (Iterator<Hold> holdIterator = this.holds.iterator(); holdIterator.hasNext(); ) {
+                    Hold hold = holdIterator.next();
+                    if (hold.objectPath.equals(objectPath)) {
+                        holdIterator.remove();
+                        releasedHold = hold;
+                        break;
+                    }
+                }
+            }
+            if (releasedHold != null) {
+                StagingCache.this.release(
+                    releasedHold,
+                    this.deleteAfterReleaseFlag
+                );
+            }
+        }
+
+        /**
+         * Returns a path, in a folder of its own, for a file made from staged files, such as merged chunks or screened
+         * reads. The file isn't in the index and isn't kept: it is deleted when it is released, or when the session is
+         * closed.
+         */
+        synchronized Path createScratchFilePath(String fileName) throws IOException {
+            Path scratchFileFolderPath = StagingCache.this.scratchFolderPath.resolve(String.format(
+                "%d-%d",
+                this.sessionNumber,
+                ++this.numberOfScratchFiles
+            ));
+            Files.createDirectories(scratchFileFolderPath);
+            Path scratchFilePath = scratchFileFolderPath.resolve(fileName);
+            this.scratchFilePaths.add(scratchFilePath);
+            return scratchFilePath;
+        }
+
+        @Override
+        public void close() throws IOException {
+            List<Hold> releasedHolds;
+            Set<String> importableGroupKeys;
+            synchronized (this) {
+                releasedHolds = new ArrayList<>(this.holds);
+                this.holds.clear();
+                importableGroupKeys = new HashSet<>(this.importableGroupKeys);
+                this.importableGroupKeys.clear();
+                for (Path scratchFilePath : this.scratchFilePaths) {
+                    deleteRecursively(scratchFilePath.getParent());
+                }
+                this.scratchFilePaths.clear();
+            }
+            for (Hold hold : releasedHolds) {
+                StagingCache.this.release(
+                    hold,
+                    this.deleteAfterReleaseFlag
+                );
+            }
+            StagingCache.this.forgetImportable(importableGroupKeys);
+            StagingCache.this.writeIndexIfDirty();
+        }
+
+        private String formatGroupKey(String sampleName) {
+            return String.format(
+                "%d\t%s",
+                this.sessionNumber,
+                sampleName
+            );
+        }
+    }
+
+    static synchronized StagingCache getStagingCache(
+        Path folderPath,
+        long budgetInBytes
+    ) throws IOException {
+        deleteLegacyTemporaryFolders();
+        Path normalizedFolderPath = folderPath.toAbsolutePath().normalize();
+        StagingCache stagingCache = stagingCachesPerFolderPath.get(normalizedFolderPath);
+        if (stagingCache == null) {
+            stagingCache = new StagingCache(normalizedFolderPath);
+            stagingCachesPerFolderPath.put(
+                normalizedFolderPath,
+                stagingCache
+            );
+        }
+        stagingCache.setBudgetInBytes(budgetInBytes);
+        return stagingCache;
+    }
+
+    private StagingCache(Path folderPath) throws IOException {
+        this.folderPath = folderPath;
+        this.indexFilePath = folderPath.resolve(INDEX_FILE_NAME);
+        this.objectsFolderPath = folderPath.resolve(OBJECTS_FOLDER_NAME);
+        this.partialFolderPath = folderPath.resolve(PARTIAL_FOLDER_NAME);
+        this.scratchFolderPath = folderPath.resolve(SCRATCH_FOLDER_NAME);
+        Files.createDirectories(this.objectsFolderPath);
+        Files.createDirectories(this.partialFolderPath);
+        // Scratch files only last as long as the session that made them, and none is open yet.
+        deleteRecursively(this.scratchFolderPath);
+        Files.createDirectories(this.scratchFolderPath);
+        // Anything left in here was being copied when Geneious last stopped.
+        try (DirectoryStream<Path> partialPaths = Files.newDirectoryStream(this.partialFolderPath)) {
+            for (Path partialPath : partialPaths) {
+                Files.deleteIfExists(partialPath);
+            }
+        }
+        readIndex();
+        readObjectSizes();
+        deleteUnindexedObjects();
+    }
+
+    synchronized void setBudgetInBytes(long budgetInBytes) {
+        this.budgetInBytes = budgetInBytes;
+        notifyAll();
+    }
+
+    /**
+     * Opens a session for one run. If deleteAfterReleaseFlag is set, each staged file is deleted as soon as the run has
+     * imported it instead of being kept for later runs.
+     */
+    Session openSession(boolean deleteAfterReleaseFlag) {
+        return new Session(deleteAfterReleaseFlag);
+    }
+
+    /**
+     * Returns the object for sourcePath, copying it first if needed, already held so that it can't be evicted before the
+     * caller records the hold.
+     */
+    private Hold stage(
+        Path sourcePath,
+        String groupKey,
+        RangedFileCopier rangedFileCopier
+    ) throws IOException, InterruptedException {
+        BasicFileAttributes basicFileAttributes = Files.readAttributes(
+            sourcePath,
+            BasicFileAttributes.class
+        );
+        String sourcePathString = sourcePath.toAbsolutePath().normalize().toString();
+        long size = basicFileAttributes.size();
+        long lastModifiedTimeMs = basicFileAttributes.lastModifiedTime().toMillis();
+        String key = formatKey(
+            sourcePathString,
+            size,
+            lastModifiedTimeMs
+        );
+        while (true) {
+            CompletableFuture<Path> copyInProgress;
+            boolean copyingFlag = false;
+            synchronized (this) {
+                Entry entry = this.entriesPerKey.get(key);
+                if (entry != null) {
+                    Path objectPath = resolveObjectPath(
+                        entry.checksum,
+                        sourcePath.getFileName().toString()
+                    );
+                    if (Files.exists(objectPath) && Files.size(objectPath) == size) {
+                        touch(
+                            key,
+                            entry
+                        );
+                        // Only the access time changed, which is written with the next change or when the session closes.
+                        this.indexDirtyFlag = true;
+                        return hold(
+                            objectPath,
+                            groupKey,
+                            size
+                        );
+                    }
+                    this.entriesPerKey.remove(key);
+                }
+                copyInProgress = this.copiesInProgressPerKey.get(key);
+                if (copyInProgress == null) {
+                    copyInProgress = new CompletableFuture<>();
+                    this.copiesInProgressPerKey.put(
+                        key,
+                        copyInProgress
+                    );
+                    copyingFlag = true;
+                }
+            }
+            if (!copyingFlag) {
+                try {
+                    copyInProgress.get();
+                } catch (ExecutionException executionException) {
+                    throw new IOException(executionException.getCause());
+                }
+                // Look the finished copy up again, so that it is held under the same lock that eviction takes.
+                continue;
+            }
+            try {
+                Hold hold = copyIntoCache(
+                    sourcePath,
+                    groupKey,
+                    rangedFileCopier,
+                    sourcePathString,
+                    size,
+                    lastModifiedTimeMs,
+                    key
+                );
+                copyInProgress.complete(hold.objectPath);
+                return hold;
+            } catch (IOException | InterruptedException | RuntimeException exception) {
+                copyInProgress.completeExceptionally(exception);
+                throw exception;
+            } finally {
+                synchronized (this) {
+                    this.copiesInProgressPerKey.remove(key);
+                }
+            }
+        }
+    }
+
+    private Hold copyIntoCache(
+        Path sourcePath,
+        String groupKey,
+        RangedFileCopier rangedFileCopier,
+        String sourcePathString,
+        long size,
+        long lastModifiedTimeMs,
+        String key
+    ) throws IOException, InterruptedException {
+        reserve(size);
+        boolean reservedFlag = true;
+        Path partialPath = null;
+        try {
+            partialPath = Files.createTempFile(
+                this.partialFolderPath,
+                "staging",
+                ".partial"
+            );
+            long crc32c = rangedFileCopier.copy(
+                sourcePath,
+                partialPath
+            );
+            String checksum = formatChecksum(
+                crc32c,
+                size
+            );
+            Path objectPath = resolveObjectPath(
+                checksum,
+                sourcePath.getFileName().toString()
+            );
+            synchronized (this) {
+                if (Files.exists(objectPath) && Files.size(objectPath) == size) {
+                    // The same content was already cached under another source path.
+                    Files.delete(partialPath);
+                } else {
+                    Files.createDirectories(objectPath.getParent());
+                    Files.move(
+                        partialPath,
+                        objectPath,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE
+                    );
+                    putObjectSize(
+                        objectPath,
+                        size
+                    );
+                }
+                Entry entry = new Entry(
+                    sourcePathString,
+                    size,
+                    lastModifiedTimeMs,
+                    checksum,
+                    System.currentTimeMillis()
+                );
+                touch(
+                    key,
+                    entry
+                );
+                // The copy now counts against the budget as an object instead.
+                unreserve(size);
+                reservedFlag = false;
+                Hold hold = hold(
+                    objectPath,
+                    groupKey,
+                    size
+                );
+                evict(0);
+                writeIndex();
+                return hold;
+            }
+        } finally {
+            if (reservedFlag) {
+                unreserve(size);
+            }
+            if (partialPath != null) {
+                Files.deleteIfExists(partialPath);
+            }
+        }
+    }
+
+    /**
+     * Waits until size more bytes fit within the budget, evicting what it can, and then sets them aside for a copy.
+     */
+    private synchronized void reserve(long size) throws IOException, InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + MAXIMUM_BUDGET_WAIT_MS;
+        while (true) {
+            long totalSizeInBytes = evict(this.reservedBytes + size);
+            if (totalSizeInBytes + this.reservedBytes + size <= this.budgetInBytes) {
+                break;
+            }
+            long bytesHeldByImportableGroups = 0;
+            for (String importableGroupKey : this.importableGroupKeys) {
+                bytesHeldByImportableGroups += this.heldBytesPerGroupKey.getOrDefault(
+                    importableGroupKey,
+                    0L
+                );
+            }
+            // Waiting only helps if another copy will finish or some sample's files will be imported.
+            if (this.reservedBytes == 0 && bytesHeldByImportableGroups == 0) {
+                break;
+            }
+            long remainingWaitMs = deadlineMs - System.currentTimeMillis();
+            if (remainingWaitMs <= 0) {
+                System.out.printf(
+                    "Staging cache is over its budget of %d bytes, copying anyway after waiting %d s%n",
+                    this.budgetInBytes,
+                    MAXIMUM_BUDGET_WAIT_MS / 1000
+                );
+                break;
+            }
+            wait(remainingWaitMs);
+        }
+        this.reservedBytes += size;
+    }
+
+    private synchronized void markImportable(String groupKey) {
+        this.importableGroupKeys.add(groupKey);
+        notifyAll();
+    }
+
+    private synchronized void forgetImportable(Set<String> groupKeys) {
+        this.importableGroupKeys.removeAll(groupKeys);
+    }
+
+    private synchronized void unreserve(long size) {
+        this.reservedBytes -= size;
+        notifyAll();
+    }
+
+    private synchronized Hold hold(
+        Path objectPath,
+        String groupKey,
+        long size
+    ) {
+        Hold hold = new Hold(
+            objectPath,
+            groupKey,
+            size
+        );
+        this.holdCountsPerObjectPath.merge(
+            hold.objectPath,
+            1,
+            Integer::sum
+        );
+        this.heldBytesPerGroupKey.merge(
+            hold.groupKey,
+            hold.size,
+            Long::sum
+        );
+        return hold;
+    }
+
+    private synchronized void release(
+        Hold hold,
+        boolean deleteFlag
+    ) throws IOException {
+        this.heldBytesPerGroupKey.computeIfPresent(
+            hold.groupKey,
+            (key, heldBytes) -> heldBytes == hold.size ? null : heldBytes - hold.size
+        );
+        notifyAll();
+        Path objectPath = hold.objectPath;
+        Integer holdCount = this.holdCountsPerObjectPath.get(objectPath);
+        if (holdCount == null) {
+            return;
+        }
+        if (holdCount > 1) {
+            this.holdCountsPerObjectPath.put(
+                objectPath,
+                holdCount - 1
+            );
+            return;
+        }
+        this.holdCountsPerObjectPath.remove(objectPath);
+        if (deleteFlag) {
+            String checksum = objectPath.getParent().getFileName().toString();
+            String fileName = objectPath.getFileName().toString();
+            this.entriesPerKey.values().removeIf(entry -> entry.checksum.equals(checksum) && Paths.get(entry.sourcePath).getFileName().toString().equals(fileName));
+            Files.deleteIfExists(objectPath);
+            removeObjectSize(objectPath);
+            try {
+                Files.deleteIfExists(objectPath.getParent());
+            } catch (DirectoryNotEmptyException directoryNotEmptyException) {
+                // The same content is also cached under another file name.
+            }
+            writeIndex();
+        }
+    }
+
+    private void touch(
+        String key,
+        Entry entry
+    ) {
+        entry.lastAccessTimeMs = System.currentTimeMillis();
+        // Re-inserting moves the entry to the most recently used end.
+        this.entriesPerKey.remove(key);
+        this.entriesPerKey.put(
+            key,
+            entry
+        );
+    }
+
+    /**
+     * Deletes the least recently used objects that no session holds until the objects plus additionalBytes fit within
+     * the budget, or nothing more can be deleted, and returns the total size of the objects left.
+     */
+    private long evict(long additionalBytes) throws IOException {
+        if (this.totalObjectSizeInBytes + additionalBytes <= this.budgetInBytes) {
+            return this.totalObjectSizeInBytes;
+        }
+        Set<String> checksumsInUse = new HashSet<>();
+        for (Path objectPathInUse : this.holdCountsPerObjectPath.keySet()) {
+            checksumsInUse.add(objectPathInUse.getParent().getFileName().toString());
+        }
+        Iterator<Map.Entry<String, Entry>> entryIterator = this.entriesPerKey.entrySet().iterator();
+        Set<String> evictedChecksums = new HashSet<>();
+        while (this.totalObjectSizeInBytes + additionalBytes > this.budgetInBytes && entryIterator.hasNext()) {
+            Entry entry = entryIterator.next().getValue();
+            if (checksumsInUse.contains(entry.checksum)) {
+                continue;
+            }
+            entryIterator.remove();
+            if (!evictedChecksums.add(entry.checksum)) {
+                continue;
+            }
+            Path checksumFolderPath = this.objectsFolderPath.resolve(entry.checksum);
+            Map<String, Long> objectSizesPerFileName = this.objectSizesPerFileNamePerChecksum.remove(entry.checksum);
+            if (objectSizesPerFileName != null) {
+                for (Map.Entry<String, Long> objectSizePerFileName : objectSizesPerFileName.entrySet()) {
+                    Files.deleteIfExists(checksumFolderPath.resolve(objectSizePerFileName.getKey()));
+                    this.totalObjectSizeInBytes -= objectSizePerFileName.getValue();
+                }
+            }
+            Files.deleteIfExists(checksumFolderPath);
+        }
+        // Drop any entries that pointed at evicted objects through another source path.
+        this.entriesPerKey.values().removeIf(entry -> evictedChecksums.contains(entry.checksum));
+        if (!evictedChecksums.isEmpty()) {
+            writeIndex();
+        }
+        return this.totalObjectSizeInBytes;
+    }
+
+    /**
+     * Lists the objects folder and records the size of every object in it. This is the only time the folder is listed;
+     * from then on the sizes are kept up to date as objects are added and deleted.
+     */
+    private void readObjectSizes() throws IOException {
+        try (DirectoryStream<Path> checksumFolderPaths = Files.newDirectoryStream(this.objectsFolderPath)) {
+            for (Path checksumFolderPath : checksumFolderPaths) {
+                try (DirectoryStream<Path> objectPaths = Files.newDirectoryStream(checksumFolderPath)) {
+                    for (Path objectPath : objectPaths) {
+                        putObjectSize(
+                            objectPath,
+                            Files.size(objectPath)
+                        );
+                    }
+                }
+            }
+        }
+    }
+
+    private void putObjectSize(
+        Path objectPath,
+        long size
+    ) {
+        Long previousSize = this.objectSizesPerFileNamePerChecksum.computeIfAbsent(
+            objectPath.getParent().getFileName().toString(),
+            key -> new HashMap<>()
+        ).put(
+            objectPath.getFileName().toString(),
+            size
+        );
+        this.totalObjectSizeInBytes += size - (previousSize == null ? 0 : previousSize);
+    }
+
+    private void removeObjectSize(Path objectPath) {
+        String checksum = objectPath.getParent().getFileName().toString();
+        Map<String, Long> objectSizesPerFileName = this.objectSizesPerFileNamePerChecksum.get(checksum);
+        if (objectSizesPerFileName == null) {
+            return;
+        }
+        Long size = objectSizesPerFileName.remove(objectPath.getFileName().toString());
+        if (size != null) {
+            this.totalObjectSizeInBytes -= size;
+        }
+        if (objectSizesPerFileName.isEmpty()) {
+            this.objectSizesPerFileNamePerChecksum.remove(checksum);
+        }
+    }
+
+    /**
+     * Deletes objects the index doesn't know about, which were moved into place just before Geneious stopped and so
+     * could never be found again.
+     */
+    private void deleteUnindexedObjects() throws IOException {
+        Set<Path> indexedObjectPaths = new HashSet<>();
+        for (Entry entry : this.entriesPerKey.values()) {
+            indexedObjectPaths.add(resolveObjectPath(
+                entry.checksum,
+                Paths.get(entry.sourcePath).getFileName().toString()
+            ));
+        }
+        List<Path> objectPaths = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> objectSizesPerFileName : this.objectSizesPerFileNamePerChecksum.entrySet()) {
+            for (String fileName : objectSizesPerFileName.getValue().keySet()) {
+                objectPaths.add(resolveObjectPath(
+                    objectSizesPerFileName.getKey(),
+                    fileName
+                ));
+            }
+        }
+        for (Path objectPath : objectPaths) {
+            if (!indexedObjectPaths.contains(objectPath)) {
+                Files.deleteIfExists(objectPath);
+                removeObjectSize(objectPath);
+                try {
+                    Files.deleteIfExists(objectPath.getParent());
+                } catch (DirectoryNotEmptyException directoryNotEmptyException) {
+                    // Other objects with the same content are still indexed.
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the staging folders left in the temporary folder by runs from before the cache, once per Geneious session.
+     */
+    static synchronized void deleteLegacyTemporaryFolders() {
+        if (legacyTemporaryFoldersDeletedFlag) {
+            return;
+        }
+        legacyTemporaryFoldersDeletedFlag = true;
+        Path temporaryFolderPath = Paths.get(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> legacyTemporaryFolderPaths = Files.newDirectoryStream(
+            temporaryFolderPath,
+            LEGACY_TEMPORARY_FOLDER_PREFIX + "*"
+        )) {
+            for (Path legacyTemporaryFolderPath : legacyTemporaryFolderPaths) {
+                deleteRecursively(legacyTemporaryFolderPath);
+                System.out.printf(
+                    "Deleted leftover staging folder \"%s\"%n",
+                    legacyTemporaryFolderPath
+                );
+            }
+        } catch (IOException ioException) {
+            // Leftovers that can't be deleted now are tried again the next time Geneious starts.
+            ioException.printStackTrace();
+        }
+    }
+
+    private static void deleteRecursively(Path folderPath) throws IOException {
+        if (!Files.exists(folderPath)) {
+            return;
+        }
+        try (Stream<Path> pathStream = Files.walk(folderPath)) {
+            // Children are deleted before the folders that contain them.
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void readIndex() throws IOException {
+        if (!Files.exists(this.indexFilePath)) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(this.indexFilePath, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                entries.add(new Entry(
+                    fields[0],
+                    Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]),
+                    fields[3],
+                    Long.parseLong(fields[4])
+                ));
+            } catch (NumberFormatException numberFormatException) {
+                // Skip lines that were only partially written.
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.lastAccessTimeMs));
+        for (Entry entry : entries) {
+            this.entriesPerKey.put(
+                formatKey(
+                    entry.sourcePath,
+                    entry.size,
+                    entry.lastModifiedTimeMs
+                ),
+                entry
+            );
+        }
+    }
+
+    private synchronized void writeIndexIfDirty() throws IOException {
+        if (this.indexDirtyFlag) {
+            writeIndex();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path temporaryIndexFilePath = this.folderPath.resolve(INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter bufferedWriter = Files.newBufferedWriter(temporaryIndexFilePath, StandardCharsets.UTF_8)) {
+            for (Entry entry : this.entriesPerKey.values()) {
+                bufferedWriter.write(String.join(
+                    "\t",
+                    entry.sourcePath,
+                    Long.toString(entry.size),
+                    Long.toString(entry.lastModifiedTimeMs),
+                    entry.checksum,
+                    Long.toString(entry.lastAccessTimeMs)
+                ));
+                bufferedWriter.newLine();
+            }
+        }
+        Files.move(
+            temporaryIndexFilePath,
+            this.indexFilePath,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+        this.indexDirtyFlag = false;
+    }
+
+    private Path resolveObjectPath(
+        String checksum,
+        String fileName
+    ) {
+        // The original file name is kept, because Geneious picks an importer from the file extension.
+        return this.objectsFolderPath.resolve(checksum).resolve(fileName);
+    }
+
+    private static String formatKey(
+        String sourcePath,
+        long size,
+        long lastModifiedTimeMs
+    ) {
+        return String.format(
+            "%s|%d|%d",
+            sourcePath,
+            size,
+            lastModifiedTimeMs
+        );
+    }
+
+    private static String formatChecksum(
+        long crc32c,
+        long size
+    ) {
+        return String.format(
+            "%08x-%x",
+            crc32c,
+            size
+        );
+    }
+}
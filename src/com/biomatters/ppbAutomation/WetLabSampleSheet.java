@@ -0,0 +1,569 @@
+package com.biomatters.ppbAutomation;
+
+import com.biomatters.geneious.publicapi.plugin.DocumentOperationException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The run, sample and barcode of every row of a wet-lab Excel file, read without loading the workbook.
+ * <p>
+ * The .xlsx zip entries are parsed with SAX: the shared strings first, then each worksheet in workbook order until one
+ * has a header row with a sample column and, if one is asked for, a barcode column (the run column is optional). Parsed sheets are cached by
+ * the checksum of the file, so the Begin and Finalize operations of the same run only read it once.
+ */
+final class WetLabSampleSheet {
+    private static final int MAXIMUM_NUMBER_OF_CACHED_SAMPLE_SHEETS = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Pattern BARCODE_NUMBER_PATTERN = Pattern.compile("(\\d+)\\D*$");
+    private static final String WORKBOOK_ENTRY_NAME = "xl/workbook.xml";
+    private static final String WORKBOOK_RELATIONSHIPS_ENTRY_NAME = "xl/_rels/workbook.xml.rels";
+    private static final String SHARED_STRINGS_ENTRY_NAME = "xl/sharedStrings.xml";
+    private static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final Map<String, WetLabSampleSheet> wetLabSampleSheetsPerKey = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    ) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WetLabSampleSheet> eldestEntry) {
+            return size() > MAXIMUM_NUMBER_OF_CACHED_SAMPLE_SHEETS;
+        }
+    };
+
+    static final class Row {
+        final String runName;
+        final String sampleName;
+        final String barcode;
+
+        Row(
+            String runName,
+            String sampleName,
+            String barcode
+        ) {
+            this.runName = runName;
+            this.sampleName = sampleName;
+            this.barcode = barcode;
+        }
+    }
+
+    private final List<Row> rows;
+
+    private WetLabSampleSheet(List<Row> rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Returns the sample sheet in wetLabExcelFilePath, reading it only if no file with the same checksum has been read
+     * with the same column patterns before. barcodeColumnPattern may be null for sheets without barcodes.
+     */
+    static WetLabSampleSheet read(
+        Path wetLabExcelFilePath,
+        Pattern sampleColumnPattern,
+        Pattern barcodeColumnPattern,
+        Pattern runColumnPattern
+    ) throws DocumentOperationException {
+        String key;
+        try {
+            key = String.join(
+                "\t",
+                formatChecksum(wetLabExcelFilePath),
+                sampleColumnPattern.pattern(),
+                String.valueOf(barcodeColumnPattern),
+                runColumnPattern.pattern()
+            );
+        } catch (IOException ioException) {
+            throw new DocumentOperationException(ioException);
+        }
+        synchronized (wetLabSampleSheetsPerKey) {
+            WetLabSampleSheet wetLabSampleSheet = wetLabSampleSheetsPerKey.get(key);
+            if (wetLabSampleSheet != null) {
+                return wetLabSampleSheet;
+            }
+        }
+        WetLabSampleSheet wetLabSampleSheet;
+        try (ZipFile zipFile = new ZipFile(wetLabExcelFilePath.toFile())) {
+            wetLabSampleSheet = new WetLabSampleSheet(readRows(
+                zipFile,
+                sampleColumnPattern,
+                barcodeColumnPattern,
+                runColumnPattern
+            ));
+        } catch (IOException | SAXException | ParserConfigurationException exception) {
+            throw new DocumentOperationException(
+                String.format(
+                    "Wet-lab Excel file \"%s\" couldn't be read: %s",
+                    wetLabExcelFilePath,
+                    exception.getMessage()
+                ),
+                exception
+            );
+        }
+        if (wetLabSampleSheet.rows.isEmpty()) {
+            throw new DocumentOperationException(String.format(
+                "Wet-lab Excel file \"%s\" has no sheet with a header row matching \"%s\"%s, or no samples below it.",
+                wetLabExcelFilePath,
+                sampleColumnPattern.pattern(),
+                barcodeColumnPattern == null ? "" : String.format(
+                    " and \"%s\"",
+                    barcodeColumnPattern.pattern()
+                )
+            ));
+        }
+        synchronized (wetLabSampleSheetsPerKey) {
+            wetLabSampleSheetsPerKey.put(
+                key,
+                wetLabSampleSheet
+            );
+        }
+        return wetLabSampleSheet;
+    }
+
+    /**
+     * Returns the rows for runName, or every row if the sheet has no run column.
+     */
+    List<Row> getRows(String runName) {
+        List<Row> rowsPerRun = new ArrayList<>();
+        for (Row row : this.rows) {
+            if (row.runName == null || row.runName.equalsIgnoreCase(runName)) {
+                rowsPerRun.add(row);
+            }
+        }
+        return rowsPerRun;
+    }
+
+    /**
+     * Returns the sample names for runName keyed by normalized barcode (see {@link #normalizeBarcode}).
+     */
+    Map<String, String> getSampleNamesPerBarcode(String runName) throws DocumentOperationException {
+        Map<String, String> sampleNamesPerBarcode = new LinkedHashMap<>();
+        for (Row row : getRows(runName)) {
+            String barcode = normalizeBarcode(row.barcode);
+            if (barcode == null) {
+                continue;
+            }
+            String previousSampleName = sampleNamesPerBarcode.put(
+                barcode,
+                row.sampleName
+            );
+            if (previousSampleName != null && !previousSampleName.equals(row.sampleName)) {
+                throw new DocumentOperationException(String.format(
+                    "Barcode \"%s\" is given to both sample \"%s\" and sample \"%s\" in the wet-lab Excel file.",
+                    barcode,
+                    previousSampleName,
+                    row.sampleName
+                ));
+            }
+        }
+        return sampleNamesPerBarcode;
+    }
+
+    /**
+     * Reduces "1", "BC01", "NB01" and "barcode01" alike to "barcode01", or returns null if there is no number.
+     */
+    static String normalizeBarcode(String barcode) {
+        if (barcode == null) {
+            return null;
+        }
+        Matcher barcodeNumberMatcher = BARCODE_NUMBER_PATTERN.matcher(barcode.trim());
+        if (!barcodeNumberMatcher.find()) {
+            return null;
+        }
+        return String.format(
+            "barcode%02d",
+            Integer.parseInt(barcodeNumberMatcher.group(1))
+        );
+    }
+
+    private static String formatChecksum(Path path) throws IOException {
+        CRC32C crc32c = new CRC32C();
+        long size = 0;
+        try (
+            FileChannel fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.READ
+            )
+        ) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (fileChannel.read(byteBuffer) != -1) {
+                byteBuffer.flip();
+                size += byteBuffer.remaining();
+                crc32c.update(byteBuffer);
+                byteBuffer.clear();
+            }
+        }
+        return String.format(
+            "%08x-%x",
+            crc32c.getValue(),
+            size
+        );
+    }
+
+    private static List<Row> readRows(
+        ZipFile zipFile,
+        Pattern sampleColumnPattern,
+        Pattern barcodeColumnPattern,
+        Pattern runColumnPattern
+    ) throws IOException, SAXException, ParserConfigurationException {
+        SAXParser saxParser = createSaxParser();
+        List<String> sharedStrings = new ArrayList<>();
+        ZipEntry sharedStringsZipEntry = zipFile.getEntry(SHARED_STRINGS_ENTRY_NAME);
+        if (sharedStringsZipEntry != null) {
+            try (InputStream inputStream = zipFile.getInputStream(sharedStringsZipEntry)) {
+                saxParser.parse(
+                    inputStream,
+                    new SharedStringsHandler(sharedStrings)
+                );
+            }
+        }
+        for (String worksheetEntryName : readWorksheetEntryNames(
+            zipFile,
+            saxParser
+        )) {
+            ZipEntry worksheetZipEntry = zipFile.getEntry(worksheetEntryName);
+            if (worksheetZipEntry == null) {
+                continue;
+            }
+            WorksheetHandler worksheetHandler = new WorksheetHandler(
+                sharedStrings,
+                sampleColumnPattern,
+                barcodeColumnPattern,
+                runColumnPattern
+            );
+            saxParser.reset();
+            try (InputStream inputStream = zipFile.getInputStream(worksheetZipEntry)) {
+                saxParser.parse(
+                    inputStream,
+                    worksheetHandler
+                );
+            }
+            if (worksheetHandler.sampleColumnIndex != -1) {
+                return worksheetHandler.rows;
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Returns the worksheet entries in the order the workbook lists its sheets.
+     */
+    private static List<String> readWorksheetEntryNames(
+        ZipFile zipFile,
+        SAXParser saxParser
+    ) throws IOException, SAXException {
+        Map<String, String> targetsPerRelationshipId = new HashMap<>();
+        ZipEntry workbookRelationshipsZipEntry = zipFile.getEntry(WORKBOOK_RELATIONSHIPS_ENTRY_NAME);
+        if (workbookRelationshipsZipEntry != null) {
+            saxParser.reset();
+            try (InputStream inputStream = zipFile.getInputStream(workbookRelationshipsZipEntry)) {
+                saxParser.parse(
+                    inputStream,
+                    new DefaultHandler() {
+                        @Override
+                        public void startElement(
+                            String uri,
+                            String localName,
+                            String qName,
+                            Attributes attributes
+                        ) {
+                            if (localName.equals("Relationship")) {
+                                targetsPerRelationshipId.put(
+                                    attributes.getValue("Id"),
+                                    attributes.getValue("Target")
+                                );
+                            }
+                        }
+                    }
+                );
+            }
+        }
+        List<String> worksheetEntryNames = new ArrayList<>();
+        ZipEntry workbookZipEntry = zipFile.getEntry(WORKBOOK_ENTRY_NAME);
+        if (workbookZipEntry != null) {
+            saxParser.reset();
+            try (InputStream inputStream = zipFile.getInputStream(workbookZipEntry)) {
+                saxParser.parse(
+                    inputStream,
+                    new DefaultHandler() {
+                        @Override
+                        public void startElement(
+                            String uri,
+                            String localName,
+                            String qName,
+                            Attributes attributes
+                        ) {
+                            if (!localName.equals("sheet")) {
+                                return;
+                            }
+                            String target = targetsPerRelationshipId.get(attributes.getValue(
+                                RELATIONSHIPS_NAMESPACE,
+                                "id"
+                            ));
+                            if (target == null) {
+                                return;
+                            }
+                            // Targets are relative to xl/, unless they start at the root of the package.
+                            worksheetEntryNames.add(target.startsWith("/") ? target.substring(1) : "xl/" + target);
+                        }
+                    }
+                );
+            }
+        }
+        if (worksheetEntryNames.isEmpty()) {
+            worksheetEntryNames.add("xl/worksheets/sheet1.xml");
+        }
+        return worksheetEntryNames;
+    }
+
+    private static SAXParser createSaxParser() throws ParserConfigurationException, SAXException {
+        SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+        saxParserFactory.setNamespaceAware(true);
+        // Workbooks never need a DTD, and refusing one rules out external entities.
+        saxParserFactory.setFeature(
+            "http://apache.org/xml/features/disallow-doctype-decl",
+            true
+        );
+        saxParserFactory.setFeature(
+            XMLConstants.FEATURE_SECURE_PROCESSING,
+            true
+        );
+        return saxParserFactory.newSAXParser();
+    }
+
+    private static final class SharedStringsHandler extends DefaultHandler {
+        private final List<String> sharedStrings;
+        private final StringBuilder sharedString = new StringBuilder();
+        private boolean textFlag = false;
+        // Phonetic guides are stored alongside the text and aren't part of it.
+        private boolean phoneticFlag = false;
+
+        SharedStringsHandler(List<String> sharedStrings) {
+            this.sharedStrings = sharedStrings;
+        }
+
+        @Override
+        public void startElement(
+            String uri,
+            String localName,
+            String qName,
+            Attributes attributes
+        ) {
+            switch (localName) {
+                case "si":
+                    this.sharedString.setLength(0);
+                    break;
+                case "rPh":
+                    this.phoneticFlag = true;
+                    break;
+                case "t":
+                    this.textFlag = !this.phoneticFlag;
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(
+            char[] characters,
+            int start,
+            int length
+        ) {
+            if (this.textFlag) {
+                this.sharedString.append(
+                    characters,
+                    start,
+                    length
+                );
+            }
+        }
+
+        @Override
+        public void endElement(
+            String uri,
+            String localName,
+            String qName
+        ) {
+            switch (localName) {
+                case "si":
+                    this.sharedStrings.add(this.sharedString.toString());
+                    break;
+                case "rPh":
+                    this.phoneticFlag = false;
+                    break;
+                case "t":
+                    this.textFlag = false;
+                    break;
+            }
+        }
+    }
+
+    private static final class WorksheetHandler extends DefaultHandler {
+        private final List<String> sharedStrings;
+        private final Pattern sampleColumnPattern;
+        private final Pattern barcodeColumnPattern;
+        private final Pattern runColumnPattern;
+        private final List<Row> rows = new ArrayList<>();
+        private final Map<Integer, String> cellValuesPerColumnIndex = new HashMap<>();
+        private final StringBuilder cellValue = new StringBuilder();
+        private int sampleColumnIndex = -1;
+        private int barcodeColumnIndex = -1;
+        private int runColumnIndex = -1;
+        private int columnIndex = -1;
+        private String cellType = null;
+        private boolean valueFlag = false;
+
+        WorksheetHandler(
+            List<String> sharedStrings,
+            Pattern sampleColumnPattern,
+            Pattern barcodeColumnPattern,
+            Pattern runColumnPattern
+        ) {
+            this.sharedStrings = sharedStrings;
+            this.sampleColumnPattern = sampleColumnPattern;
+            this.barcodeColumnPattern = barcodeColumnPattern;
+            this.runColumnPattern = runColumnPattern;
+        }
+
+        @Override
+        public void startElement(
+            String uri,
+            String localName,
+            String qName,
+            Attributes attributes
+        ) {
+            switch (localName) {
+                case "row":
+                    this.cellValuesPerColumnIndex.clear();
+                    this.columnIndex = -1;
+                    break;
+                case "c":
+                    String cellReference = attributes.getValue("r");
+                    // Cells without a reference follow on from the previous one.
+                    this.columnIndex = cellReference == null ? this.columnIndex + 1 : parseColumnIndex(cellReference);
+                    this.cellType = attributes.getValue("t");
+                    this.cellValue.setLength(0);
+                    break;
+                case "v":
+                case "t":
+                    this.valueFlag = true;
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(
+            char[] characters,
+            int start,
+            int length
+        ) {
+            if (this.valueFlag) {
+                this.cellValue.append(
+                    characters,
+                    start,
+                    length
+                );
+            }
+        }
+
+        @Override
+        public void endElement(
+            String uri,
+            String localName,
+            String qName
+        ) throws SAXException {
+            switch (localName) {
+                case "v":
+                case "t":
+                    this.valueFlag = false;
+                    break;
+                case "c":
+                    String value = this.cellValue.toString();
+                    if ("s".equals(this.cellType)) {
+                        int sharedStringIndex = Integer.parseInt(value.trim());
+                        value = sharedStringIndex < this.sharedStrings.size() ? this.sharedStrings.get(sharedStringIndex) : "";
+                    } else if ((this.cellType == null || "n".equals(this.cellType)) && value.endsWith(".0")) {
+                        // Numbers such as barcode 1 are stored as "1.0" by some writers.
+                        value = value.substring(0, value.length() - 2);
+                    }
+                    value = value.trim();
+                    if (!value.isEmpty()) {
+                        this.cellValuesPerColumnIndex.put(
+                            this.columnIndex,
+                            value
+                        );
+                    }
+                    break;
+                case "row":
+                    endRow();
+                    break;
+            }
+        }
+
+        private void endRow() {
+            if (this.sampleColumnIndex == -1) {
+                findHeaderColumns();
+                return;
+            }
+            String sampleName = this.cellValuesPerColumnIndex.get(this.sampleColumnIndex);
+            if (sampleName == null) {
+                return;
+            }
+            this.rows.add(new Row(
+                this.runColumnIndex == -1 ? null : this.cellValuesPerColumnIndex.get(this.runColumnIndex),
+                sampleName,
+                this.barcodeColumnIndex == -1 ? null : this.cellValuesPerColumnIndex.get(this.barcodeColumnIndex)
+            ));
+        }
+
+        private void findHeaderColumns() {
+            int sampleColumnIndex = -1;
+            int barcodeColumnIndex = -1;
+            int runColumnIndex = -1;
+            for (int columnIndex : new TreeSet<>(this.cellValuesPerColumnIndex.keySet())) {
+                String header = this.cellValuesPerColumnIndex.get(columnIndex);
+                // The leftmost matching column wins, and a column is only used for one thing.
+                if (sampleColumnIndex == -1 && this.sampleColumnPattern.matcher(header).matches()) {
+                    sampleColumnIndex = columnIndex;
+                } else if (barcodeColumnIndex == -1 && this.barcodeColumnPattern != null && this.barcodeColumnPattern.matcher(header).matches()) {
+                    barcodeColumnIndex = columnIndex;
+                } else if (runColumnIndex == -1 && this.runColumnPattern.matcher(header).matches()) {
+                    runColumnIndex = columnIndex;
+                }
+            }
+            if (sampleColumnIndex != -1 && (this.barcodeColumnPattern == null || barcodeColumnIndex != -1)) {
+                this.sampleColumnIndex = sampleColumnIndex;
+                this.barcodeColumnIndex = barcodeColumnIndex;
+                this.runColumnIndex = runColumnIndex;
+            }
+        }
+
+        private static int parseColumnIndex(String cellReference) {
+            int columnIndex = 0;
+            for (int i = 0; i < cellReference.length(); i++) {
+                char character = cellReference.charAt(i);
+                if (character < 'A' || character > 'Z') {
+                    break;
+                }
+                columnIndex = columnIndex * 26 + (character - 'A' + 1);
+            }
+            return columnIndex - 1;
+        }
+    }
+}
@@ -4,17 +4,14 @@ import com.biomatters.geneious.publicapi.databaseservice.WritableDatabaseService
 import com.biomatters.geneious.publicapi.documents.AnnotatedPluginDocument;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 class WritableDatabaseServiceDatum {
     final WritableDatabaseService writableDatabaseService;
     final HashMap<String, WritableDatabaseServiceDatum> children;
     final List<File> rawFastqFiles;
     final List<AnnotatedPluginDocument> importedFastqFiles;
-    final LinkedHashSet<String> referenceGenomeAccessionNumbers;
+    final Set<String> referenceGenomeAccessionNumbers;
     final List<AnnotatedPluginDocument> referenceGenomes;
     final String sampleName;
 
@@ -24,10 +21,11 @@ class WritableDatabaseServiceDatum {
     ) {
         this.writableDatabaseService = writableDatabaseService;
         this.children = new HashMap<>();
-        this.rawFastqFiles = new LinkedList<>();
-        this.importedFastqFiles = new LinkedList<>();
-        this.referenceGenomeAccessionNumbers = new LinkedHashSet<>();
-        this.referenceGenomes = new LinkedList<>();
+        // These are filled in by pipeline workers, so several threads may add to them at once.
+        this.rawFastqFiles = Collections.synchronizedList(new LinkedList<>());
+        this.importedFastqFiles = Collections.synchronizedList(new LinkedList<>());
+        this.referenceGenomeAccessionNumbers = Collections.synchronizedSet(new LinkedHashSet<>());
+        this.referenceGenomes = Collections.synchronizedList(new LinkedList<>());
         this.sampleName = sampleName;
     }
 
@@ -0,0 +1,108 @@
+package com.biomatters.ppbAutomation;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlastJsonAccessionReaderTest {
+    private static final List<String> REFERENCE_GENOME_NAMES = List.of(
+        "AY184220",
+        "MN908947.3",
+        "KX197428",
+        "AB000001"
+    );
+
+    @Test
+    public void readsAccessionValuesAtAnyDepth() throws IOException {
+        assertEquals(
+            List.of("MN908947.3", "AY184220"),
+            List.copyOf(readAccessionNumbers(String.join(
+                "\n",
+                "{",
+                "  \"report\": {",
+                "    \"results\": [",
+                "      {\"hits\": [{\"accession\": \"MN908947\", \"score\": 1.5e3}, {\"accession\": \"AY184220.1\"}]},",
+                "      {\"hits\": [], \"accession\": null, \"flags\": [true, false]}",
+                "    ]",
+                "  },",
+                "  \"accession\": \"MN908947.3\"",
+                "}"
+            )))
+        );
+    }
+
+    @Test
+    public void decodesEscapesInNamesAndValues() throws IOException {
+        assertEquals(
+            List.of("AY184220", "KX197428"),
+            List.copyOf(readAccessionNumbers(String.join(
+                "\n",
+                "{",
+                "  \"title\": \"a \\\"quoted\\\" \\\\ title with \\\"accession\\\": \\\"AB000001\\\"\",",
+                "  \"acc\\u0065ssion\": \"\\u0041Y184220\",",
+                "  \"tab\\tkey\": \"\\b\\f\\n\\r\\t\\/\",",
+                "  \"accession\": \"KX197428\\n\"",
+                "}"
+            )))
+        );
+    }
+
+    @Test
+    public void ignoresTheKeyWhenItIsNotFollowedByAString() throws IOException {
+        assertEquals(
+            List.of("KX197428"),
+            List.copyOf(readAccessionNumbers(String.join(
+                "\n",
+                "{",
+                "  \"accession\": [\"AY184220\"],",
+                "  \"accession\": {\"id\": \"AB000001\", \"accession\": \"KX197428\"},",
+                "  \"other\": \"accession\",",
+                "  \"next\": \"MN908947\"",
+                "}"
+            )))
+        );
+    }
+
+    @Test
+    public void readsStringsThatSpanTheReadBuffer() throws IOException {
+        // Puts the unicode escape of the accession number across the tokenizer's 64 K read buffer.
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < (1 << 16) - 33) {
+            padding.append('x');
+        }
+        assertEquals(
+            List.of("AY184220"),
+            List.copyOf(readAccessionNumbers(String.format(
+                "{\"padding\": \"%s\", \"accession\": \"\\u0041Y184220\"}",
+                padding
+            )))
+        );
+    }
+
+    private static Set<String> readAccessionNumbers(String json) throws IOException {
+        Path jsonFilePath = Files.createTempFile(
+            "blastJsonAccessionReaderTest",
+            ".json"
+        );
+        try {
+            Files.write(
+                jsonFilePath,
+                json.getBytes(StandardCharsets.UTF_8)
+            );
+            return BlastJsonAccessionReader.readAccessionNumbers(
+                jsonFilePath,
+                "accession",
+                REFERENCE_GENOME_NAMES
+            );
+        } finally {
+            Files.deleteIfExists(jsonFilePath);
+        }
+    }
+}
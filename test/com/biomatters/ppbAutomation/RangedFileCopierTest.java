@@ -0,0 +1,133 @@
+package com.biomatters.ppbAutomation;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RangedFileCopierTest {
+    private static final int LENGTH = 100_003;
+
+    @Test
+    public void combiningTwoRangesGivesTheSinglePassCrc32c() {
+        byte[] bytes = createBytes();
+        long expectedCrc32c = calculateCrc32c(bytes, 0, bytes.length);
+        for (int split : new int[] {0, 1, 4096, LENGTH / 2, LENGTH - 1, LENGTH}) {
+            assertEquals(
+                String.format(
+                    "Split at %d",
+                    split
+                ),
+                expectedCrc32c,
+                RangedFileCopier.combineCrc32cs(
+                    calculateCrc32c(bytes, 0, split),
+                    calculateCrc32c(bytes, split, bytes.length),
+                    bytes.length - split
+                )
+            );
+        }
+    }
+
+    @Test
+    public void combiningManyRangesInOrderGivesTheSinglePassCrc32c() {
+        byte[] bytes = createBytes();
+        int rangeSize = 7919;
+        long crc32c = calculateCrc32c(bytes, 0, rangeSize);
+        for (int start = rangeSize; start < bytes.length; start += rangeSize) {
+            int end = Math.min(bytes.length, start + rangeSize);
+            crc32c = RangedFileCopier.combineCrc32cs(
+                crc32c,
+                calculateCrc32c(bytes, start, end),
+                end - start
+            );
+        }
+        assertEquals(
+            calculateCrc32c(bytes, 0, bytes.length),
+            crc32c
+        );
+    }
+
+    @Test
+    public void copyReturnsTheCrc32cOfTheCopiedBytes() throws IOException, InterruptedException {
+        assertCopies(
+            LENGTH + 1,
+            LENGTH + 1
+        );
+    }
+
+    @Test
+    public void rangedCopyReturnsTheCrc32cOfTheCopiedBytes() throws IOException, InterruptedException {
+        // Ranges that don't divide the file evenly, so that the last one is shorter.
+        assertCopies(
+            1,
+            4093
+        );
+        assertCopies(
+            1,
+            LENGTH
+        );
+    }
+
+    /**
+     * Copies the test bytes with a copier using the given sizes, and checks the copy and the CRC32C it returns.
+     */
+    private static void assertCopies(
+        long minimumRangedCopySize,
+        long rangeSize
+    ) throws IOException, InterruptedException {
+        byte[] bytes = createBytes();
+        Path folderPath = Files.createTempDirectory("rangedFileCopierTest");
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            Path sourcePath = Files.write(folderPath.resolve("source.fastq"), bytes);
+            Path destinationPath = folderPath.resolve("destination.fastq");
+            long crc32c = new RangedFileCopier(
+                executorService,
+                2,
+                minimumRangedCopySize,
+                rangeSize
+            ).copy(
+                sourcePath,
+                destinationPath
+            );
+            assertEquals(
+                calculateCrc32c(bytes, 0, bytes.length),
+                crc32c
+            );
+            assertTrue(Arrays.equals(
+                bytes,
+                Files.readAllBytes(destinationPath)
+            ));
+        } finally {
+            executorService.shutdownNow();
+            Files.deleteIfExists(folderPath.resolve("source.fastq"));
+            Files.deleteIfExists(folderPath.resolve("destination.fastq"));
+            Files.deleteIfExists(folderPath);
+        }
+    }
+
+    private static byte[] createBytes() {
+        byte[] bytes = new byte[LENGTH];
+        new Random(3).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static long calculateCrc32c(
+        byte[] bytes,
+        int start,
+        int end
+    ) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(bytes, start, end - start);
+        return crc32c.getValue();
+    }
+}
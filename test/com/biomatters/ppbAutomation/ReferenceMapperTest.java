@@ -0,0 +1,140 @@
+package com.biomatters.ppbAutomation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReferenceMapperTest {
+    private static final String NUCLEOTIDES = "ACGT";
+    private static final int REFERENCE_LENGTH = 1000;
+    private static final int READ_START = 300;
+    private static final int READ_END = 600;
+    private static final int INDEL_POSITION = 450;
+    private static final int INDEL_LENGTH = 3;
+
+    @Test
+    public void deletedBasesAreCountedAsDeletionsAtTheirReferencePositions() {
+        String reference = createSequence(1, REFERENCE_LENGTH);
+        String read = reference.substring(READ_START, INDEL_POSITION) + reference.substring(INDEL_POSITION + INDEL_LENGTH, READ_END);
+        int[] counts = mapRead(
+            read,
+            reference
+        );
+        for (int position = 0; position < REFERENCE_LENGTH; position++) {
+            int expectedSlot = -1;
+            if (position >= INDEL_POSITION && position < INDEL_POSITION + INDEL_LENGTH) {
+                expectedSlot = ReadPileup.DELETION_SLOT;
+            } else if (position >= READ_START && position < READ_END) {
+                expectedSlot = NUCLEOTIDES.indexOf(reference.charAt(position));
+            }
+            assertCounts(
+                counts,
+                position,
+                expectedSlot
+            );
+        }
+    }
+
+    @Test
+    public void insertedBasesAreLeftOutAndTheRestOfTheReadStaysAligned() {
+        String reference = createSequence(2, REFERENCE_LENGTH);
+        String read = reference.substring(READ_START, INDEL_POSITION) + "TTTTGGGG" + reference.substring(INDEL_POSITION, READ_END);
+        int[] counts = mapRead(
+            read,
+            reference
+        );
+        for (int position = 0; position < REFERENCE_LENGTH; position++) {
+            assertCounts(
+                counts,
+                position,
+                position >= READ_START && position < READ_END ? NUCLEOTIDES.indexOf(reference.charAt(position)) : -1
+            );
+        }
+    }
+
+    @Test
+    public void reverseComplementedReadsAreCountedOnTheForwardStrand() {
+        String reference = createSequence(3, REFERENCE_LENGTH);
+        String read = reference.substring(READ_START, INDEL_POSITION) + reference.substring(INDEL_POSITION + INDEL_LENGTH, READ_END);
+        assertEquals(
+            Arrays.toString(mapRead(read, reference)),
+            Arrays.toString(mapRead(reverseComplement(read), reference))
+        );
+    }
+
+    @Test
+    public void unrelatedReadsAreNotMapped() {
+        byte[] reference = ReferenceMapper.encode(createSequence(4, REFERENCE_LENGTH));
+        int[] counts = new int[reference.length * ReadPileup.NUMBER_OF_SLOTS];
+        assertFalse(ReferenceMapper.mapRead(
+            ReferenceMapper.encode(createSequence(5, READ_END - READ_START)),
+            reference,
+            ReferenceMapper.indexKMers(reference),
+            counts
+        ));
+        for (int count : counts) {
+            assertEquals(0, count);
+        }
+    }
+
+    private static int[] mapRead(
+        String read,
+        String referenceSequence
+    ) {
+        byte[] reference = ReferenceMapper.encode(referenceSequence);
+        int[] counts = new int[reference.length * ReadPileup.NUMBER_OF_SLOTS];
+        assertTrue(ReferenceMapper.mapRead(
+            ReferenceMapper.encode(read),
+            reference,
+            ReferenceMapper.indexKMers(reference),
+            counts
+        ));
+        return counts;
+    }
+
+    /**
+     * Checks that the position was counted once, in expectedSlot, or not at all if expectedSlot is -1.
+     */
+    private static void assertCounts(
+        int[] counts,
+        int position,
+        int expectedSlot
+    ) {
+        for (int slot = 0; slot < ReadPileup.NUMBER_OF_SLOTS; slot++) {
+            assertEquals(
+                String.format(
+                    "Slot %d at position %d",
+                    slot,
+                    position
+                ),
+                slot == expectedSlot ? 1 : 0,
+                counts[position * ReadPileup.NUMBER_OF_SLOTS + slot]
+            );
+        }
+    }
+
+    private static String createSequence(
+        long seed,
+        int length
+    ) {
+        Random random = new Random(seed);
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(NUCLEOTIDES.charAt(random.nextInt(NUCLEOTIDES.length())));
+        }
+        return sequence.toString();
+    }
+
+    private static String reverseComplement(String sequence) {
+        StringBuilder reverseComplement = new StringBuilder(sequence.length());
+        for (int i = sequence.length() - 1; i >= 0; i--) {
+            reverseComplement.append(NUCLEOTIDES.charAt(3 - NUCLEOTIDES.indexOf(sequence.charAt(i))));
+        }
+        return reverseComplement.toString();
+    }
+}